@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.util.Log;
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * Measures the time the note editor's text view takes to draw a frame, for notes of increasing
+ * length. The results are written to the log under the tag {@link #TAG}. The benchmark fails if
+ * a frame rules more lines than are on screen, since then the cost of a frame grows with the
+ * length of the note.
+ */
+public class LinedEditTextBenchmark extends InstrumentationTestCase {
+
+    // Used for the benchmark results in the log
+    private static final String TAG = "LinedEditTextBenchmark";
+
+    // The numbers of lines in the notes drawn
+    private static final int[] NOTE_LINES = { 100, 5000, 50000 };
+
+    // The size of the view, about that of a phone screen
+    private static final int VIEW_WIDTH = 480;
+    private static final int VIEW_HEIGHT = 800;
+
+    // The number of frames drawn before and during the measurement
+    private static final int WARMUP_FRAMES = 20;
+    private static final int MEASURED_FRAMES = 200;
+
+    /*
+     * Draws the view scrolled to the top, the middle and the end of each note, as its parent
+     * would, and reports the median and 95th percentile frame times.
+     */
+    @UiThreadTest
+    public void testFrameTime() {
+        NoteEditor.LinedEditText view = new NoteEditor.LinedEditText(
+                getInstrumentation().getTargetContext(), null);
+        Bitmap bitmap = Bitmap.createBitmap(VIEW_WIDTH, VIEW_HEIGHT, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        try {
+            for (int lines : NOTE_LINES) {
+                view.setText(createNote(lines));
+                view.measure(
+                        View.MeasureSpec.makeMeasureSpec(VIEW_WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(VIEW_HEIGHT, View.MeasureSpec.EXACTLY));
+                view.layout(0, 0, VIEW_WIDTH, VIEW_HEIGHT);
+
+                int maxScroll = Math.max(0, view.getLayout().getHeight()
+                        + view.getTotalPaddingTop() + view.getTotalPaddingBottom() - VIEW_HEIGHT);
+                int[] scrolls = { 0, maxScroll / 2, maxScroll };
+                String[] positions = { "top", "middle", "end" };
+                for (int i = 0; i < scrolls.length; i++) {
+                    measureFrames(view, canvas, lines, positions[i], scrolls[i]);
+                }
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private void measureFrames(NoteEditor.LinedEditText view, Canvas canvas, int lines,
+            String position, int scrollY) {
+        view.scrollTo(0, scrollY);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            drawFrame(view, canvas, scrollY);
+        }
+
+        long[] times = new long[MEASURED_FRAMES];
+        for (int i = 0; i < MEASURED_FRAMES; i++) {
+            long start = System.nanoTime();
+            drawFrame(view, canvas, scrollY);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+
+        // A frame rules the lines on screen, and at most one line either side of them.
+        int visibleLines = VIEW_HEIGHT / view.getLineHeight() + 1;
+        int rules = view.getRuleCountForTest();
+        assertTrue(rules + " rules drawn for " + visibleLines + " visible lines",
+                rules <= visibleLines + 3);
+
+        Log.i(TAG, "frame (" + lines + " lines, " + position + "): p50 "
+                + times[times.length / 2] / 1000 + " us, p95 "
+                + times[times.length * 95 / 100] / 1000 + " us, " + rules + " rules");
+    }
+
+    /*
+     * Draws the view as its parent does: translated by its scroll position, and clipped to the
+     * part of it on screen.
+     */
+    private static void drawFrame(View view, Canvas canvas, int scrollY) {
+        int saveCount = canvas.save();
+        try {
+            canvas.translate(0, -scrollY);
+            canvas.clipRect(0, scrollY, VIEW_WIDTH, scrollY + VIEW_HEIGHT);
+            view.draw(canvas);
+        } finally {
+            canvas.restoreToCount(saveCount);
+        }
+    }
+
+    private static String createNote(int lines) {
+        StringBuilder note = new StringBuilder(lines * 24);
+        for (int i = 0; i < lines; i++) {
+            note.append("Line ").append(i).append(" of the benchmark note\n");
+        }
+        return note.toString();
+    }
+}
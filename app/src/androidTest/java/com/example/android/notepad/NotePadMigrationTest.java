@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * This class tests the in-place upgrades of the Note Pad database. It builds a database with the
+ * version 2 schema, fills it with synthetic notes, and then opens it with the current
+ * DatabaseHelper so that every migration runs.
+ */
+public class NotePadMigrationTest extends AndroidTestCase {
+
+    // Used for debugging and logging
+    private static final String TAG = "NotePadMigrationTest";
+
+    // The name of the database used by this test, kept apart from the provider's database.
+    private static final String TEST_DATABASE_NAME = "note_pad_migration_test.db";
+
+    // The number of synthetic notes in the version 2 database.
+    private static final int NOTE_COUNT = 100000;
+
+    // The longest the upgrade of NOTE_COUNT notes may take, in milliseconds.
+    private static final long MAX_UPGRADE_MILLIS = 60 * 1000;
+
+    // The version 2 schema, as it was created by DatabaseHelper.onCreate() in that version.
+    private static final String VERSION_2_SCHEMA = "CREATE TABLE notes ("
+            + "_id INTEGER PRIMARY KEY,"
+            + "title TEXT,"
+            + "note TEXT,"
+            + "created INTEGER,"
+            + "modified INTEGER"
+            + ");";
+
+    // The file that holds the test database.
+    private File mDatabaseFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabaseFile = getContext().getDatabasePath(TEST_DATABASE_NAME);
+        mDatabaseFile.getParentFile().mkdirs();
+        deleteTestDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTestDatabase();
+        super.tearDown();
+    }
+
+    /*
+     * Tests that a version 2 database is upgraded to the current version without losing any
+     * notes, that the upgrade takes less than MAX_UPGRADE_MILLIS, and that the word counts it
+     * leaves out are filled in by the backfill.
+     */
+    public void testMigrateFromVersion2() {
+        createVersion2Database();
+
+        // Opening the database through the helper runs the migrations.
+        NotePadProvider.DatabaseHelper helper =
+                new NotePadProvider.DatabaseHelper(getContext(), TEST_DATABASE_NAME);
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "Upgraded " + NOTE_COUNT + " notes in " + elapsed + " ms");
+
+        try {
+            // Asserts that the database is now at the current version.
+            assertEquals(NotePadProvider.DATABASE_VERSION, db.getVersion());
+
+            // Asserts that no notes were lost.
+            assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME));
+
+            // Asserts that the contents of the first, a middle and the last note are unchanged.
+            assertNote(db, 1);
+            assertNote(db, NOTE_COUNT / 2);
+            assertNote(db, NOTE_COUNT);
+
+            // Asserts that the previews were filled in.
+            assertEquals(noteFor(NOTE_COUNT), DatabaseUtils.stringForQuery(db, "SELECT "
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + NotePad.Notes._ID + " = " + NOTE_COUNT, null));
+            assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + NotePad.Notes.COLUMN_NAME_PREVIEW + " IS NULL", null));
+
+            // Asserts that the search index was built from the existing notes, and only keeps
+            // a copy of their text where SQLite can't read it from the notes table.
+            assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(db,
+                    NotePadProvider.FTS_TABLE_NAME + "_docsize"));
+            assertEquals(NoteSearchIndex.isSupported(), NoteSearchIndex.hasExternalContent(db));
+            assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePadProvider.FTS_TABLE_NAME + " WHERE " + NotePadProvider.FTS_TABLE_NAME
+                    + " MATCH ?", new String[] { titleFor(NOTE_COUNT) }));
+
+            // Asserts that the word counts were left to the backfill, which counts them all.
+            assertTrue(NotePadMigrations.isBackfillPending(db, WordCountBackfill.NAME));
+            WordCountBackfill backfill = new WordCountBackfill(helper, null);
+            int chunks = 1;
+            while (backfill.countNextChunk(db)) {
+                chunks++;
+            }
+            assertEquals(NOTE_COUNT / WordCountBackfill.CHUNK_SIZE + 1, chunks);
+            assertFalse(NotePadMigrations.isBackfillPending(db, WordCountBackfill.NAME));
+            assertEquals(NoteAnalyzer.countWords(noteFor(NOTE_COUNT)),
+                    DatabaseUtils.longForQuery(db, "SELECT "
+                    + NotePad.Notes.COLUMN_NAME_WORD_COUNT + " FROM " + NotePad.Notes.TABLE_NAME
+                    + " WHERE " + NotePad.Notes._ID + " = " + NOTE_COUNT, null));
+            assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + NotePad.Notes.COLUMN_NAME_WORD_COUNT + " IS NULL", null));
+
+            // Asserts that the existing notes were left as text, with no compressed data.
+            assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NoteCodec.COLUMN_NAME_DATA
+                    + " IS NOT NULL", null));
+
+            // Asserts that every existing note starts at the first version.
+            assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_VERSION
+                    + " != " + NotePad.Notes.FIRST_VERSION, null));
+
+            // Asserts that the notes have the indexes a new database has, and not the ones the
+            // upgrade replaced.
+            for (String index : new String[] { NotePadProvider.BY_MODIFIED_INDEX_NAME,
+                    NotePadProvider.BY_TITLE_INDEX_NAME, NotePadProvider.BY_CREATED_INDEX_NAME }) {
+                assertEquals(index, 1, countIndexes(db, index));
+            }
+            assertEquals(0, countIndexes(db, NotePadProvider.MODIFIED_INDEX_NAME));
+            assertEquals(0, countIndexes(db, NotePadProvider.DELETED_INDEX_NAME));
+
+            // Asserts that the upgrade was fast enough.
+            assertTrue("Upgrade took " + elapsed + " ms", elapsed < MAX_UPGRADE_MILLIS);
+        } finally {
+            helper.close();
+        }
+    }
+
+    /*
+     * Tests that a database too old for the migrations is still upgraded, by recreating it.
+     */
+    public void testUpgradeFromUnsupportedVersion() {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null);
+        db.execSQL(VERSION_2_SCHEMA);
+        db.setVersion(1);
+        db.close();
+
+        NotePadProvider.DatabaseHelper helper =
+                new NotePadProvider.DatabaseHelper(getContext(), TEST_DATABASE_NAME);
+        try {
+            db = helper.getWritableDatabase();
+            assertEquals(NotePadProvider.DATABASE_VERSION, db.getVersion());
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+
+    /*
+     * Creates the test database with the version 2 schema and NOTE_COUNT notes. The notes are
+     * inserted in a single transaction with a compiled statement, so that setting up the test
+     * doesn't dominate its running time.
+     */
+    private void createVersion2Database() {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile, null);
+        try {
+            db.execSQL(VERSION_2_SCHEMA);
+
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO notes (_id, title, note, created, modified) "
+                    + "VALUES (?, ?, ?, ?, ?)");
+            db.beginTransaction();
+            try {
+                for (int id = 1; id <= NOTE_COUNT; id++) {
+                    insert.bindLong(1, id);
+                    insert.bindString(2, titleFor(id));
+                    insert.bindString(3, noteFor(id));
+                    insert.bindLong(4, id);
+                    insert.bindLong(5, id);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+
+            db.setVersion(2);
+        } finally {
+            db.close();
+        }
+    }
+
+    /*
+     * Asserts that the note with the given ID has the title, contents and dates it was created
+     * with.
+     */
+    private void assertNote(SQLiteDatabase db, long id) {
+        Cursor cursor = db.query(
+                NotePad.Notes.TABLE_NAME,
+                new String[] {
+                    NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_NOTE,
+                    NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                NotePad.Notes._ID + " = ?",
+                new String[] { Long.toString(id) },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(titleFor(id), cursor.getString(0));
+            assertEquals(noteFor(id), cursor.getString(1));
+            assertEquals(id, cursor.getLong(2));
+            assertEquals(id, cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long countIndexes(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE type = "
+                + "'index' AND name = ?", new String[] { name });
+    }
+
+    private static String titleFor(long id) {
+        return "Note" + id;
+    }
+
+    private static String noteFor(long id) {
+        return "This is note " + id + ". It was created for the migration test.";
+    }
+
+    private void deleteTestDatabase() {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+}
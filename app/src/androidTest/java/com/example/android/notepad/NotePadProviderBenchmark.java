@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of the Note Pad provider's hot paths on a device. The results are
+ * written to the log under the tag {@link #TAG}; the tests only fail if the provider fails.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    // Used for the benchmark results in the log
+    private static final String TAG = "NotePadProviderBenchmark";
+
+    // The numbers of notes imported by each run of the import benchmark.
+    private static final int[] IMPORT_SIZES = { 1000, 10000, 100000 };
+
+    // The connection settings compared by the concurrency benchmark
+    private static final DatabaseTuning[] TUNINGS = {
+        DatabaseTuning.DEFAULT,
+        DatabaseTuning.ROLLBACK_JOURNAL
+    };
+
+    // The shape of the concurrency benchmark: notes in the database, threads reading and writing
+    // together, how long they run, and how many notes each write transaction updates.
+    private static final int STRESS_NOTES = 5000;
+    private static final int STRESS_READERS = 4;
+    private static final int STRESS_WRITERS = 2;
+    private static final long STRESS_DURATION_MILLIS = 5000;
+    private static final int STRESS_WRITE_BATCH = 200;
+
+    // The size of the page each reader queries, as the notes list does
+    private static final int STRESS_PAGE_SIZE = 50;
+
+    // The number of updates run by the single note update benchmark
+    private static final int SINGLE_NOTE_UPDATES = 100000;
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+    }
+
+    /*
+     * Compares importing notes one insert() at a time with importing them in one bulkInsert().
+     * Each insert() is its own transaction, with its own journal sync and change notification.
+     */
+    public void testImportThroughput() {
+        for (int size : IMPORT_SIZES) {
+            ContentValues[] notes = createNotes(size);
+
+            long start = SystemClock.elapsedRealtime();
+            for (ContentValues note : notes) {
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, note);
+            }
+            report("insert", size, SystemClock.elapsedRealtime() - start);
+            deleteAllNotes();
+
+            start = SystemClock.elapsedRealtime();
+            assertEquals(size, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes));
+            report("bulkInsert", size, SystemClock.elapsedRealtime() - start);
+            deleteAllNotes();
+        }
+    }
+
+    /*
+     * Runs readers and writers against the same database at once, with each of the connection
+     * settings in turn, and reports the read latencies. Readers query the first page of the notes
+     * list; writers update batches of notes in long transactions. With a rollback journal, a read
+     * waits for the write in progress, which shows up in the tail latency.
+     */
+    public void testConcurrentReadLatency() throws Exception {
+        Context context = getMockContext();
+        for (DatabaseTuning tuning : TUNINGS) {
+            String name = "stress_" + tuning.journalMode.toLowerCase(Locale.US) + ".db";
+            context.deleteDatabase(name);
+            NotePadProvider.DatabaseHelper helper =
+                    new NotePadProvider.DatabaseHelper(context, name, tuning);
+            try {
+                final SQLiteDatabase db = helper.getWritableDatabase();
+                insertNotes(db, STRESS_NOTES);
+                runStress(db, tuning);
+            } finally {
+                helper.close();
+                context.deleteDatabase(name);
+            }
+        }
+    }
+
+    /*
+     * Compares the cost of updating single notes by ID with a new SQL string for each note, as
+     * the provider used to, and with its cached compiled statement, in which the ID is bound.
+     * All of the updates run in one transaction, so that the cost of committing doesn't hide
+     * the cost of compiling.
+     */
+    public void testSingleNoteUpdateCost() {
+        Context context = getMockContext();
+        String name = "single_note_updates.db";
+        context.deleteDatabase(name);
+        NotePadProvider.DatabaseHelper helper = new NotePadProvider.DatabaseHelper(context, name);
+        NoteStatements statements = new NoteStatements();
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            insertNotes(db, STRESS_NOTES);
+            ContentValues values = new ContentValues();
+
+            long start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < SINGLE_NOTE_UPDATES; i++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title " + i);
+                    db.update(NotePad.Notes.TABLE_NAME, values,
+                            NotePad.Notes._ID + " = " + (1 + i % STRESS_NOTES), null);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long concatenated = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < SINGLE_NOTE_UPDATES; i++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title " + i);
+                    assertEquals(1, statements.update(db, 1 + i % STRESS_NOTES, values, null,
+                            null));
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            long cached = System.nanoTime() - start;
+
+            Log.i(TAG, "single note updates: " + SINGLE_NOTE_UPDATES + " updates, "
+                    + concatenated / SINGLE_NOTE_UPDATES / 1000.0
+                    + " us each with the ID in the SQL, "
+                    + cached / SINGLE_NOTE_UPDATES / 1000.0 + " us each with a cached statement");
+            assertEquals(1, statements.getCompileCount());
+        } finally {
+            statements.close();
+            helper.close();
+            context.deleteDatabase(name);
+        }
+    }
+
+    private void runStress(final SQLiteDatabase db, DatabaseTuning tuning) throws Exception {
+        final long end = SystemClock.elapsedRealtime() + STRESS_DURATION_MILLIS;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ArrayList<long[]> readerLatencies = new ArrayList<long[]>();
+        final Throwable[] failure = new Throwable[1];
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < STRESS_WRITERS; i++) {
+            final int writer = i;
+            threads.add(new Thread("writer" + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int batch = 0;
+                        while (SystemClock.elapsedRealtime() < end) {
+                            updateNotes(db, writer, batch++);
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+        }
+
+        for (int i = 0; i < STRESS_READERS; i++) {
+            threads.add(new Thread("reader" + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long[] latencies = new long[1024];
+                        int count = 0;
+                        while (SystemClock.elapsedRealtime() < end) {
+                            long readStart = System.nanoTime();
+                            Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                                    new String[] {
+                                        NotePad.Notes._ID,
+                                        NotePad.Notes.COLUMN_NAME_TITLE,
+                                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                                    null, null, null, null, NotePad.Notes.PAGED_SORT_ORDER,
+                                    String.valueOf(STRESS_PAGE_SIZE));
+                            try {
+                                assertEquals(STRESS_PAGE_SIZE, c.getCount());
+                            } finally {
+                                c.close();
+                            }
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = System.nanoTime() - readStart;
+                        }
+                        synchronized (readerLatencies) {
+                            readerLatencies.add(Arrays.copyOf(latencies, count));
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        // Merges the latencies of all the readers, and reports the percentiles.
+        int total = 0;
+        for (long[] latencies : readerLatencies) {
+            total += latencies.length;
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (long[] latencies : readerLatencies) {
+            System.arraycopy(latencies, 0, all, offset, latencies.length);
+            offset += latencies.length;
+        }
+        Arrays.sort(all);
+        assertTrue(total > 0);
+
+        Log.i(TAG, "concurrent reads (" + tuning + "): " + total + " reads, p50 "
+                + percentileMicros(all, 50) + " us, p99 " + percentileMicros(all, 99)
+                + " us, max " + all[total - 1] / 1000 + " us");
+    }
+
+    /*
+     * Inserts a number of synthetic notes straight into a database, in one transaction.
+     */
+    private static void insertNotes(SQLiteDatabase db, int count) {
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            ContentValues[] notes = createNotes(count);
+            for (int i = 0; i < count; i++) {
+                notes[i].put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+                notes[i].put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i);
+                db.insert(NotePad.Notes.TABLE_NAME, null, notes[i]);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+     * Updates the text of a batch of notes in one transaction. Each writer updates its own notes.
+     */
+    private static void updateNotes(SQLiteDatabase db, int writer, int batch) {
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < STRESS_WRITE_BATCH; i++) {
+                long id = 1 + (writer + (long) (batch * STRESS_WRITE_BATCH + i) * STRESS_WRITERS)
+                        % STRESS_NOTES;
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Batch " + batch + " of writer "
+                        + writer);
+                db.update(NotePad.Notes.TABLE_NAME, values, NotePad.Notes._ID + " = " + id, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /*
+     * Returns a percentile of sorted latencies in nanoseconds, in microseconds.
+     */
+    private static long percentileMicros(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+
+    /*
+     * Creates the values for a number of synthetic notes.
+     */
+    static ContentValues[] createNotes(int count) {
+        ContentValues[] notes = new ContentValues[count];
+        for (int index = 0; index < count; index++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + index);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is benchmark note " + index);
+            notes[index] = values;
+        }
+        return notes;
+    }
+
+    /*
+     * Logs the time an operation took for a number of notes, and its throughput.
+     */
+    static void report(String operation, int count, long elapsedMillis) {
+        Log.i(TAG, operation + ": " + count + " notes in " + elapsedMillis + " ms ("
+                + (count * 1000L / Math.max(1, elapsedMillis)) + " notes/s)");
+    }
+
+    /*
+     * Deletes every note, and purges them right away, so that the next measurement doesn't run
+     * against a table full of deleted notes, or race with the background purge.
+     */
+    private void deleteAllNotes() {
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        helper.getPurger().purge(helper.getWritableDatabase());
+    }
+}
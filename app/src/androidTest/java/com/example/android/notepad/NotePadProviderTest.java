@@ -16,23 +16,37 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.provider.LiveFolders;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Random;
 
 /*
  */
@@ -415,6 +429,445 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(TEST_NOTES[0].note, inputData[2]);
     }
 
+    /*
+     * Tests streaming a note larger than a CursorWindow, with multi-byte characters that span the
+     * boundaries between slices, and that the stream reports its exact length.
+     */
+    public void testStreamLargeNote() throws IOException {
+        StringBuilder note = new StringBuilder();
+        while (note.length() < 3 * 1024 * 1024) {
+            note.append("Line ").append(note.length()).append(" \u00e9\u00fc\u20ac\n");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large \u00e9");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        String expected = "Large \u00e9\n\n" + note + "\n";
+        byte[] expectedBytes = expected.getBytes("UTF-8");
+
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        assertEquals(expectedBytes.length, descriptor.getLength());
+
+        InputStream in = descriptor.createInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(expectedBytes.length);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(expected, new String(out.toByteArray(), "UTF-8"));
+    }
+
+    /*
+     * Tests the length column, the body-only stream and writing a note's text through a pipe,
+     * which the editor uses for large notes, with both plain and compressed notes.
+     */
+    public void testLargeNoteStreams() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 2 * NoteCodec.DEFAULT_THRESHOLD) {
+            text.append("Line ").append(text.length()).append(" \u00e9\u20ac\n");
+        }
+        String large = text.toString();
+        String small = "Small \u00e9";
+        String[] lengthProjection = { NotePad.Notes.COLUMN_NAME_LENGTH };
+        Bundle bodyOnly = new Bundle();
+        bodyOnly.putBoolean(NotePad.Streams.OPTION_BODY_ONLY, true);
+
+        for (String note : new String[] { small, large }) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Title");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+            Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+            // The length column is the length of the text in UTF-8, even when it is compressed.
+            Cursor cursor = mMockResolver.query(noteUri, lengthProjection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(0));
+            assertEquals(note.getBytes("UTF-8").length, cursor.getLong(0));
+            cursor.close();
+
+            // The body-only stream has only the text.
+            assertEquals(note, readStream(mMockResolver.openTypedAssetFileDescriptor(
+                    noteUri, MIME_TYPE_TEXT, bodyOnly)));
+
+            // A write replaces the text and the values given with it, and moves the version on.
+            String written = note + "\u00fc";
+            ContentValues writeValues = new ContentValues();
+            writeValues.put(NotePad.Notes.COLUMN_NAME_TITLE, "Written");
+            assertEquals(1, writeNote(NotePad.Notes.buildExpectedVersionUri(noteUri,
+                    NotePad.Notes.FIRST_VERSION), written, written.length(), writeValues));
+            assertEquals(written, queryNoteText(noteUri, new String[] {
+                    NotePad.Notes.COLUMN_NAME_NOTE }));
+            assertEquals(NotePad.Notes.FIRST_VERSION + 1, queryVersion(noteUri));
+
+            // A write based on an older version changes nothing.
+            assertEquals(0, writeNote(NotePad.Notes.buildExpectedVersionUri(noteUri,
+                    NotePad.Notes.FIRST_VERSION), note, note.length(), null));
+
+            // A text shorter or longer than its length is never written.
+            try {
+                writeNote(noteUri, note, note.length() + 1, null);
+                fail("Wrote a truncated note");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            try {
+                writeNote(noteUri, note, note.length() - 1, null);
+                fail("Wrote a note longer than its length");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+
+            // A length too long for a note is refused before anything is read.
+            try {
+                writeNote(noteUri, note, NotePadProvider.MAX_WRITE_CHARS + 1, null);
+                fail("Accepted a note longer than the longest write");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            assertEquals(written, queryNoteText(noteUri, new String[] {
+                    NotePad.Notes.COLUMN_NAME_NOTE }));
+        }
+
+        // Only a note ID URI can be written.
+        try {
+            writeNote(NotePad.Notes.CONTENT_URI, small, small.length(), null);
+            fail("Wrote to the notes URI");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Tests writing and updating a note of random text, which is too large for a cursor window
+     * even when compressed, so that its old text has to be read in slices for each revision.
+     */
+    public void testLargeRandomNote() throws IOException {
+        String[] texts = {
+            "Small",
+            randomText(new Random(1), 3 * 1024 * 1024),
+            randomText(new Random(2), 3 * 1024 * 1024),
+            randomText(new Random(3), 3 * 1024 * 1024)
+        };
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[0]);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        Bundle bodyOnly = new Bundle();
+        bodyOnly.putBoolean(NotePad.Streams.OPTION_BODY_ONLY, true);
+
+        // Writes the text through a pipe, as the editor does, then updates it with values, and
+        // then writes it again.
+        assertEquals(1, writeNote(noteUri, texts[1], texts[1].length(), null));
+        assertEquals(texts[1], readStream(mMockResolver.openTypedAssetFileDescriptor(
+                noteUri, MIME_TYPE_TEXT, bodyOnly)));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[2]);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(texts[2], readStream(mMockResolver.openTypedAssetFileDescriptor(
+                noteUri, MIME_TYPE_TEXT, bodyOnly)));
+        assertEquals(1, writeNote(noteUri, texts[3], texts[3].length(), null));
+        assertEquals(texts[3], readStream(mMockResolver.openTypedAssetFileDescriptor(
+                noteUri, MIME_TYPE_TEXT, bodyOnly)));
+
+        // Each revision rebuilds its text.
+        Cursor cursor = mMockResolver.query(NotePad.Revisions.buildRevisionsUri(noteId), null,
+                null, null, NotePad.Revisions._ID + " ASC");
+        assertEquals(texts.length, cursor.getCount());
+        int index = 0;
+        while (cursor.moveToNext()) {
+            assertEquals(texts[index++], getRevisionText(noteId,
+                    cursor.getLong(cursor.getColumnIndex(NotePad.Revisions._ID))));
+        }
+        cursor.close();
+    }
+
+    /*
+     * Tests that a query with a body limit only returns the text of notes shorter than the
+     * limit, whether they are stored as text or compressed.
+     */
+    public void testBodyLimit() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 2 * NoteCodec.DEFAULT_THRESHOLD) {
+            text.append("Line ").append(text.length()).append(" \u00e9\u20ac\n");
+        }
+        String[] notes = { "Small \u00e9", text.toString() };
+        String[] projection = { NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_LENGTH };
+
+        for (String note : notes) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+            Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            int length = note.getBytes("UTF-8").length;
+
+            // Below, at and above the length of the note
+            for (int limit = length - 1; limit <= length + 1; limit++) {
+                Cursor cursor = mMockResolver.query(
+                        NotePad.Notes.buildBodyLimitUri(noteUri, limit), projection, null, null,
+                        null);
+                assertTrue(cursor.moveToFirst());
+                if (length < limit) {
+                    assertEquals(note, cursor.getString(0));
+                } else {
+                    assertTrue(cursor.isNull(0));
+                }
+                assertEquals(length, cursor.getLong(1));
+                cursor.close();
+            }
+
+            // The same query without a limit still returns the text.
+            assertEquals(note, queryNoteText(noteUri, projection));
+
+            // A query with a limit that leaves out the note column, to check the length of a
+            // note before streaming it, returns the other columns.
+            Cursor cursor = mMockResolver.query(NotePad.Notes.buildBodyLimitUri(noteUri, 1),
+                    new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_LENGTH }, null,
+                    null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(ContentUris.parseId(noteUri), cursor.getLong(0));
+            assertEquals(length, cursor.getLong(1));
+            cursor.close();
+        }
+
+        // The limit must be a positive number.
+        for (String limit : new String[] { "0", "-1", "many" }) {
+            try {
+                mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                        .appendPath("1")
+                        .appendQueryParameter(NotePad.Notes.BODY_LIMIT_PARAMETER, limit)
+                        .build(), projection, null, null, null);
+                fail("Accepted a body limit of " + limit);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    /*
+     * Returns random text of at least the given number of bytes in UTF-8, which is mostly
+     * characters of three bytes and hardly compresses.
+     */
+    private static String randomText(Random random, int bytes) {
+        StringBuilder text = new StringBuilder(bytes / 3 + 1);
+        for (int length = 0; length < bytes; length += 3) {
+            // CJK ideographs, with a line break now and then
+            text.append(random.nextInt(64) == 0 ? '\n' : (char) (0x4e00 + random.nextInt(0x5000)));
+        }
+        return text.toString();
+    }
+
+    /*
+     * Tests exporting all the notes as an archive and importing them again, with and without
+     * compression.
+     */
+    public void testArchiveRoundTrip() throws IOException {
+        // More notes than an export reads at once, a note too long to be read with the others,
+        // a compressed one, one without a title, and a deleted one, which isn't exported.
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 2 * NoteCodec.DEFAULT_THRESHOLD) {
+            large.append("Line ").append(large.length()).append(" \u00e9\u20ac\n");
+        }
+        ArrayList<ContentValues> notes = new ArrayList<ContentValues>();
+        for (int i = 0; i < NotePadProvider.EXPORT_CHUNK_NOTES + 10; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note \u00fc " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Text of note " + i);
+            notes.add(values);
+        }
+        notes.get(1).put(NotePad.Notes.COLUMN_NAME_NOTE, large.substring(0, 8 * 1024));
+        notes.get(2).put(NotePad.Notes.COLUMN_NAME_NOTE, large.toString());
+        notes.get(3).remove(NotePad.Notes.COLUMN_NAME_TITLE);
+        notes.get(4).put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        for (int i = 0; i < notes.size(); i++) {
+            notes.get(i).put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, 1000L * i);
+            notes.get(i).put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1000L * i + 1);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, notes.get(i));
+        }
+        ContentValues deleted = new ContentValues();
+        deleted.put(NotePad.Notes.COLUMN_NAME_NOTE, "Deleted");
+        mMockResolver.delete(mMockResolver.insert(NotePad.Notes.CONTENT_URI, deleted), null,
+                null);
+        String[] exported = queryArchiveColumns();
+        assertEquals(notes.size(), exported.length);
+
+        byte[] archive = exportNotes(NotePad.Archive.CONTENT_URI);
+        byte[] compressed = exportNotes(NotePad.Archive.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Archive.COMPRESS_PARAMETER, "true")
+                .build());
+        assertTrue(compressed.length < archive.length / 2);
+
+        // The typed stream is the same archive.
+        assertEquals(NotePad.Archive.CONTENT_TYPE, mMockResolver.getType(
+                NotePad.Archive.CONTENT_URI));
+        AssetFileDescriptor afd = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Archive.CONTENT_URI, NotePad.Archive.CONTENT_TYPE, null);
+        assertEquals(AssetFileDescriptor.UNKNOWN_LENGTH, afd.getLength());
+        assertTrue(Arrays.equals(archive, readFully(afd.createInputStream())));
+
+        // Each archive restores the notes, with new IDs, alongside the notes already there.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        assertEquals(notes.size(), importNotes(archive));
+        assertTrue(Arrays.equals(exported, queryArchiveColumns()));
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        assertEquals(notes.size(), importNotes(compressed));
+        assertTrue(Arrays.equals(exported, queryArchiveColumns()));
+        assertEquals(notes.size(), importNotes(archive));
+        assertEquals(2 * notes.size(), queryArchiveColumns().length);
+
+        // A truncated archive, or a stream that isn't an archive, is rejected, and none of its
+        // notes are kept, even from the batches that were inserted before it failed.
+        byte[] both = exportNotes(NotePad.Archive.CONTENT_URI);
+        assertTrue(2 * notes.size() > NotePadProvider.IMPORT_BATCH_SIZE);
+        try {
+            importNotes(Arrays.copyOf(both, both.length - 1));
+            fail("Imported a truncated archive");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePadProvider.COLUMN_NAME_DELETED + " = "
+                        + NotePadProvider.DELETED_IMPORTING));
+        try {
+            importNotes("Not an archive".getBytes("UTF-8"));
+            fail("Imported a stream that isn't an archive");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(2 * notes.size(), queryArchiveColumns().length);
+
+        // The archive can only be read.
+        try {
+            getProvider().openFile(NotePad.Archive.CONTENT_URI, "w");
+            fail("Opened the archive for writing");
+        } catch (FileNotFoundException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Returns the columns an archive holds of each note, as a string per note, in creation
+     * order.
+     */
+    private String[] queryArchiveColumns() {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        }, null, null, NotePad.Notes.COLUMN_NAME_CREATE_DATE + " ASC");
+        try {
+            String[] notes = new String[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                notes[cursor.getPosition()] = cursor.getString(0) + "|" + cursor.getString(1)
+                        + "|" + cursor.getLong(2) + "|" + cursor.getLong(3);
+            }
+            return notes;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private byte[] exportNotes(Uri uri) throws IOException {
+        return readFully(new ParcelFileDescriptor.AutoCloseInputStream(
+                getProvider().openFile(uri, "r")));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Imports an archive through a pipe, fed from another thread.
+     */
+    private int importNotes(final byte[] archive) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Thread feeder = new Thread() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    try {
+                        out.write(archive);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    // The provider stopped reading.
+                }
+            }
+        };
+        feeder.start();
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(NotePad.Archive.KEY_ARCHIVE, pipe[0]);
+            return getProvider().call(NotePad.Archive.METHOD_IMPORT_NOTES, null, extras)
+                    .getInt(NotePad.Archive.KEY_COUNT);
+        } finally {
+            pipe[0].close();
+        }
+    }
+
+    /*
+     * Returns the number of revisions at a revisions URI.
+     */
+    private int countRevisions(Uri revisionsUri) {
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Writes the text of a note through a pipe, fed from another thread, as the editor does.
+     */
+    private int writeNote(Uri noteUri, final String text, int length, ContentValues values)
+            throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        Thread feeder = new Thread() {
+            @Override
+            public void run() {
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    try {
+                        out.write(text.getBytes("UTF-8"));
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                    // The provider stopped reading.
+                }
+            }
+        };
+        feeder.start();
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(NotePad.Streams.KEY_TEXT, pipe[0]);
+            extras.putInt(NotePad.Streams.KEY_LENGTH, length);
+            extras.putParcelable(NotePad.Streams.KEY_VALUES, values);
+            return getProvider().call(NotePad.Streams.METHOD_WRITE_NOTE, noteUri.toString(),
+                    extras).getInt(NotePad.Streams.KEY_COUNT);
+        } finally {
+            pipe[0].close();
+        }
+    }
+
     /*
      * Tests the provider's public API for querying data in the table, using the URI for
      * a dataset of records.
@@ -612,6 +1065,123 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
       assertEquals(inputNoteId, cursor.getInt(0));
     }
 
+    /*
+     * Tests paged queries on the notes URI. Following each page from the last note of the
+     * previous page should return every note exactly once, in the paged sort order.
+     */
+    public void testPagedQueries() {
+        final int PAGE_SIZE = 4;
+        final String[] PAGE_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        insertData();
+
+        // The test notes are modified a week apart, the last one most recently, so the paged sort
+        // order lists them from the last to the first.
+        int expectedIndex = TEST_NOTES.length - 1;
+        int pageCount = 0;
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER,
+                        Integer.toString(PAGE_SIZE))
+                .build();
+
+        while (true) {
+            Cursor cursor = mMockResolver.query(pageUri, PAGE_PROJECTION, null, null, null);
+            assertTrue(cursor.getCount() <= PAGE_SIZE);
+            if (cursor.getCount() == 0) {
+                break;
+            }
+            pageCount++;
+
+            while (cursor.moveToNext()) {
+                assertEquals(TEST_NOTES[expectedIndex].title, cursor.getString(1));
+                expectedIndex--;
+            }
+
+            // Builds the URI of the next page from the last note of this one.
+            cursor.moveToLast();
+            pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER,
+                            Integer.toString(PAGE_SIZE))
+                    .appendQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER,
+                            Long.toString(cursor.getLong(2)))
+                    .appendQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER,
+                            Long.toString(cursor.getLong(0)))
+                    .build();
+        }
+
+        // Asserts that every note was returned, in three pages: 4, 4 and 2 notes.
+        assertEquals(-1, expectedIndex);
+        assertEquals(3, pageCount);
+
+        // A page position without an ID is rejected.
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, "4")
+                    .appendQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER, "0")
+                    .build(), PAGE_PROJECTION, null, null, null);
+            fail("Expected query failure for an incomplete page position but it succeeded.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+    }
+
+    /*
+     * Tests full-text searches, using the search URI. The provider should return only the notes
+     * that contain the search terms, along with a snippet and a rank for each of them.
+     */
+    public void testSearch() {
+        // Builds a search URI for the word prefix "note5". Only the title of TEST_NOTES[5]
+        // contains a word starting with "note5".
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, "note5")
+                .build();
+
+        // Search subtest 1.
+        // A search against an empty table returns an empty cursor.
+        Cursor cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // Search subtest 2.
+        // After inserting the test data directly into the database, the search index has been
+        // kept up to date, so the search finds the one matching note.
+        insertData();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[5].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertTrue(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET) >= 0);
+        assertTrue(cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_RANK)) > 0);
+
+        // Search subtest 3.
+        // The prefix "note" matches every note, and search terms with FTS syntax characters
+        // in them don't cause an error.
+        searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, "\"note OR")
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, "note")
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Search subtest 4.
+        // Deleting a note removes it from the search index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[5].title });
+        searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, "note5")
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+    }
+
     /*
      *  Tests inserts into the data model.
      */
@@ -685,6 +1255,91 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         }
     }
 
+    /*
+     * Tests bulk inserts into the data model. All of the rows should be inserted, with the
+     * provider's defaults filled in for any missing columns.
+     */
+    public void testBulkInsert() {
+        // Builds a values map for each test note.
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            values[index] = TEST_NOTES[index].getContentValues();
+        }
+
+        // Leaves out the title of the last note, so that the provider supplies its default.
+        values[values.length - 1].remove(NotePad.Notes.COLUMN_NAME_TITLE);
+
+        // Inserts the notes and asserts that all of them were inserted.
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Asserts that the default title was used for the note without one.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IS NOT NULL", null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // A bulk insert into any URI but the notes URI is rejected.
+        try {
+            mMockResolver.bulkInsert(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1), values);
+            fail("Expected bulk insert failure for a note ID URI but it succeeded.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+    }
+
+    /*
+     * Tests batches of operations. A batch is applied in a single transaction, so if any of its
+     * operations fails, none of them take effect.
+     */
+    public void testApplyBatch() throws OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+
+        // Batch subtest 1.
+        // Inserts a note, then updates it through a back reference to the insert's result.
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[0].getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Updated in a batch")
+                .withSelection(NotePad.Notes._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .build());
+        ContentProviderResult[] results = getProvider().applyBatch(operations);
+
+        assertEquals(2, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+
+        Cursor cursor = mMockResolver.query(results[0].uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Updated in a batch",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+
+        // Batch subtest 2.
+        // A batch whose last operation fails rolls back its earlier operations.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(TEST_NOTES[1].getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Never applied")
+                .withExpectedCount(100)
+                .build());
+        try {
+            getProvider().applyBatch(operations);
+            fail("Expected batch failure for a wrong expected count but it succeeded.");
+        } catch (OperationApplicationException e) {
+            // succeeded, so do nothing.
+        }
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+    }
+
     /*
      * Tests deletions from the data model.
      */
@@ -740,6 +1395,87 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(0, cursor.getCount());
     }
 
+    /*
+     * Tests that a delete only marks notes deleted, that deleted notes are left out of every
+     * query and write, and that the purge removes them.
+     */
+    public void testSoftDelete() {
+        insertData();
+        String where = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        String[] whereArgs = { TEST_NOTES[1].title };
+
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI, where, whereArgs));
+
+        // The row is still in the table, but no query returns it.
+        assertEquals(TEST_NOTES.length,
+                DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Notes.LIVE_FOLDER_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length - 1, cursor.getCount());
+        cursor.close();
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, TEST_NOTES[1].title)
+                .build();
+        cursor = mMockResolver.query(searchUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // A deleted note can't be updated or deleted again.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed");
+        assertEquals(0, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, where,
+                whereArgs));
+        assertEquals(0, mMockResolver.delete(NotePad.Notes.CONTENT_URI, where, whereArgs));
+
+        // A deleted note's ID can be reused before it is purged.
+        long noteId = DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Notes._ID + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + where, whereArgs);
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        values.put(NotePad.Notes._ID, noteId);
+        assertEquals(noteUri, mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+
+        // The purge removes the deleted notes, and their search index entries.
+        NotePurger purger = getProvider().getOpenHelperForTest().getPurger();
+        purger.purge(mDb);
+        assertFalse(NotePurger.hasDeletedNotes(mDb));
+        assertEquals(TEST_NOTES.length - 1,
+                DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertEquals(TEST_NOTES.length - 1, DatabaseUtils.queryNumEntries(mDb,
+                NotePadProvider.FTS_TABLE_NAME + "_docsize"));
+
+        // A client can't hide a note through the deleted column, when it inserts or updates it.
+        ContentValues hidden = new ContentValues();
+        hidden.put(NotePad.Notes.COLUMN_NAME_TITLE, "Hidden");
+        hidden.put(NotePadProvider.COLUMN_NAME_DELETED, 1);
+        Uri hiddenUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, hidden);
+        hidden.put(NotePadProvider.COLUMN_NAME_DELETED, NotePadProvider.DELETED_IMPORTING);
+        assertEquals(1, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                new ContentValues[] { hidden }));
+        hidden.put(NotePadProvider.COLUMN_NAME_DELETED, 1);
+        assertEquals(1, mMockResolver.update(hiddenUri, hidden, null, null));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length + 1, cursor.getCount());
+        cursor.close();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePadProvider.COLUMN_NAME_DELETED + " != 0"));
+
+        // An update of the deleted column alone has nothing to update.
+        ContentValues deleted = new ContentValues();
+        deleted.put(NotePadProvider.COLUMN_NAME_DELETED, 1);
+        try {
+            mMockResolver.update(hiddenUri, deleted, null, null);
+            fail("Updated the deleted column");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
     /*
      * Tests updates to the data model.
      */
@@ -790,6 +1526,1047 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests the version column, and updates that only happen if the note is still at the version
+     * the client expects.
+     */
+    public void testVersions() throws OperationApplicationException {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First draft");
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 100);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // A new note starts at the first version, whatever the client asked for.
+        assertEquals(NotePad.Notes.FIRST_VERSION, queryVersion(noteUri));
+
+        // Every update moves the note to its next version, including an update whose text is
+        // the same as before, and one that asks for a version of its own.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(2, queryVersion(noteUri));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First draft");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(3, queryVersion(noteUri));
+        values.put(NotePad.Notes.COLUMN_NAME_VERSION, 100);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(4, queryVersion(noteUri));
+
+        // An update at the expected version succeeds, for the text and for other columns.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second draft");
+        assertEquals(1, mMockResolver.update(
+                NotePad.Notes.buildExpectedVersionUri(noteUri, 4), values, null, null));
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Drafts");
+        assertEquals(1, mMockResolver.update(
+                NotePad.Notes.buildExpectedVersionUri(noteUri, 5), values, null, null));
+        assertEquals(6, queryVersion(noteUri));
+
+        // An update at an older version changes nothing, and records no revision.
+        Uri revisionsUri = NotePad.Revisions.buildRevisionsUri(ContentUris.parseId(noteUri));
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        int revisions = cursor.getCount();
+        cursor.close();
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Stale draft");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Stale");
+        assertEquals(0, mMockResolver.update(
+                NotePad.Notes.buildExpectedVersionUri(noteUri, 5), values, null, null));
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Second draft",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+        assertEquals("Drafts",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertEquals(6, cursor.getLong(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION)));
+        cursor.close();
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(revisions, cursor.getCount());
+        cursor.close();
+
+        // The expected version is combined with the client's own selection.
+        assertEquals(0, mMockResolver.update(NotePad.Notes.buildExpectedVersionUri(noteUri, 6),
+                values, NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Other" }));
+        assertEquals(6, queryVersion(noteUri));
+
+        // An update of the notes directory moves every note it updates to its next version.
+        Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1000L);
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        assertEquals(7, queryVersion(noteUri));
+        assertEquals(2, queryVersion(otherUri));
+
+        // In a batch, a conflict fails the batch through the expected count.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(otherUri)
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Never applied")
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(
+                        NotePad.Notes.buildExpectedVersionUri(noteUri, 6))
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Never applied")
+                .withExpectedCount(1)
+                .build());
+        try {
+            getProvider().applyBatch(operations);
+            fail("Expected batch failure for a stale version but it succeeded.");
+        } catch (OperationApplicationException e) {
+            // succeeded, so do nothing.
+        }
+        assertEquals(2, queryVersion(otherUri));
+
+        // The expected version only applies to a single note, and must be a number.
+        try {
+            mMockResolver.update(NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.EXPECTED_VERSION_PARAMETER, "1")
+                    .build(), values, null, null);
+            fail("Expected IllegalArgumentException for a notes URI but it succeeded.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+        try {
+            mMockResolver.update(noteUri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.EXPECTED_VERSION_PARAMETER, "latest")
+                    .build(), values, null, null);
+            fail("Expected IllegalArgumentException for an invalid version but it succeeded.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+    }
+
+    /**
+     * Returns the version of a note, read twice so that the second read comes from the note
+     * cache, which must agree with the database.
+     */
+    private long queryVersion(Uri noteUri) {
+        long version = -1;
+        for (int i = 0; i < 2; i++) {
+            Cursor cursor = mMockResolver.query(noteUri, null, null, null, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                long read = cursor.getLong(
+                        cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION));
+                if (i > 0) {
+                    assertEquals(version, read);
+                }
+                version = read;
+            } finally {
+                cursor.close();
+            }
+        }
+        return version;
+    }
+
+    /*
+     * Tests the preview column, and that list queries return it instead of the note body.
+     */
+    public void testPreview() {
+        StringBuilder note = new StringBuilder("  First line\n\n  second\tline  ");
+        while (note.length() < NotePad.Notes.PREVIEW_LENGTH * 3) {
+            note.append(" more text");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // A query with no projection returns the list columns, without the body.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(NotePad.Notes.LIST_PROJECTION.length, cursor.getColumnCount());
+        assertEquals(-1, cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertTrue(cursor.moveToFirst());
+        String preview = cursor.getString(
+                cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_PREVIEW));
+        cursor.close();
+
+        // The preview is the start of the note on one line, cut to the maximum length.
+        assertEquals(NotePad.Notes.PREVIEW_LENGTH, preview.length());
+        assertTrue(preview.startsWith("First line second line more text"));
+
+        // Updating the text updates the preview.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_PREVIEW }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        cursor.close();
+
+        // Live folders show the preview as each note's description.
+        cursor = mMockResolver.query(NotePad.Notes.LIVE_FOLDER_URI,
+                new String[] { LiveFolders.DESCRIPTION }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Short", cursor.getString(0));
+        cursor.close();
+
+        assertNull(NoteAnalyzer.makePreview(null));
+        assertEquals("", NoteAnalyzer.makePreview(" \n "));
+    }
+
+    /*
+     * Tests that the provider derives the title and word count of a note as it writes the note.
+     */
+    public void testDerivedColumns() {
+        String[] projection = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_WORD_COUNT
+        };
+
+        // A null title is made from the start of the note.
+        ContentValues values = new ContentValues();
+        values.putNull(NotePad.Notes.COLUMN_NAME_TITLE);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Groceries for the week: milk, eggs and bread");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Groceries for the week: milk,", cursor.getString(0));
+        assertEquals(8, cursor.getInt(1));
+        cursor.close();
+
+        // Updating the text updates the word count, and a given title is kept.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Shopping");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "milk");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Shopping", cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+
+        // Without the text, a null title can't be derived, and leaves the title as it was.
+        values.clear();
+        values.putNull(NotePad.Notes.COLUMN_NAME_TITLE);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1L);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Shopping", cursor.getString(0));
+        cursor.close();
+
+        // A long title is cut back to the last space before the limit.
+        assertEquals("The quick brown fox jumps",
+                NoteAnalyzer.makeTitle("The quick brown fox jumps over the lazy dog"));
+        assertEquals("", NoteAnalyzer.makeTitle(""));
+
+        // Words are runs of characters other than whitespace, and a word split between two
+        // slices is counted once.
+        assertEquals(0, NoteAnalyzer.countWords(null));
+        assertEquals(0, NoteAnalyzer.countWords(" \n\t "));
+        assertEquals(3, NoteAnalyzer.countWords("one, two-two\nthree"));
+        NoteAnalyzer.WordCounter counter = new NoteAnalyzer.WordCounter();
+        counter.add("one tw");
+        counter.add("o three ");
+        counter.add("four");
+        assertEquals(4, counter.getCount());
+    }
+
+    /*
+     * Tests that updates and deletes of single notes reuse their compiled statements, whatever
+     * the note, and still apply the caller's where clause.
+     */
+    public void testNoteStatementCache() {
+        NoteStatements statements = getProvider().getNoteStatementsForTest();
+        Uri[] noteUris = new Uri[3];
+        for (int i = 0; i < noteUris.length; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            noteUris[i] = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUris[0], values, null, null));
+        int compiled = statements.getCompileCount();
+        for (Uri noteUri : noteUris) {
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+        assertEquals(compiled, statements.getCompileCount());
+
+        // The caller's where clause is kept apart from the ID, even if it has an OR in it.
+        String where = NotePad.Notes.COLUMN_NAME_TITLE + " = ? OR "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        assertEquals(0, mMockResolver.delete(noteUris[0], where,
+                new String[] { "Note 0", "Note 1" }));
+        assertEquals(1, mMockResolver.delete(noteUris[0], where,
+                new String[] { "Renamed", "Note 1" }));
+        assertEquals(0, mMockResolver.delete(noteUris[0], null, null));
+
+        // Deletes of other notes reuse the statement.
+        compiled = statements.getCompileCount();
+        assertEquals(1, mMockResolver.delete(noteUris[1], where,
+                new String[] { "Renamed", "Note 1" }));
+        assertEquals(compiled, statements.getCompileCount());
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that queries of the same shape share their SQL, whatever the note, page or search
+     * terms they are for, and that the URI's values and the caller's arguments are bound in the
+     * right order.
+     */
+    public void testQueryPlanCache() {
+        insertData();
+        QueryPlanCache plans = getProvider().getQueryPlansForTest();
+        String[] projection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                null);
+        long[] noteIds = new long[cursor.getCount()];
+        String[] titles = new String[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            noteIds[i] = cursor.getLong(0);
+            titles[i] = cursor.getString(1);
+        }
+        cursor.close();
+        assertEquals(1, plans.size());
+        assertCacheLookups(QueryPlanCache.METRICS_NAME, 0, 1);
+
+        // Every note ID query with the same selection shares one plan.
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        for (int i = 0; i < noteIds.length; i++) {
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                    noteIds[i]);
+            cursor = mMockResolver.query(noteUri, projection, selection,
+                    new String[] { titles[i] }, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(noteIds[i], cursor.getLong(0));
+            cursor.close();
+
+            cursor = mMockResolver.query(noteUri, projection, selection,
+                    new String[] { titles[(i + 1) % titles.length] }, null);
+            assertEquals(0, cursor.getCount());
+            cursor.close();
+        }
+        assertEquals(2, plans.size());
+        assertCacheLookups(QueryPlanCache.METRICS_NAME, 2 * noteIds.length - 1, 2);
+
+        // Searches for different terms share one plan, and a different projection has its own.
+        for (String terms : new String[] { "note1", "note2", "\"note OR" }) {
+            cursor = mMockResolver.query(NotePad.Notes.SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, terms)
+                    .build(), null, null, null, null);
+            cursor.close();
+        }
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(noteIds.length, cursor.getCount());
+        cursor.close();
+        assertEquals(4, plans.size());
+    }
+
+    /*
+     * Tests that note ID queries and streams are answered from the note cache once the note has
+     * been read, and that writes to the note invalidate it.
+     */
+    public void testNoteCache() throws IOException {
+        String[] projection = {
+            NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE
+        };
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First text");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        getProvider().call(NotePad.Metrics.METHOD_RESET_METRICS, null, null);
+
+        // The first query reads the note and caches it; the next ones are answered from it.
+        assertEquals("First text", queryNoteText(noteUri, projection));
+        assertEquals("First text", queryNoteText(noteUri, projection));
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached", cursor.getString(0));
+        cursor.close();
+        assertCacheLookups(2, 1);
+
+        // The stream is written from the cache, too.
+        AssetFileDescriptor afd = mMockResolver.openTypedAssetFileDescriptor(noteUri,
+                "text/plain", null);
+        assertEquals("Cached\n\nFirst text\n", readStream(afd));
+        assertCacheLookups(3, 1);
+
+        // An update drops the note from the cache.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second text");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals("Second text", queryNoteText(noteUri, projection));
+        assertCacheLookups(3, 2);
+
+        // So does a delete.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that the note cache is bounded by the characters it holds, dropping the least
+     * recently used notes first, and never caches a note read during an invalidation.
+     */
+    public void testNoteCacheBound() {
+        NoteCache cache = new NoteCache(100, new ProviderMetrics());
+        for (long noteId = 1; noteId <= 4; noteId++) {
+            cache.put(noteId, createCacheEntry(noteId, 25), cache.getGeneration());
+        }
+        assertEquals(100, cache.getCharCount());
+
+        // Uses note 1, so that note 2 is the least recently used, and the next to be dropped.
+        assertNotNull(cache.get(1));
+        cache.put(5, createCacheEntry(5, 25), cache.getGeneration());
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(1));
+        assertNotNull(cache.get(5));
+        assertEquals(100, cache.getCharCount());
+
+        // A note larger than a quarter of the cache isn't cached.
+        cache.put(7, createCacheEntry(7, 30), cache.getGeneration());
+        assertNull(cache.get(7));
+
+        // A note read before an invalidation isn't cached.
+        long generation = cache.getGeneration();
+        cache.invalidate(3);
+        cache.put(6, createCacheEntry(6, 10), generation);
+        assertNull(cache.get(6));
+        assertNull(cache.get(3));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.getCharCount());
+    }
+
+    private String queryNoteText(Uri noteUri, String[] projection) {
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertCacheLookups(long hits, long misses) {
+        assertCacheLookups(NoteCache.METRICS_NAME, hits, misses);
+    }
+
+    private void assertCacheLookups(String name, long hits, long misses) {
+        Bundle metrics = getProvider().call(NotePad.Metrics.METHOD_GET_METRICS, null, null);
+        Bundle cache = metrics.getBundle(NotePad.Metrics.KEY_CACHES).getBundle(name);
+        assertEquals(hits, cache.getLong(NotePad.Metrics.KEY_HITS));
+        assertEquals(misses, cache.getLong(NotePad.Metrics.KEY_MISSES));
+    }
+
+    private static String readStream(AssetFileDescriptor afd) throws IOException {
+        InputStream in = afd.createInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            assertEquals(afd.getLength(), out.size());
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * Creates a cache entry for a note whose title and text have the given number of characters
+     * in all.
+     */
+    private static NoteCache.Entry createCacheEntry(long noteId, int chars) {
+        MatrixCursor cursor = new MatrixCursor(NoteCache.COLUMNS);
+        char[] text = new char[chars];
+        Arrays.fill(text, 'x');
+        cursor.addRow(new Object[] {
+                noteId, "", new String(text), 0L, 0L, null, 1L, null, 1L });
+        cursor.moveToFirst();
+        return new NoteCache.Entry(cursor);
+    }
+
+    /*
+     * Tests that the provider records its operations in the metrics it returns from call(), and
+     * that resetting the metrics clears them.
+     */
+    public void testMetrics() {
+        getProvider().call(NotePad.Metrics.METHOD_RESET_METRICS, null, null);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Metered note");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Changed note");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        // Deleting a note that doesn't exist is recorded, with no rows.
+        assertEquals(0, mMockResolver.delete(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 999), null, null));
+
+        Bundle metrics = getProvider().call(NotePad.Metrics.METHOD_GET_METRICS, null, null);
+        Bundle operations = metrics.getBundle(NotePad.Metrics.KEY_OPERATIONS);
+        assertOperation(operations, "insert/notes", 1, 1);
+        assertOperation(operations, "query/notes", 1, 0);
+        assertOperation(operations, "fill/notes", 1, 1);
+        assertOperation(operations, "update/note_id", 1, 1);
+        assertOperation(operations, "delete/note_id", 1, 0);
+
+        // The update of the text waited for the lock once, to record a revision.
+        assertTrue(metrics.getLong(NotePad.Metrics.KEY_LOCK_WAITS) >= 1);
+        assertEquals(ProviderMetrics.BUCKET_COUNT,
+                metrics.getLongArray(NotePad.Metrics.KEY_BUCKET_BOUNDS_MICROS).length);
+
+        getProvider().call(NotePad.Metrics.METHOD_RESET_METRICS, null, null);
+        metrics = getProvider().call(NotePad.Metrics.METHOD_GET_METRICS, null, null);
+        assertTrue(metrics.getBundle(NotePad.Metrics.KEY_OPERATIONS).isEmpty());
+        assertEquals(0, metrics.getLong(NotePad.Metrics.KEY_LOCK_WAITS));
+
+        // Latencies are bucketed by powers of two microseconds.
+        assertEquals(0, ProviderMetrics.bucketOf(999));
+        assertEquals(1, ProviderMetrics.bucketOf(1000));
+        assertEquals(3, ProviderMetrics.bucketOf(7000));
+        assertEquals(ProviderMetrics.BUCKET_COUNT - 1, ProviderMetrics.bucketOf(Long.MAX_VALUE));
+    }
+
+    /*
+     * Asserts that an operation was recorded a number of times, with a number of rows.
+     */
+    private static void assertOperation(Bundle operations, String key, long count, long rows) {
+        Bundle operation = operations.getBundle(key);
+        assertNotNull("No metrics for " + key, operation);
+        assertEquals(count, operation.getLong(NotePad.Metrics.KEY_COUNT));
+        assertEquals(rows, operation.getLong(NotePad.Metrics.KEY_ROWS));
+        long[] buckets = operation.getLongArray(NotePad.Metrics.KEY_BUCKETS);
+        long total = 0;
+        for (long bucket : buckets) {
+            total += bucket;
+        }
+        assertEquals(count, total);
+    }
+
+    /*
+     * Tests that the provider's database is opened with the default connection settings.
+     */
+    public void testDatabaseTuning() {
+        assertEquals(DatabaseTuning.JOURNAL_MODE_WAL, DatabaseUtils.stringForQuery(mDb,
+                "PRAGMA journal_mode", null).toUpperCase(Locale.US));
+
+        // PRAGMA synchronous reports the level as a number. NORMAL is 1.
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "PRAGMA synchronous", null));
+        assertEquals(-DatabaseTuning.DEFAULT.cacheSizeKb,
+                DatabaseUtils.longForQuery(mDb, "PRAGMA cache_size", null));
+    }
+
+    /*
+     * Tests that the provider reports the size of its database, and that maintenance gives back
+     * the space deleted notes took.
+     */
+    public void testStorageMaintenance() {
+        Bundle stats = getProvider().call(NotePad.Storage.METHOD_GET_STORAGE_STATS, null, null);
+        assertTrue(stats.getLong(NotePad.Storage.KEY_PAGE_SIZE) > 0);
+        assertTrue(stats.getLong(NotePad.Storage.KEY_PAGE_COUNT) > 0);
+
+        // A maintenance call never rebuilds a database that doesn't use incremental auto-vacuum
+        // yet, and the background run only converts one with enough free pages.
+        DatabaseMaintenance maintenance = getProvider().getOpenHelperForTest().getMaintenance();
+        mDb.execSQL("PRAGMA auto_vacuum = 0");
+        mDb.execSQL("VACUUM");
+        stats = getProvider().call(NotePad.Storage.METHOD_RUN_MAINTENANCE, null, null);
+        assertFalse(stats.getBoolean(NotePad.Storage.KEY_INCREMENTAL_VACUUM));
+        assertTrue(stats.getLong(NotePad.Storage.KEY_LAST_MAINTENANCE_MILLIS) > 0);
+        assertFalse(DatabaseMaintenance.needsConversion(mDb));
+        maintenance.convert(mDb);
+        stats = getProvider().call(NotePad.Storage.METHOD_GET_STORAGE_STATS, null, null);
+        assertTrue(stats.getBoolean(NotePad.Storage.KEY_INCREMENTAL_VACUUM));
+
+        // Fills about a thousand pages with notes.
+        char[] text = new char[4000];
+        Arrays.fill(text, 'x');
+        ContentValues[] values = new ContentValues[1000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(NotePad.Notes.COLUMN_NAME_NOTE, new String(text) + i);
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values);
+        long fullPages = getProvider().call(NotePad.Storage.METHOD_GET_STORAGE_STATS, null, null)
+                .getLong(NotePad.Storage.KEY_PAGE_COUNT);
+
+        // Purging the deleted notes gives their pages back, up to the limit of one run.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        getProvider().getOpenHelperForTest().getPurger().purge(mDb);
+        stats = getProvider().call(NotePad.Storage.METHOD_RUN_MAINTENANCE, null, null);
+        assertEquals(0, stats.getLong(NotePad.Storage.KEY_FREELIST_COUNT));
+        assertEquals(0.0, stats.getDouble(NotePad.Storage.KEY_FRAGMENTATION));
+        assertTrue(stats.getLong(NotePad.Storage.KEY_PAGE_COUNT) < fullPages / 2);
+
+        // A reclaim is bounded.
+        assertEquals(0, DatabaseMaintenance.reclaim(mDb, 0));
+
+        assertEquals(3018000, DatabaseMaintenance.versionCode("3.18.0"));
+        assertEquals(3008010, DatabaseMaintenance.versionCode("3.8.10.2"));
+    }
+
+    /*
+     * Tests that large notes are stored compressed, and read, searched, streamed and revised
+     * as if they were not.
+     */
+    public void testCompression() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 2 * NoteCodec.DEFAULT_THRESHOLD; i++) {
+            text.append("12:00:").append(i % 60).append(" I/Sync: fetched page ").append(i)
+                    .append(" of the inbox\n");
+        }
+        text.append("zebrafish");
+        String large = text.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Log");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+
+        // The note is stored as compressed data, much smaller than its text.
+        String stored = " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID
+                + " = " + noteId;
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " IS NULL" + stored, null));
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT length("
+                + NoteCodec.COLUMN_NAME_DATA + ")" + stored, null) < large.length() / 4);
+
+        // Queries, with and without the note cache, return the text.
+        getProvider().getNoteCacheForTest().invalidateAll();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(0));
+        assertEquals(large, cursor.getString(0));
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(large, cursor.getString(
+                cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE)));
+        assertEquals(NoteAnalyzer.countWords(large), cursor.getInt(
+                cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_WORD_COUNT)));
+        cursor.close();
+
+        // The text is searchable, also after the title changes.
+        assertEquals(1, countSearchResults("zebrafish"));
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, countSearchResults("zebrafish"));
+        assertEquals(1, countSearchResults("renamed"));
+
+        // The stream decompresses the text, with or without the note cache.
+        String expected = "Renamed\n\n" + large + "\n";
+        for (int i = 0; i < 2; i++) {
+            getProvider().getNoteCacheForTest().invalidateAll();
+            AssetFileDescriptor descriptor =
+                    mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+            assertEquals(expected.getBytes("UTF-8").length, descriptor.getLength());
+            InputStream in = descriptor.createInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            assertEquals(expected, new String(out.toByteArray(), "UTF-8"));
+        }
+
+        // An edit is compressed again, and revised against the decompressed text.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large + " and a seahorse");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, countSearchResults("seahorse"));
+        cursor = mMockResolver.query(NotePad.Revisions.buildRevisionsUri(noteId), null, null,
+                null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+
+        // A note that becomes small is stored as text again, and its old text is unindexed.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT "
+                + NoteCodec.COLUMN_NAME_DATA + " IS NULL" + stored, null));
+        assertEquals(0, countSearchResults("zebrafish"));
+        assertEquals(1, countSearchResults("short"));
+
+        // The codec leaves small notes, and every note when there is no codec, as text.
+        assertNull(NoteCodec.DEFAULT.encode("Short"));
+        assertNull(NoteCodec.NONE.encode(large));
+        byte[] data = NoteCodec.DEFAULT.encode(large);
+        assertEquals(large.length(), NoteCodec.getDecodedLength(data));
+        assertEquals(large, NoteCodec.decode(data));
+    }
+
+    /*
+     * Tests that where SQLite supports it, the search index keeps no copy of the text of the
+     * notes, and that the index entries of notes stored as text and compressed are replaced
+     * when they change and removed when they are purged.
+     */
+    public void testSearchIndexContent() {
+        if (!NoteSearchIndex.isSupported()) {
+            return;
+        }
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM sqlite_master"
+                + " WHERE name = ?", new String[] { NotePadProvider.FTS_TABLE_NAME + "_content" }));
+        assertTrue(NoteSearchIndex.hasExternalContent(mDb));
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 2 * NoteCodec.DEFAULT_THRESHOLD; i++) {
+            text.append("Line ").append(i).append(" of the log\n");
+        }
+        String large = text.toString();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Kestrel");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "apple banana");
+        Uri textUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Heron");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large + "zebrafish");
+        Uri compressedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(1, countIndexEntries("banana"));
+        assertEquals(1, countIndexEntries("zebrafish"));
+
+        // A match in the text of a compressed note has the note's preview as its excerpt.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, "zebrafish")
+                .build(), null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NoteAnalyzer.makePreview(large + "zebrafish"), cursor.getString(
+                cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET)));
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_RANK)));
+        cursor.close();
+
+        // Changes to the title or the text replace the index entries, leaving none of the old
+        // words behind.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "cherry");
+        assertEquals(1, mMockResolver.update(textUri, values, null, null));
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Egret");
+        assertEquals(1, mMockResolver.update(compressedUri, values, null, null));
+        assertEquals(0, countIndexEntries("heron"));
+        assertEquals(1, countIndexEntries("egret"));
+        assertEquals(1, countIndexEntries("zebrafish"));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large + "seahorse");
+        assertEquals(1, mMockResolver.update(compressedUri, values, null, null));
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Osprey");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes._ID + " IN (?, ?)", new String[] {
+                        textUri.getLastPathSegment(), compressedUri.getLastPathSegment() }));
+        assertEquals(0, countIndexEntries("banana"));
+        assertEquals(0, countIndexEntries("zebrafish"));
+        assertEquals(0, countIndexEntries("egret"));
+        assertEquals(1, countIndexEntries("cherry"));
+        assertEquals(1, countIndexEntries("seahorse"));
+        assertEquals(2, countIndexEntries("osprey"));
+
+        // The purge removes the index entries, and nothing is left staged.
+        assertEquals(1, mMockResolver.delete(textUri, null, null));
+        assertEquals(1, mMockResolver.delete(compressedUri, null, null));
+        getProvider().getOpenHelperForTest().getPurger().purge(mDb);
+        assertEquals(0, countIndexEntries("cherry"));
+        assertEquals(0, countIndexEntries("seahorse"));
+        assertEquals(0, countIndexEntries("osprey"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteSearchIndex.STAGED_TABLE_NAME));
+    }
+
+    /**
+     * Returns the number of entries in the search index that match the given word, including
+     * any left behind by notes that no longer exist, which a search never returns.
+     */
+    private long countIndexEntries(String word) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT count(*) FROM "
+                + NotePadProvider.FTS_TABLE_NAME + " WHERE " + NotePadProvider.FTS_TABLE_NAME
+                + " MATCH ?", new String[] { word });
+    }
+
+    /**
+     * Returns the number of notes a full-text search for the given terms finds.
+     */
+    private int countSearchResults(String terms) {
+        Uri searchUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, terms)
+                .build();
+        Cursor cursor = mMockResolver.query(searchUri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the revision history recorded by updates to the text of a note.
+     */
+    public void testRevisions() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "The quick brown fox");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        Uri revisionsUri = NotePad.Revisions.buildRevisionsUri(noteId);
+
+        // A new note has no revisions.
+        Cursor cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Makes a series of edits. The first also records the text before it.
+        String[] texts = {
+            "The quick brown fox",
+            "The quick brown fox jumps",
+            "The quick red fox jumps",
+            "A quick red fox jumps over",
+            "",
+            "Something else entirely"
+        };
+        for (int i = 1; i < texts.length; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[i]);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+
+        // Saving the same text again doesn't record a revision.
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+        // Lists the revisions, oldest first, and checks that each rebuilds the right text.
+        cursor = mMockResolver.query(revisionsUri, null, null, null,
+                NotePad.Revisions._ID + " ASC");
+        assertEquals(texts.length, cursor.getCount());
+        int index = 0;
+        long latestRevision = -1;
+        while (cursor.moveToNext()) {
+            latestRevision = cursor.getLong(cursor.getColumnIndex(NotePad.Revisions._ID));
+            assertEquals(texts[index++], getRevisionText(noteId, latestRevision));
+        }
+        cursor.close();
+
+        // The note reports its latest revision.
+        cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_REVISION }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(latestRevision, cursor.getLong(0));
+        cursor.close();
+
+        // An unknown revision returns an empty cursor.
+        cursor = mMockResolver.query(NotePad.Revisions.buildRevisionUri(noteId, 12345),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // A revision only stores the change, not the text.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[texts.length - 1] + "!");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT length("
+                + NoteRevisions.COLUMN_NAME_DATA + ") FROM " + NotePad.Revisions.TABLE_NAME
+                + " ORDER BY " + NotePad.Revisions._ID + " DESC LIMIT 1", null)
+                < texts[texts.length - 1].length());
+
+        // Records enough edits to compact the history, and checks that only the newest
+        // revisions are kept and that each of them still rebuilds.
+        ArrayList<String> edited = new ArrayList<String>();
+        StringBuilder text = new StringBuilder(texts[texts.length - 1]);
+        int edits = NoteRevisions.MAX_REVISIONS + NoteRevisions.COMPACTION_SLACK;
+        for (int i = 0; i < edits; i++) {
+            text.append(' ').append(i);
+            edited.add(text.toString());
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            mMockResolver.update(noteUri, values, null, null);
+        }
+        cursor = mMockResolver.query(revisionsUri, null, null, null,
+                NotePad.Revisions._ID + " DESC");
+        assertTrue(cursor.getCount() >= NoteRevisions.MAX_REVISIONS);
+        assertTrue(cursor.getCount() < NoteRevisions.MAX_REVISIONS
+                + NoteRevisions.COMPACTION_SLACK);
+        for (int i = edited.size() - 1; cursor.moveToNext(); i--) {
+            assertEquals(edited.get(i), getRevisionText(noteId, cursor.getLong(0)));
+        }
+        cursor.close();
+
+        // Updating the text of many notes at once records a revision of each, and keeps their
+        // histories.
+        ContentValues other = new ContentValues();
+        other.put(NotePad.Notes.COLUMN_NAME_NOTE, "Another note");
+        long otherId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, other));
+        int revisionCount = countRevisions(revisionsUri);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Bulk text");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        assertEquals(revisionCount + 1, countRevisions(revisionsUri));
+        cursor = mMockResolver.query(revisionsUri, null, null, null,
+                NotePad.Revisions._ID + " DESC");
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Bulk text", getRevisionText(noteId, cursor.getLong(0)));
+        assertTrue(cursor.moveToNext());
+        assertEquals(edited.get(edited.size() - 1), getRevisionText(noteId, cursor.getLong(0)));
+        cursor.close();
+        Uri otherRevisionsUri = NotePad.Revisions.buildRevisionsUri(otherId);
+        assertEquals(2, countRevisions(otherRevisionsUri));
+        cursor = mMockResolver.query(otherRevisionsUri, null, null, null,
+                NotePad.Revisions._ID + " ASC");
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Another note", getRevisionText(otherId, cursor.getLong(0)));
+        cursor.close();
+
+        // Saving the same text again to many notes doesn't record a revision either.
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        assertEquals(revisionCount + 1, countRevisions(revisionsUri));
+
+        // Deleting the note deletes its revisions.
+        mMockResolver.delete(noteUri, null, null);
+        cursor = mMockResolver.query(revisionsUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Revisions are read-only.
+        try {
+            mMockResolver.delete(revisionsUri, null, null);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Tests that deltas rebuild the text they were made from.
+     */
+    public void testRevisionDeltas() {
+        String[][] pairs = {
+            { "", "" },
+            { "", "abc" },
+            { "abc", "" },
+            { "abcdef", "abXdef" },
+            { "aaaa", "aaaaaa" },
+            { "aaaaaa", "aaaa" },
+            { "hello, world", "hello,, world," },
+            { "a\ud83d\ude00b", "a\ud83d\ude01b" },
+            { "a\ud800\udc00b", "a\ud801\udc00b" },
+            { "\ud83d\ude00", "\ud83d\ude00\ud83d\ude00" },
+        };
+        for (String[] pair : pairs) {
+            String delta = NoteRevisions.encodeDelta(pair[0], pair[1]);
+            assertEquals(pair[1], NoteRevisions.applyDelta(pair[0], delta));
+        }
+
+        // A delta only stores the changed span.
+        assertEquals("2,3,X", NoteRevisions.encodeDelta("abcdef", "abXdef"));
+
+        // The span never splits a surrogate pair, whichever half of it changed.
+        assertEquals("1,3,\ud83d\ude01",
+                NoteRevisions.encodeDelta("a\ud83d\ude00b", "a\ud83d\ude01b"));
+        assertEquals("1,3,\ud801\udc00",
+                NoteRevisions.encodeDelta("a\ud800\udc00b", "a\ud801\udc00b"));
+    }
+
+    /*
+     * Tests that edits to the emoji of a note, which only change one half of their surrogate
+     * pairs, are recorded as revisions that each rebuild their text.
+     */
+    public void testEmojiRevisions() {
+        String[] texts = {
+            "Smile \ud83d\ude00 and wave \ud83d\udc4b",
+            "Smile \ud83d\ude01 and wave \ud83d\udc4b",
+            "Smile \ud83d\ude01 and wave \ud83d\udc4c",
+            "\ud800\udc00 \ud83d\ude01 and wave \ud83d\udc4c",
+            "\ud801\udc00 \ud83d\ude01\ud83d\ude01 and wave",
+        };
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[0]);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+        for (int i = 1; i < texts.length; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[i]);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+
+        Cursor cursor = mMockResolver.query(NotePad.Revisions.buildRevisionsUri(noteId), null,
+                null, null, NotePad.Revisions._ID + " ASC");
+        assertEquals(texts.length, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(texts[i], getRevisionText(noteId,
+                    cursor.getLong(cursor.getColumnIndex(NotePad.Revisions._ID))));
+        }
+        cursor.close();
+    }
+
+    /*
+     * Tests that revisions recorded before database version 12, as snapshots and deltas forward
+     * from them, are converted to deltas back from the current text.
+     */
+    public void testConvertForwardRevisions() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Four");
+        long noteId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                values));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Lost");
+        long lostId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                values));
+
+        // The history of the first note, ending in a text the note was changed from without a
+        // revision. The second note's history can't be rebuilt, since it starts with a delta.
+        String[] texts = { "One", "One two", "Three", "Three!" };
+        insertForwardRevision(noteId, true, texts[0]);
+        insertForwardRevision(noteId, false, NoteRevisions.encodeDelta(texts[0], texts[1]));
+        insertForwardRevision(noteId, true, texts[2]);
+        insertForwardRevision(noteId, false, NoteRevisions.encodeDelta(texts[2], texts[3]));
+        insertForwardRevision(lostId, false, NoteRevisions.encodeDelta("Lo", "Lost"));
+
+        NoteRevisions.convertForwardHistories(mDb);
+
+        Cursor cursor = mMockResolver.query(NotePad.Revisions.buildRevisionsUri(noteId), null,
+                null, null, NotePad.Revisions._ID + " ASC");
+        assertEquals(texts.length + 1, cursor.getCount());
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals(0, cursor.getInt(
+                    cursor.getColumnIndex(NotePad.Revisions.COLUMN_NAME_SNAPSHOT)));
+            assertEquals(i < texts.length ? texts[i] : "Four",
+                    getRevisionText(noteId, cursor.getLong(0)));
+        }
+        cursor.close();
+        cursor = mMockResolver.query(NotePad.Revisions.buildRevisionsUri(lostId), null, null,
+                null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Inserts a revision in the format of database version 11: a snapshot of the text, or a
+     * delta forward from the previous revision.
+     */
+    private void insertForwardRevision(long noteId, boolean snapshot, String data) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, System.currentTimeMillis());
+        values.put(NotePad.Revisions.COLUMN_NAME_SNAPSHOT, snapshot ? 1 : 0);
+        values.put(NoteRevisions.COLUMN_NAME_DATA, data);
+        mDb.insertOrThrow(NotePad.Revisions.TABLE_NAME, null, values);
+    }
+
+    /*
+     * Reads the text of a note at one of its revisions.
+     */
+    private String getRevisionText(long noteId, long revisionId) {
+        Cursor cursor = mMockResolver.query(NotePad.Revisions.buildRevisionUri(noteId, revisionId),
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
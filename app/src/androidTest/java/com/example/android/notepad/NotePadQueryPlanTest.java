@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the query plan SQLite chooses for each of the provider's query URIs and sort orders,
+ * and for the query an export runs for each chunk of notes, with EXPLAIN QUERY PLAN. A query
+ * must never scan the whole notes or revisions table, and a list in one of the sort orders the
+ * indexes serve must be read from an index in order, rather than sorted in a temporary B-tree.
+ *
+ * Each check is made both without the statistics of ANALYZE, as in a new database, and with
+ * them, as after the provider's maintenance has run.
+ */
+public class NotePadQueryPlanTest extends ProviderTestCase2<NotePadProvider> {
+
+    // The number of notes in the test database. Every tenth one is deleted.
+    private static final int NOTE_COUNT = 200;
+
+    // A plan step that reads the whole notes or revisions table, without an index. Older
+    // versions of SQLite write "SCAN TABLE notes", newer ones "SCAN notes".
+    private static final Pattern FULL_SCAN =
+            Pattern.compile("^SCAN (TABLE )?(" + NotePad.Notes.TABLE_NAME + "|"
+                    + NotePad.Revisions.TABLE_NAME + ")\\b(?!.*INDEX)(?!.*PRIMARY KEY).*");
+
+    // A plan step that sorts the results
+    private static final String TEMP_SORT = "USE TEMP B-TREE FOR ORDER BY";
+
+    // The sort orders of the notes lists that an index serves
+    private static final String[] INDEXED_SORT_ORDERS = {
+        null,
+        NotePad.Notes.DEFAULT_SORT_ORDER,
+        NotePad.Notes.PAGED_SORT_ORDER,
+        NotePad.Notes.TITLE_SORT_ORDER,
+        NotePad.Notes.TITLE_SORT_ORDER.replace("ASC", "DESC"),
+        NotePad.Notes.CREATED_SORT_ORDER,
+        NotePad.Notes.CREATED_SORT_ORDER.replace("DESC", "ASC"),
+    };
+
+    private static final String[] LIST_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    private SQLiteDatabase mDb;
+    private long mNoteId;
+
+    public NotePadQueryPlanTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+
+        // Inserts the notes, deletes every tenth one, and gives one of them a few revisions.
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "This is note " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, 1000L * i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1000L * (NOTE_COUNT - i));
+            Uri noteUri = getMockContentResolver().insert(NotePad.Notes.CONTENT_URI, values);
+            if (i % 10 == 0) {
+                getMockContentResolver().delete(noteUri, null, null);
+            } else {
+                mNoteId = ContentUris.parseId(noteUri);
+            }
+        }
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, mNoteId);
+        for (int i = 0; i < 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Revised " + i);
+            getMockContentResolver().update(noteUri, values, null, null);
+        }
+    }
+
+    /*
+     * Tests the plans of the provider's queries in a database without statistics.
+     */
+    public void testPlansWithoutStatistics() {
+        assertPlans();
+    }
+
+    /*
+     * Tests the plans of the provider's queries once the database has been analyzed.
+     */
+    public void testPlansWithStatistics() {
+        mDb.execSQL("ANALYZE");
+        assertPlans();
+    }
+
+    private void assertPlans() {
+        // The notes list, in each sort order, and filtered by title and by creation date.
+        for (String sortOrder : INDEXED_SORT_ORDERS) {
+            assertPlan(NotePad.Notes.CONTENT_URI, LIST_PROJECTION, null, null, sortOrder, true);
+        }
+        assertPlan(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note 5" },
+                NotePad.Notes.TITLE_SORT_ORDER, true);
+        assertPlan(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                NotePad.Notes.COLUMN_NAME_CREATE_DATE + " > ?", new String[] { "100000" },
+                NotePad.Notes.CREATED_SORT_ORDER, true);
+        assertPlan(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note 5" },
+                null, false);
+
+        // The first and a later page of the paged list.
+        Uri pageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, "20")
+                .build();
+        assertPlan(pageUri, LIST_PROJECTION, null, null, null, true);
+        assertPlan(pageUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER, "100000")
+                .appendQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER, "100")
+                .build(), LIST_PROJECTION, null, null, null, true);
+
+        // The live folder.
+        assertPlan(NotePad.Notes.LIVE_FOLDER_URI, null, null, null, null, true);
+
+        // A single note. The selection keeps the query from being answered by the note cache.
+        assertPlan(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, mNoteId),
+                LIST_PROJECTION, NotePad.Notes.COLUMN_NAME_TITLE + " IS NOT NULL", null, null,
+                false);
+
+        // A search, which is sorted by rank, so only has to run the search once and then look
+        // up each result by its ID.
+        String[] plan = assertPlan(NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, "note")
+                .build(), null, null, null, null, false);
+        assertTrue(Arrays.toString(plan), plan[0].contains(NotePadProvider.FTS_TABLE_NAME));
+
+        // The revisions of a note.
+        assertPlan(NotePad.Revisions.buildRevisionsUri(mNoteId), null, null, null, null, true);
+
+        // A chunk of an export, which must be read from the primary key in ID order rather
+        // than sorted, since an export runs one query for every chunk of notes.
+        assertSqlPlan(NotePadProvider.EXPORT_CHUNK_SQL, true);
+    }
+
+    /**
+     * Runs a query through the provider, and then explains the SQL it ran.
+     *
+     * @param sortedByIndex True if the results must come from an index already in order.
+     * @return The steps of the plan.
+     */
+    private String[] assertPlan(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, boolean sortedByIndex) {
+        Cursor cursor = getMockContentResolver().query(uri, projection, selection,
+                selectionArgs, sortOrder);
+        assertTrue(uri + " returned no rows", cursor.getCount() > 0);
+        cursor.close();
+        return assertSqlPlan(getProvider().getQueryPlansForTest().getLastUsedSqlForTest(),
+                sortedByIndex);
+    }
+
+    /**
+     * Explains a query, and checks its plan.
+     *
+     * @param sortedByIndex True if the results must come from an index already in order.
+     * @return The steps of the plan.
+     */
+    private String[] assertSqlPlan(String sql, boolean sortedByIndex) {
+        ArrayList<String> steps = new ArrayList<String>();
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, placeholderArgs(sql));
+        try {
+            int detail = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                steps.add(plan.getString(detail));
+            }
+        } finally {
+            plan.close();
+        }
+
+        String message = sql + " -> " + steps;
+        for (String step : steps) {
+            assertFalse("Full scan in " + message, FULL_SCAN.matcher(step).matches());
+            if (sortedByIndex) {
+                assertFalse("Sort in " + message, step.contains(TEMP_SORT));
+            }
+        }
+        return steps.toArray(new String[steps.size()]);
+    }
+
+    /*
+     * Returns an argument for each placeholder in the SQL. The plan doesn't depend on the values,
+     * and the provider's SQL has no question marks in string literals.
+     */
+    private static String[] placeholderArgs(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        String[] args = new String[count];
+        Arrays.fill(args, "1");
+        return args;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class tests how NotificationBatcher merges the change notifications of the provider.
+ * The notifications are recorded by a resolver instead of being sent to observers, and the
+ * batcher is flushed directly instead of waiting for its window to end.
+ */
+public class NotificationBatcherTest extends AndroidTestCase {
+
+    // The notifications sent by the batcher under test.
+    private RecordingResolver mResolver;
+
+    private NotificationBatcher mBatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = new RecordingResolver();
+        mBatcher = new NotificationBatcher(mResolver, new Handler(Looper.getMainLooper()));
+    }
+
+    /*
+     * Tests that repeated changes to the same note are sent once, followed by the live folder.
+     */
+    public void testMergesRepeatedChanges() {
+        Uri note1 = noteUri(1);
+        Uri note2 = noteUri(2);
+
+        mBatcher.notifyChange(note1);
+        mBatcher.notifyChange(note2);
+        mBatcher.notifyChange(note1);
+        mBatcher.flush();
+
+        assertEquals(Arrays.asList(note1, note2, NotePad.Notes.LIVE_FOLDER_URI),
+                mResolver.uris);
+    }
+
+    /*
+     * Tests that a flush with nothing pending sends nothing.
+     */
+    public void testNothingPending() {
+        mBatcher.flush();
+        assertTrue(mResolver.uris.isEmpty());
+
+        mBatcher.notifyChange(noteUri(1));
+        mBatcher.flush();
+        mResolver.uris.clear();
+
+        // The previous flush sent everything.
+        mBatcher.flush();
+        assertTrue(mResolver.uris.isEmpty());
+    }
+
+    /*
+     * Tests that a change to all notes replaces the changes to single notes.
+     */
+    public void testAllNotes() {
+        mBatcher.notifyChange(noteUri(1));
+        mBatcher.notifyChange(NotePad.Notes.CONTENT_URI);
+        mBatcher.notifyChange(noteUri(2));
+        mBatcher.flush();
+
+        assertEquals(Arrays.asList(NotePad.Notes.CONTENT_URI, NotePad.Notes.LIVE_FOLDER_URI),
+                mResolver.uris);
+    }
+
+    /*
+     * Tests that up to MAX_URIS changed notes are each sent on their own.
+     */
+    public void testSeparateNotes() {
+        ArrayList<Uri> uris = new ArrayList<Uri>();
+        for (int i = 1; i <= NotificationBatcher.MAX_URIS; i++) {
+            uris.add(noteUri(i));
+        }
+        mBatcher.notifyChanges(uris);
+        mBatcher.flush();
+
+        uris.add(NotePad.Notes.LIVE_FOLDER_URI);
+        assertEquals(uris, mResolver.uris);
+    }
+
+    /*
+     * Tests that more than MAX_URIS changed notes are sent as a change to all notes.
+     */
+    public void testTooManyNotes() {
+        ArrayList<Uri> uris = new ArrayList<Uri>();
+        for (int i = 1; i <= NotificationBatcher.MAX_URIS + 1; i++) {
+            uris.add(noteUri(i));
+        }
+        mBatcher.notifyChanges(uris);
+        mBatcher.flush();
+
+        assertEquals(Arrays.asList(NotePad.Notes.CONTENT_URI, NotePad.Notes.LIVE_FOLDER_URI),
+                mResolver.uris);
+    }
+
+    private static Uri noteUri(long noteId) {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+    }
+
+    /**
+     * A resolver that records the URIs it is notified of, in order.
+     */
+    private static class RecordingResolver extends MockContentResolver {
+        final List<Uri> uris = new ArrayList<Uri>();
+
+        @Override
+        public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+            synchronized (uris) {
+                uris.add(uri);
+            }
+        }
+    }
+}
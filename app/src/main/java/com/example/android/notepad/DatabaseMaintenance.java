@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the size of the Note Pad database in check. Editing and deleting notes frees pages inside
+ * the database file, which SQLite reuses but never gives back to the file system on its own, so
+ * after heavy churn the file stays as large as it ever was.
+ *
+ * The database uses incremental auto-vacuum, which lets free pages be given back a few at a
+ * time, without rewriting the whole file. DatabaseTuning turns it on for new databases. A database
+ * created before it, or on a version of Android that configures the database after creating it,
+ * is converted with a single full VACUUM, which rewrites the whole file. Only a scheduled run
+ * converts the database, and only once at least {@link #CONVERT_MIN_FREE_PAGES} of it are free;
+ * until then SQLite simply reuses the free pages.
+ *
+ * Maintenance runs on a background thread, at most once every {@link #INTERVAL_MILLIS}, a short
+ * while after the database is opened. Each run gives back at most {@link #MAX_PAGES_PER_RUN}
+ * free pages, and then refreshes the statistics the query planner chooses indexes with. A run
+ * asked for by {@link NotePad.Storage#METHOD_RUN_MAINTENANCE} does the same, but never converts
+ * the database.
+ *
+ * {@link NotePad.Storage} describes the statistics returned by {@link #getStats(SQLiteDatabase)}
+ * and {@link #maintain(SQLiteDatabase)}.
+ */
+final class DatabaseMaintenance implements Runnable {
+    // Used for debugging and logging
+    private static final String TAG = "DatabaseMaintenance";
+
+    /**
+     * The least time between two scheduled maintenance runs, in milliseconds
+     */
+    static final long INTERVAL_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * How long after the database is opened a scheduled run starts, in milliseconds, so that it
+     * doesn't slow down the app as it starts
+     */
+    static final long START_DELAY_MILLIS = 30 * 1000;
+
+    /**
+     * The most free pages given back by one run, or by one purge of deleted notes
+     */
+    static final int MAX_PAGES_PER_RUN = 2048;
+
+    /**
+     * The fewest free pages worth converting the database to incremental auto-vacuum for, 4 MB
+     * with the default page size
+     */
+    static final int CONVERT_MIN_FREE_PAGES = 1024;
+
+    /**
+     * The number of free pages given back by each incremental vacuum step
+     */
+    static final int VACUUM_STEP_PAGES = 128;
+
+    /**
+     * The value of PRAGMA auto_vacuum for incremental auto-vacuum
+     */
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // The first SQLite version with PRAGMA optimize, 3.18.0, as compared by versionCode()
+    private static final long OPTIMIZE_VERSION = 3018000;
+
+    // How long a run waits between vacuum steps, to leave the database to the provider
+    private static final long STEP_PAUSE_MILLIS = 20;
+
+    // Where the time of the last run is kept
+    private static final String PREFERENCES_NAME = "note_pad_maintenance";
+    private static final String PREFERENCE_LAST_RUN = "last_run";
+
+    private final Context mContext;
+    private final SQLiteOpenHelper mHelper;
+
+    // True once a scheduled run has been started. Guarded by this.
+    private boolean mStarted;
+
+    /**
+     * @param context The context the time of the last run is kept in.
+     * @param helper Opens the database to maintain.
+     */
+    DatabaseMaintenance(Context context, SQLiteOpenHelper helper) {
+        mContext = context;
+        mHelper = helper;
+    }
+
+    /**
+     * Starts a run on a background thread, after {@link #START_DELAY_MILLIS}, if the last run
+     * was more than {@link #INTERVAL_MILLIS} ago. Starts at most one run for each instance.
+     */
+    synchronized void startIfDue() {
+        if (mStarted) {
+            return;
+        }
+        long lastRun = getLastRunMillis();
+        long now = System.currentTimeMillis();
+        if (lastRun <= now && now - lastRun < INTERVAL_MILLIS) {
+            return;
+        }
+        mStarted = true;
+        new Thread(this, TAG).start();
+    }
+
+    /**
+     * Runs maintenance on the background thread started by {@link #startIfDue()}.
+     */
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        SystemClock.sleep(START_DELAY_MILLIS);
+        try {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            if (needsConversion(db)) {
+                convert(db);
+            }
+            maintain(db);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Database maintenance failed", e);
+        } catch (IllegalStateException e) {
+            // The database was closed during maintenance
+            Log.w(TAG, "Database maintenance failed", e);
+        }
+    }
+
+    /**
+     * Tests whether the database should be converted to incremental auto-vacuum: it doesn't use
+     * it yet, and at least {@link #CONVERT_MIN_FREE_PAGES} of it are free.
+     */
+    static boolean needsConversion(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL
+                && DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null)
+                        >= CONVERT_MIN_FREE_PAGES;
+    }
+
+    /**
+     * Converts the database to incremental auto-vacuum, on the calling thread. The mode of an
+     * existing database only changes when it is rebuilt by VACUUM, which gives back every free
+     * page as well, but rewrites the whole file.
+     */
+    synchronized void convert(SQLiteDatabase db) {
+        long start = SystemClock.elapsedRealtime();
+        pragma(db, "auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+        db.execSQL("VACUUM");
+        Log.i(TAG, "Converted to incremental auto-vacuum in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Runs maintenance now, on the calling thread: gives back up to {@link #MAX_PAGES_PER_RUN}
+     * free pages, if the database uses incremental auto-vacuum, and then refreshes the query
+     * planner's statistics. Never rebuilds the database.
+     *
+     * @return The statistics after the run, with the number of pages it gave back.
+     */
+    synchronized Bundle maintain(SQLiteDatabase db) {
+        long start = SystemClock.elapsedRealtime();
+        long pagesBefore = getPageCount(db);
+
+        reclaim(db, MAX_PAGES_PER_RUN);
+        optimize(db);
+
+        mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(PREFERENCE_LAST_RUN, System.currentTimeMillis())
+                .commit();
+
+        Bundle stats = getStats(db);
+        long reclaimed = Math.max(0, pagesBefore - getPageCount(db));
+        stats.putLong(NotePad.Storage.KEY_PAGES_RECLAIMED, reclaimed);
+        Log.i(TAG, "Gave back " + reclaimed + " pages in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return stats;
+    }
+
+    /**
+     * Returns the size of the database, how much of it is free, and when maintenance last ran.
+     */
+    Bundle getStats(SQLiteDatabase db) {
+        long pageCount = getPageCount(db);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+
+        Bundle stats = new Bundle();
+        stats.putLong(NotePad.Storage.KEY_PAGE_SIZE,
+                DatabaseUtils.longForQuery(db, "PRAGMA page_size", null));
+        stats.putLong(NotePad.Storage.KEY_PAGE_COUNT, pageCount);
+        stats.putLong(NotePad.Storage.KEY_FREELIST_COUNT, freePages);
+        stats.putDouble(NotePad.Storage.KEY_FRAGMENTATION,
+                pageCount > 0 ? (double) freePages / pageCount : 0);
+        stats.putBoolean(NotePad.Storage.KEY_INCREMENTAL_VACUUM,
+                DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                        == AUTO_VACUUM_INCREMENTAL);
+        stats.putLong(NotePad.Storage.KEY_LAST_MAINTENANCE_MILLIS, getLastRunMillis());
+        return stats;
+    }
+
+    /**
+     * Gives free pages back to the file system, {@link #VACUUM_STEP_PAGES} at a time, if the
+     * database uses incremental auto-vacuum. Otherwise does nothing, since the free pages can
+     * only be given back by a full VACUUM.
+     *
+     * @param maxPages The most pages to give back.
+     * @return The number of pages given back.
+     */
+    static long reclaim(SQLiteDatabase db, int maxPages) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            return 0;
+        }
+        long reclaimed = 0;
+        long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        while (free > 0 && reclaimed < maxPages) {
+            pragma(db, "incremental_vacuum("
+                    + Math.min(VACUUM_STEP_PAGES, maxPages - reclaimed) + ")");
+
+            // Stops if a step gave nothing back, rather than trying forever.
+            long left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            if (left >= free) {
+                break;
+            }
+            reclaimed += free - left;
+            free = left;
+            SystemClock.sleep(STEP_PAUSE_MILLIS);
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Refreshes the statistics the query planner uses. PRAGMA optimize only analyzes the tables
+     * whose statistics are out of date, but needs SQLite 3.18; older versions run a full ANALYZE.
+     */
+    static void optimize(SQLiteDatabase db) {
+        String version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null);
+        if (versionCode(version) >= OPTIMIZE_VERSION) {
+            pragma(db, "optimize");
+        } else {
+            db.execSQL("ANALYZE");
+        }
+    }
+
+    /**
+     * Converts a SQLite version such as "3.8.10.2" to a number that sorts in the same order,
+     * such as 3008010.
+     */
+    static long versionCode(String version) {
+        String[] parts = version.split("\\.");
+        long code = 0;
+        for (int i = 0; i < 3; i++) {
+            code *= 1000;
+            if (i < parts.length) {
+                try {
+                    code += Integer.parseInt(parts[i]);
+                } catch (NumberFormatException e) {
+                    // A part that isn't a number counts as 0
+                }
+            }
+        }
+        return code;
+    }
+
+    private long getLastRunMillis() {
+        return mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+                .getLong(PREFERENCE_LAST_RUN, 0);
+    }
+
+    private static long getPageCount(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+    }
+
+    /**
+     * Runs a PRAGMA as a query, since execSQL() doesn't allow PRAGMAs that may return rows, and
+     * steps through all of its rows, which some PRAGMAs need to finish their work.
+     */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            while (c.moveToNext()) {
+                // Each row is a step of the PRAGMA
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * The connection settings that NotePadProvider.DatabaseHelper applies each time it opens the
+ * database: the journal mode, how often SQLite syncs to storage, and how much memory it may use
+ * to cache and map the database file. A new database is also set up for incremental
+ * auto-vacuum; see {@link DatabaseMaintenance}.
+ *
+ * In write-ahead logging (WAL) mode, readers see the last committed data while a write is in
+ * progress, instead of waiting for it to finish, so a long update doesn't block the notes list
+ * or other clients of the provider. With the default rollback journal, every query waits for
+ * the current write.
+ *
+ * The framework opens extra read-only connections for WAL databases, and only configures them
+ * with its own defaults, so the cache and mmap sizes apply to the primary connection, which
+ * does all of the writes.
+ */
+final class DatabaseTuning {
+
+    /*
+     * Journal modes
+     */
+
+    /**
+     * Write-ahead logging. Readers don't wait for writers.
+     */
+    static final String JOURNAL_MODE_WAL = "WAL";
+
+    /**
+     * The default rollback journal, deleted at the end of each transaction.
+     */
+    static final String JOURNAL_MODE_DELETE = "DELETE";
+
+    /**
+     * A rollback journal truncated, rather than deleted, at the end of each transaction.
+     */
+    static final String JOURNAL_MODE_TRUNCATE = "TRUNCATE";
+
+    /*
+     * Synchronous levels
+     */
+
+    /**
+     * Syncs at every commit. The safest level, and the slowest.
+     */
+    static final String SYNCHRONOUS_FULL = "FULL";
+
+    /**
+     * Syncs less often. In WAL mode a power loss can roll back the last commits, but can't
+     * corrupt the database.
+     */
+    static final String SYNCHRONOUS_NORMAL = "NORMAL";
+
+    /**
+     * The settings the provider uses: WAL, with the synchronous level WAL is designed for.
+     */
+    static final DatabaseTuning DEFAULT =
+            new DatabaseTuning(JOURNAL_MODE_WAL, SYNCHRONOUS_NORMAL, 2048, 0);
+
+    /**
+     * The settings of a database that isn't tuned at all, for comparison.
+     */
+    static final DatabaseTuning ROLLBACK_JOURNAL =
+            new DatabaseTuning(JOURNAL_MODE_DELETE, SYNCHRONOUS_FULL, 2048, 0);
+
+    /**
+     * The journal mode, one of the JOURNAL_MODE constants.
+     */
+    final String journalMode;
+
+    /**
+     * The synchronous level, one of the SYNCHRONOUS constants.
+     */
+    final String synchronous;
+
+    /**
+     * The size of the page cache, in kilobytes.
+     */
+    final int cacheSizeKb;
+
+    /**
+     * The number of bytes of the database file that SQLite may memory-map, or 0 to read it with
+     * normal I/O. The platform may cap this or ignore it.
+     */
+    final long mmapSize;
+
+    DatabaseTuning(String journalMode, String synchronous, int cacheSizeKb, long mmapSize) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.cacheSizeKb = cacheSizeKb;
+        this.mmapSize = mmapSize;
+    }
+
+    /**
+     * Applies the settings to an open database. Must be called outside of a transaction, since
+     * SQLite can't change the journal mode inside one.
+     */
+    void apply(SQLiteDatabase db) {
+        if (JOURNAL_MODE_WAL.equals(journalMode)) {
+            db.enableWriteAheadLogging();
+        } else {
+            db.disableWriteAheadLogging();
+            pragma(db, "journal_mode = " + journalMode);
+        }
+        pragma(db, "synchronous = " + synchronous);
+
+        // Only changes a database that has no tables yet, since the settings are applied before
+        // the database is created. DatabaseMaintenance converts older databases.
+        pragma(db, "auto_vacuum = " + DatabaseMaintenance.AUTO_VACUUM_INCREMENTAL);
+
+        // A negative cache size is in kilobytes rather than pages.
+        pragma(db, "cache_size = -" + cacheSizeKb);
+        pragma(db, "mmap_size = " + mmapSize);
+    }
+
+    /**
+     * Runs a PRAGMA. Some PRAGMAs return their new value as a row, which execSQL() doesn't allow,
+     * so they run as queries. An unknown PRAGMA, such as mmap_size on an older SQLite, is
+     * silently ignored by SQLite.
+     */
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "journal_mode=" + journalMode + ", synchronous=" + synchronous
+                + ", cache_size=" + cacheSizeKb + "KB, mmap_size=" + mmapSize;
+    }
+}
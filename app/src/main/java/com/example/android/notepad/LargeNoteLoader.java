@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ClipDescription;
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Loads the text of a large note into the editor in chunks, from the note's body stream, so that
+ * the note is never read from the provider as a whole. The first chunk is about a screen of
+ * text, so that it shows right away; the rest follows in larger chunks, each handed to the UI
+ * thread once the previous one has been shown, so that the UI thread is never flooded.
+ *
+ * The text is read on a background thread. The callbacks run on the UI thread.
+ */
+final class LargeNoteLoader implements Runnable {
+    // Used for debugging and logging
+    private static final String TAG = "LargeNoteLoader";
+
+    /**
+     * The number of characters in the first chunk, about a screen of text
+     */
+    static final int FIRST_CHUNK_CHARS = 4 * 1024;
+
+    /**
+     * The number of characters in each of the other chunks
+     */
+    static final int CHUNK_CHARS = 64 * 1024;
+
+    /**
+     * Receives the text of the note.
+     */
+    interface Callbacks {
+        /**
+         * Called with each chunk of the text, in order.
+         */
+        void onChunk(String chunk);
+
+        /**
+         * Called once all of the text has been delivered.
+         */
+        void onLoaded();
+
+        /**
+         * Called if the text could not be read. Some of it may have been delivered.
+         */
+        void onLoadFailed();
+    }
+
+    private final ContentResolver mResolver;
+    private final Uri mNoteUri;
+    private final Callbacks mCallbacks;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    // Set by cancel(), after which no more callbacks are made
+    private volatile boolean mCancelled;
+
+    // True while a chunk is waiting for the UI thread. Guarded by this.
+    private boolean mDelivering;
+
+    LargeNoteLoader(ContentResolver resolver, Uri noteUri, Callbacks callbacks) {
+        mResolver = resolver;
+        mNoteUri = noteUri;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Starts loading the text on a background thread.
+     */
+    void start() {
+        new Thread(this, TAG).start();
+    }
+
+    /**
+     * Stops loading. No callbacks are made after this returns. Call on the UI thread.
+     */
+    void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reads the text on the background thread started by {@link #start()}.
+     */
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        Bundle opts = new Bundle();
+        opts.putBoolean(NotePad.Streams.OPTION_BODY_ONLY, true);
+        try {
+            AssetFileDescriptor afd = mResolver.openTypedAssetFileDescriptor(mNoteUri,
+                    ClipDescription.MIMETYPE_TEXT_PLAIN, opts);
+            if (afd == null) {
+                throw new IOException("No stream for " + mNoteUri);
+            }
+            Reader reader = new InputStreamReader(afd.createInputStream(), "UTF-8");
+            try {
+                char[] buffer = new char[CHUNK_CHARS];
+                int chunkSize = FIRST_CHUNK_CHARS;
+                int count;
+                while (!mCancelled && (count = fill(reader, buffer, chunkSize)) > 0) {
+                    deliver(new String(buffer, 0, count));
+                    chunkSize = CHUNK_CHARS;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load " + mNoteUri, e);
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallbacks.onLoadFailed();
+                }
+            });
+            return;
+        }
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCallbacks.onLoaded();
+            }
+        });
+    }
+
+    /**
+     * Reads up to count characters, stopping early only at the end of the text.
+     *
+     * @return The number of characters read, or 0 at the end of the text.
+     */
+    private static int fill(Reader reader, char[] buffer, int count) throws IOException {
+        int read = 0;
+        int n;
+        while (read < count && (n = reader.read(buffer, read, count - read)) > 0) {
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Hands a chunk to the UI thread, and waits until it has been delivered.
+     */
+    private void deliver(final String chunk) {
+        synchronized (this) {
+            mDelivering = true;
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCallbacks.onChunk(chunk);
+                synchronized (LargeNoteLoader.this) {
+                    mDelivering = false;
+                    LargeNoteLoader.this.notifyAll();
+                }
+            }
+        });
+        synchronized (this) {
+            while (mDelivering && !mCancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a callback on the UI thread, unless loading has been cancelled by then.
+     */
+    private void post(final Runnable callback) {
+        mUiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    callback.run();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+/**
+ * Derives the columns of a note that are computed from its text: the title of a note saved
+ * without one, the preview, and the word count. NotePadProvider stores them as the note is
+ * written, so that the notes list, the live folder and search read them as plain columns instead
+ * of computing them from the text of every note they show.
+ *
+ * The title and the preview only read the start of the note. The word count reads all of it,
+ * once, without copying it. A {@link WordCounter} counts a note read in slices, so that a large
+ * note never has to be in memory all at once.
+ */
+final class NoteAnalyzer {
+
+    /**
+     * The most characters in a title derived from the note text
+     */
+    static final int TITLE_LENGTH = 30;
+
+    private NoteAnalyzer() {
+    }
+
+    /**
+     * Sets the derived columns from the note column of a map of values, if it has one. A title
+     * key with a null value asks for the title to be derived from the note too. Without a note
+     * column, a null title can't be derived, so it is removed from the map.
+     */
+    static void putDerivedColumns(ContentValues values) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                    && values.get(NotePad.Notes.COLUMN_NAME_TITLE) == null) {
+                values.remove(NotePad.Notes.COLUMN_NAME_TITLE);
+            }
+            return;
+        }
+
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                && values.get(NotePad.Notes.COLUMN_NAME_TITLE) == null) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, makeTitle(note != null ? note : ""));
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_PREVIEW, makePreview(note));
+        values.put(NotePad.Notes.COLUMN_NAME_WORD_COUNT, countWords(note));
+    }
+
+    /**
+     * Makes the title of a note from its text: the start of the text, at most
+     * {@link #TITLE_LENGTH} characters long. A longer text is cut back to the last space, so that
+     * the title doesn't end in the middle of a word.
+     */
+    static String makeTitle(String text) {
+
+        // Get the note's length
+        int length = text.length();
+
+        // Sets the title by getting a substring of the text that is 31 characters long
+        // or the number of characters in the note plus one, whichever is smaller.
+        String title = text.substring(0, Math.min(TITLE_LENGTH, length));
+
+        // If the resulting length is more than 30 characters, chops off any
+        // trailing spaces
+        if (length > TITLE_LENGTH) {
+            int lastSpace = title.lastIndexOf(' ');
+            if (lastSpace > 0) {
+                title = title.substring(0, lastSpace);
+            }
+        }
+        return title;
+    }
+
+    /**
+     * Makes the preview of a note. The preview is the start of the note, with each run of
+     * whitespace, including line breaks, collapsed to one space, and cut to
+     * {@link NotePad.Notes#PREVIEW_LENGTH} characters. Only as much of the note is read as the
+     * preview needs.
+     *
+     * @return The preview, or null if the note is null.
+     */
+    static String makePreview(String note) {
+        if (note == null) {
+            return null;
+        }
+        StringBuilder preview = new StringBuilder(NotePad.Notes.PREVIEW_LENGTH);
+        boolean space = false;
+        for (int i = 0, length = note.length();
+                i < length && preview.length() < NotePad.Notes.PREVIEW_LENGTH; i++) {
+            char c = note.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = preview.length() > 0;
+            } else {
+                if (space) {
+                    preview.append(' ');
+                    space = false;
+                }
+                preview.append(c);
+            }
+        }
+        // A space may have pushed the preview one character over the limit
+        preview.setLength(Math.min(preview.length(), NotePad.Notes.PREVIEW_LENGTH));
+        return preview.toString();
+    }
+
+    /**
+     * Counts the words in a note. A word is a run of characters other than whitespace.
+     *
+     * @return The number of words, 0 if the note is null.
+     */
+    static int countWords(CharSequence note) {
+        WordCounter counter = new WordCounter();
+        counter.add(note);
+        return counter.getCount();
+    }
+
+    /**
+     * Counts the words in a note given in slices, in order. A word split between two slices is
+     * counted once.
+     */
+    static final class WordCounter {
+
+        // True if the last character added was part of a word
+        private boolean mInWord;
+
+        private int mCount;
+
+        /**
+         * Adds the next slice of the note. A null slice is ignored.
+         */
+        void add(CharSequence slice) {
+            if (slice == null) {
+                return;
+            }
+            boolean inWord = mInWord;
+            int count = mCount;
+            for (int i = 0, length = slice.length(); i < length; i++) {
+                if (Character.isWhitespace(slice.charAt(i))) {
+                    inWord = false;
+                } else if (!inWord) {
+                    inWord = true;
+                    count++;
+                }
+            }
+            mInWord = inWord;
+            mCount = count;
+        }
+
+        /**
+         * Returns the number of words in the slices added so far.
+         */
+        int getCount() {
+            return mCount;
+        }
+    }
+}
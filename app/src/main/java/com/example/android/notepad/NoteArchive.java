@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes and reads the archive format of {@link NotePad.Archive}: a stream of all of the notes,
+ * one record after another, that can be written and read in a single pass, in constant memory
+ * however many notes it holds.
+ *
+ * The archive starts with a header: the magic number {@link #MAGIC}, a format version byte and a
+ * flags byte. If {@link #FLAG_DEFLATE} is set, everything after the header is compressed with
+ * deflate. Then come the records, with all numbers big-endian:
+ *
+ * <pre>
+ * int    length of the fields that follow, before the body
+ * long   the note's ID in the exporting database
+ * long   creation date
+ * long   modification date
+ * int    length of the title in UTF-8 bytes, or -1 if it is null
+ * byte[] the title
+ * body:  chunks of up to {@link #CHUNK_SIZE} bytes of the text in UTF-8, each an int length
+ *        followed by the bytes, and then an int 0
+ * </pre>
+ *
+ * A reader skips any fields past the ones it knows, so later versions can append fields to a
+ * record without breaking older readers. The body is written in chunks because the length of a
+ * note's text is only known for sure once all of it has been read. After the last record comes
+ * an int 0 and the long number of records, so that a truncated archive is never taken for a
+ * complete one. Nothing follows it.
+ */
+final class NoteArchive {
+
+    /**
+     * The first four bytes of an archive, "NPAR"
+     */
+    static final int MAGIC = 0x4e504152;
+
+    /**
+     * The version of the format written
+     */
+    static final int VERSION = 1;
+
+    /**
+     * The flag set when the records are compressed with deflate
+     */
+    static final int FLAG_DEFLATE = 1;
+
+    /**
+     * The largest chunk of a note's body, in bytes
+     */
+    static final int CHUNK_SIZE = 32 * 1024;
+
+    // The length of the fields of a record this version writes, without the title
+    private static final int FIELDS_LENGTH = 8 + 8 + 8 + 4;
+
+    // The size of the buffer between the records and the output
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // This class cannot be instantiated
+    private NoteArchive() {
+    }
+
+    /**
+     * Writes an archive. Call {@link #beginNote} for each note, write its text to the returned
+     * stream and close it, and then call {@link #finish()} once.
+     */
+    static final class Writer {
+        private final DataOutputStream mOut;
+        private final Deflater mDeflater;
+        private final DeflaterOutputStream mCompressed;
+        private final BodyOutputStream mBody;
+        private long mCount;
+
+        /**
+         * Writes the header of the archive.
+         *
+         * @param out Where the archive is written. It is not closed by the writer.
+         * @param compress True to compress the records with deflate.
+         */
+        Writer(OutputStream out, boolean compress) throws IOException {
+            OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+            DataOutputStream header = new DataOutputStream(buffered);
+            header.writeInt(MAGIC);
+            header.writeByte(VERSION);
+            header.writeByte(compress ? FLAG_DEFLATE : 0);
+            if (compress) {
+                // The fastest level, since an export is mostly bound by how quickly it runs, and
+                // the text of notes compresses well even then.
+                mDeflater = new Deflater(Deflater.BEST_SPEED);
+                mCompressed = new DeflaterOutputStream(buffered, mDeflater, BUFFER_SIZE);
+                mOut = new DataOutputStream(mCompressed);
+            } else {
+                mDeflater = null;
+                mCompressed = null;
+                mOut = header;
+            }
+            mBody = new BodyOutputStream(mOut);
+        }
+
+        /**
+         * Writes the fields of a note's record.
+         *
+         * @return The stream to write the note's text to as UTF-8, which must be closed before
+         * the next note begins.
+         */
+        OutputStream beginNote(long id, long created, long modified, String title)
+                throws IOException {
+            byte[] titleBytes = title != null ? title.getBytes("UTF-8") : null;
+            mOut.writeInt(FIELDS_LENGTH + (titleBytes != null ? titleBytes.length : 0));
+            mOut.writeLong(id);
+            mOut.writeLong(created);
+            mOut.writeLong(modified);
+            if (titleBytes != null) {
+                mOut.writeInt(titleBytes.length);
+                mOut.write(titleBytes);
+            } else {
+                mOut.writeInt(-1);
+            }
+            mCount++;
+            return mBody;
+        }
+
+        /**
+         * Writes the end of the archive, and flushes it. The output is left open.
+         *
+         * @return The number of notes in the archive.
+         */
+        long finish() throws IOException {
+            mOut.writeInt(0);
+            mOut.writeLong(mCount);
+            if (mCompressed != null) {
+                mCompressed.finish();
+                mDeflater.end();
+            }
+            mOut.flush();
+            return mCount;
+        }
+    }
+
+    /**
+     * Writes the body of a note in chunks. Closing it ends the body, but not the archive.
+     */
+    private static final class BodyOutputStream extends OutputStream {
+        private final DataOutputStream mOut;
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        private int mLength;
+
+        BodyOutputStream(DataOutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mLength == mChunk.length) {
+                writeChunk();
+            }
+            mChunk[mLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (mLength == mChunk.length) {
+                    writeChunk();
+                }
+                int count = Math.min(len, mChunk.length - mLength);
+                System.arraycopy(b, off, mChunk, mLength, count);
+                mLength += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mLength > 0) {
+                writeChunk();
+            }
+            mOut.writeInt(0);
+        }
+
+        private void writeChunk() throws IOException {
+            mOut.writeInt(mLength);
+            mOut.write(mChunk, 0, mLength);
+            mLength = 0;
+        }
+    }
+
+    /**
+     * Reads an archive, one note at a time. Call {@link #next()} to move to each note in turn,
+     * and read its text with {@link #readBody()}.
+     */
+    static final class Reader {
+        private final DataInputStream mIn;
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        private long mCount;
+        private boolean mBodyPending;
+
+        private long mId;
+        private long mCreated;
+        private long mModified;
+        private String mTitle;
+
+        /**
+         * Reads the header of the archive.
+         *
+         * @param in The archive. It is not closed by the reader.
+         * @throws IOException if the stream is not an archive, or is of a later version.
+         */
+        Reader(InputStream in) throws IOException {
+            DataInputStream header = new DataInputStream(in);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a notes archive");
+            }
+            int version = header.readUnsignedByte();
+            if (version > VERSION) {
+                throw new IOException("Unsupported archive version " + version);
+            }
+            int flags = header.readUnsignedByte();
+            if ((flags & FLAG_DEFLATE) != 0) {
+                mIn = new DataInputStream(
+                        new InflaterInputStream(in, new Inflater(), BUFFER_SIZE));
+            } else {
+                mIn = header;
+            }
+        }
+
+        /**
+         * Moves to the next note, skipping the body of the current one if it wasn't read.
+         *
+         * @return True if there is another note, or false at the end of the archive.
+         * @throws IOException if the archive is truncated or corrupt.
+         */
+        boolean next() throws IOException {
+            if (mBodyPending) {
+                readBody(null);
+            }
+
+            int length = mIn.readInt();
+            if (length == 0) {
+                long count = mIn.readLong();
+                if (count != mCount) {
+                    throw new IOException("Expected " + count + " notes, read " + mCount);
+                }
+
+                // Reads to the end of the stream, which also checks the trailer of compressed
+                // records.
+                if (mIn.read() != -1) {
+                    throw new IOException("Data after the end of the archive");
+                }
+                return false;
+            }
+            if (length < FIELDS_LENGTH) {
+                throw new IOException("Corrupt record " + mCount);
+            }
+            mId = mIn.readLong();
+            mCreated = mIn.readLong();
+            mModified = mIn.readLong();
+            int titleLength = mIn.readInt();
+            if (titleLength < -1 || titleLength > length - FIELDS_LENGTH) {
+                throw new IOException("Corrupt title in record " + mCount);
+            }
+            if (titleLength >= 0) {
+                byte[] title = new byte[titleLength];
+                mIn.readFully(title);
+                mTitle = new String(title, "UTF-8");
+            } else {
+                mTitle = null;
+            }
+
+            // Skips the fields a later version added.
+            skipFully(length - FIELDS_LENGTH - Math.max(titleLength, 0));
+            mCount++;
+            mBodyPending = true;
+            return true;
+        }
+
+        /**
+         * Returns the ID the note had in the exporting database.
+         */
+        long getId() {
+            return mId;
+        }
+
+        long getCreated() {
+            return mCreated;
+        }
+
+        long getModified() {
+            return mModified;
+        }
+
+        /**
+         * Returns the title of the note, or null if it had none.
+         */
+        String getTitle() {
+            return mTitle;
+        }
+
+        /**
+         * Reads the text of the current note. Only the text of one note is ever held in memory.
+         */
+        String readBody() throws IOException {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            readBody(text);
+            return text.toString("UTF-8");
+        }
+
+        /**
+         * Reads the chunks of the current note's body into a stream, or skips them if the stream
+         * is null.
+         */
+        private void readBody(OutputStream out) throws IOException {
+            if (!mBodyPending) {
+                throw new IllegalStateException("No note to read");
+            }
+            int length;
+            while ((length = mIn.readInt()) != 0) {
+                if (length < 0 || length > CHUNK_SIZE) {
+                    throw new IOException("Corrupt body in record " + mCount);
+                }
+                mIn.readFully(mChunk, 0, length);
+                if (out != null) {
+                    out.write(mChunk, 0, length);
+                }
+            }
+            mBodyPending = false;
+        }
+
+        private void skipFully(int count) throws IOException {
+            while (count > 0) {
+                int skipped = mIn.skipBytes(count);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                count -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Saves a note in the background while it is being edited. Edits mark the note dirty and
+ * (re)start a short delay; when the user pauses typing for that long, the text is taken from the
+ * editor and handed to a single writer thread. The writer skips the save if the text is the same,
+ * character for character, as the text it last persisted.
+ *
+ * The text is handed over as an immutable CharSequence: a String for a note of ordinary size, or
+ * a copy of the editor's characters for a large note, which is never turned into a String.
+ *
+ * All methods except the {@link Callbacks#save(CharSequence)} callback run on the UI thread.
+ */
+final class NoteAutosaver {
+    // Used for debugging and logging
+    private static final String TAG = "NoteAutosaver";
+
+    /**
+     * How long the user must stop typing before the note is saved, in milliseconds
+     */
+    static final long AUTOSAVE_DELAY_MILLIS = 2000;
+
+    /**
+     * Connects the autosaver to the editor.
+     */
+    interface Callbacks {
+        /**
+         * Returns a copy of the current text of the note, which must not change after it is
+         * returned. Called on the UI thread, only when the note is dirty.
+         */
+        CharSequence getText();
+
+        /**
+         * Writes the text to the provider. Called on the writer thread.
+         */
+        void save(CharSequence text);
+    }
+
+    private final Callbacks mCallbacks;
+
+    // Runs the delay on the UI thread
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    // The writer thread, and a handler that queues saves on it
+    private final HandlerThread mWriterThread;
+    private final Handler mWriter;
+
+    // True if the text has changed since it was last handed to the writer
+    private boolean mDirty;
+
+    // The number of saves queued on the writer and not yet finished. Guarded by mLock.
+    private int mPending;
+    private final Object mLock = new Object();
+
+    // The text last persisted, or null if it isn't known. Only used on the writer thread.
+    private CharSequence mPersisted;
+
+    // Hands the text to the writer once the user stops typing
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            enqueueSave();
+        }
+    };
+
+    NoteAutosaver(Callbacks callbacks) {
+        mCallbacks = callbacks;
+        mWriterThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+    }
+
+    /**
+     * Records the text that is already stored in the provider, so that saving the same text again
+     * is skipped. The text must not change afterwards. It is recorded on the writer thread, after
+     * any saves already queued.
+     */
+    void setPersisted(final CharSequence text) {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                mPersisted = text;
+            }
+        });
+    }
+
+    /**
+     * Called when the user edits the note. Marks it dirty and restarts the delay before it is
+     * saved.
+     */
+    void onTextChanged() {
+        mDirty = true;
+        mUiHandler.removeCallbacks(mSaveRunnable);
+        mUiHandler.postDelayed(mSaveRunnable, AUTOSAVE_DELAY_MILLIS);
+    }
+
+    /**
+     * Saves the note now if it is dirty, and waits for the writer to finish. Returns immediately
+     * if there is nothing to save and no save in progress.
+     */
+    void flush() {
+        mUiHandler.removeCallbacks(mSaveRunnable);
+        if (mDirty) {
+            enqueueSave();
+        }
+        awaitPending();
+    }
+
+    /**
+     * Drops any unsaved changes, and waits for saves already queued to finish, so that the
+     * caller can write to the note without being overwritten by an earlier save.
+     */
+    void cancel() {
+        mUiHandler.removeCallbacks(mSaveRunnable);
+        mDirty = false;
+        awaitPending();
+    }
+
+    /**
+     * Stops the writer thread. Call {@link #flush()} or {@link #cancel()} first; saves still
+     * queued are dropped.
+     */
+    void quit() {
+        mUiHandler.removeCallbacks(mSaveRunnable);
+        mWriterThread.quit();
+    }
+
+    private void enqueueSave() {
+        mDirty = false;
+        final CharSequence text = mCallbacks.getText();
+        synchronized (mLock) {
+            mPending++;
+        }
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Compares the whole of the text, which stops at the first difference, rather
+                    // than a hash, which could match for different text and lose the edit.
+                    if (!TextUtils.equals(text, mPersisted)) {
+                        mCallbacks.save(text);
+                        mPersisted = text;
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to save note", e);
+                } finally {
+                    synchronized (mLock) {
+                        mPending--;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void awaitPending() {
+        synchronized (mLock) {
+            while (mPending > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the most recently read notes in memory, so that reopening a note, or reading it again
+ * for its title or to paste it, doesn't go back to the database. There is one cache for each
+ * NotePadProvider, and so one for each process that runs the provider.
+ *
+ * The cache is bounded by the number of characters it holds, not by the number of notes, since
+ * one large note can take the memory of thousands of small ones. The least recently used notes
+ * are dropped first. A note larger than a quarter of the cache is never cached. A note that has
+ * been streamed also keeps its text in UTF-8, which is not counted, and is at most three bytes for
+ * each character counted.
+ *
+ * The provider invalidates a note whenever it writes to it, both when the write happens and
+ * when it commits. A note read while an invalidation happens isn't cached, since it may have
+ * been read before the write committed; see {@link #getGeneration()}.
+ *
+ * The methods can be called on any thread.
+ */
+final class NoteCache {
+
+    /**
+     * The name the cache reports its hits and misses under in the provider metrics
+     */
+    static final String METRICS_NAME = "notes";
+
+    /**
+     * The columns of a cached note, in the order an {@link Entry} holds them. These are the
+     * columns a note ID query returns.
+     */
+    static final String[] COLUMNS = new String[] {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_NOTE,
+        NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+        NotePad.Notes.COLUMN_NAME_PREVIEW,
+        NotePad.Notes.COLUMN_NAME_WORD_COUNT,
+        NotePad.Notes.COLUMN_NAME_REVISION,
+        NotePad.Notes.COLUMN_NAME_VERSION
+    };
+
+    // The position of the note text in COLUMNS
+    private static final int NOTE_INDEX = 2;
+
+    /**
+     * The most characters the provider's cache holds, about 2 MB of text
+     */
+    static final int DEFAULT_MAX_CHARS = 1024 * 1024;
+
+    /**
+     * A cached note: the values of its {@link #COLUMNS}.
+     */
+    static final class Entry {
+
+        // The values, in the order of COLUMNS
+        private final Object[] mValues;
+
+        // The number of characters in the values
+        private final int mChars;
+
+        // The note text in UTF-8, or null if it hasn't been encoded yet
+        private volatile byte[] mNoteBytes;
+
+        /**
+         * Copies the values of a note from a cursor positioned on it, which has the
+         * {@link #COLUMNS} in that order.
+         */
+        Entry(Cursor c) {
+            mValues = new Object[COLUMNS.length];
+            int chars = 0;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (c.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                    mValues[i] = c.getLong(i);
+                } else if (!c.isNull(i)) {
+                    String value = c.getString(i);
+                    mValues[i] = value;
+                    chars += value.length();
+                }
+            }
+            mChars = chars;
+        }
+
+        /**
+         * Returns the values of the given columns, which must all be {@link #COLUMNS}.
+         */
+        Object[] getValues(String[] projection) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = mValues[indexOf(projection[i])];
+            }
+            return values;
+        }
+
+        String getTitle() {
+            return (String) mValues[indexOf(NotePad.Notes.COLUMN_NAME_TITLE)];
+        }
+
+        String getNote() {
+            return (String) mValues[NOTE_INDEX];
+        }
+
+        /**
+         * Returns the note text in UTF-8, as written by a UTF-8 OutputStreamWriter, in which a
+         * lone surrogate is written as a single '?'. The text is only encoded the first time,
+         * when the note is first streamed, and the bytes are kept with the entry after that, so
+         * that streaming a cached note again just copies them. The returned array must not be
+         * changed.
+         */
+        byte[] getNoteBytes() {
+            byte[] bytes = mNoteBytes;
+            if (bytes == null) {
+                String note = getNote();
+                try {
+                    bytes = note != null ? note.getBytes("UTF-8") : new byte[0];
+                } catch (UnsupportedEncodingException e) {
+                    // UTF-8 is always supported.
+                    throw new AssertionError(e);
+                }
+                mNoteBytes = bytes;
+            }
+            return bytes;
+        }
+
+        /**
+         * Returns the number of bytes the note text takes in UTF-8; see {@link #getNoteBytes()}.
+         */
+        long getNoteByteLength() {
+            return getNoteBytes().length;
+        }
+    }
+
+    private final int mMaxChars;
+    private final ProviderMetrics mMetrics;
+
+    // The cached notes by ID, least recently used first. Guarded by this.
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+    // The number of characters in the cached notes. Guarded by this.
+    private int mChars;
+
+    // Incremented by every invalidation. Guarded by this.
+    private long mGeneration;
+
+    /**
+     * @param maxChars The most characters the cache may hold.
+     * @param metrics Where hits and misses are reported.
+     */
+    NoteCache(int maxChars, ProviderMetrics metrics) {
+        mMaxChars = maxChars;
+        mMetrics = metrics;
+    }
+
+    /**
+     * Returns true if a projection only asks for cached columns, so that a query with it can be
+     * answered from the cache. A null projection asks for all of them.
+     */
+    static boolean covers(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a projection asks for the note text, which is worth caching.
+     */
+    static boolean includesNote(String[] projection) {
+        return projection == null
+                || Arrays.asList(projection).contains(NotePad.Notes.COLUMN_NAME_NOTE);
+    }
+
+    /**
+     * Looks up a note, and reports the lookup as a hit or a miss.
+     *
+     * @return The note, or null if it isn't cached.
+     */
+    Entry get(long noteId) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(noteId);
+        }
+        mMetrics.recordCacheLookup(METRICS_NAME, entry != null);
+        return entry;
+    }
+
+    /**
+     * Looks up a note again, without reporting the lookup, for an operation whose first lookup
+     * was already reported.
+     */
+    synchronized Entry peek(long noteId) {
+        return mEntries.get(noteId);
+    }
+
+    /**
+     * Returns the number of invalidations so far. Read it before reading a note from the
+     * database, and pass it to {@link #put(long, Entry, long)}, which only caches the note if
+     * there have been no invalidations since.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a note read from the database, unless it is too large or the cache was invalidated
+     * after it was read.
+     *
+     * @param generation The value of {@link #getGeneration()} before the note was read.
+     */
+    synchronized void put(long noteId, Entry entry, long generation) {
+        if (generation != mGeneration || entry.mChars > mMaxChars / 4) {
+            return;
+        }
+        Entry old = mEntries.put(noteId, entry);
+        if (old != null) {
+            mChars -= old.mChars;
+        }
+        mChars += entry.mChars;
+
+        // Drops the least recently used notes until the cache fits.
+        Iterator<Entry> i = mEntries.values().iterator();
+        while (mChars > mMaxChars && i.hasNext()) {
+            mChars -= i.next().mChars;
+            i.remove();
+        }
+    }
+
+    /**
+     * Drops a note from the cache, because it was changed or deleted.
+     */
+    synchronized void invalidate(long noteId) {
+        mGeneration++;
+        Entry old = mEntries.remove(noteId);
+        if (old != null) {
+            mChars -= old.mChars;
+        }
+    }
+
+    /**
+     * Drops every note from the cache, because an unknown set of notes changed.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+        mChars = 0;
+    }
+
+    /**
+     * Returns the number of characters cached. Only for tests.
+     */
+    synchronized int getCharCount() {
+        return mChars;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.ParcelFileDescriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the bodies of large notes. A note of at least {@link #getThreshold()} characters is
+ * stored compressed in the {@link #COLUMN_NAME_DATA} column, with its note column set to null;
+ * smaller notes, which are most of them, are stored as text, so that reading and writing them
+ * costs nothing extra. A note is also stored as text if compressing it doesn't save at least an
+ * eighth of its size.
+ *
+ * The compressed data starts with a header of {@link #HEADER_LENGTH} bytes: the codec, and the
+ * length of the note in UTF-8, so that the length of a note can be found without decompressing
+ * it. The rest is the note's UTF-8 bytes compressed by the codec.
+ *
+ * NotePadProvider decompresses a note only when a client reads its text; see
+ * {@link #wrap(Cursor)}. SQLite can't read the compressed data, so the provider gives the text
+ * of a compressed note to the full-text index itself.
+ */
+final class NoteCodec {
+
+    /**
+     * The column that holds the compressed body of a note, or null if the body is stored as text
+     */
+    static final String COLUMN_NAME_DATA = "note_data";
+
+    /**
+     * The codec that stores every note as text
+     */
+    static final int CODEC_NONE = 0;
+
+    /**
+     * The codec that compresses notes with deflate, in the zlib format
+     */
+    static final int CODEC_DEFLATE = 1;
+
+    /**
+     * The length of the header in front of the compressed data: one byte for the codec, and four
+     * for the length of the note in UTF-8, most significant byte first
+     */
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * The number of characters from which a note is compressed
+     */
+    static final int DEFAULT_THRESHOLD = 16 * 1024;
+
+    /**
+     * The codec the provider uses: deflate at its fastest level, which compresses logs and other
+     * repetitive text nearly as well as the default level, in a fraction of the time.
+     */
+    static final NoteCodec DEFAULT =
+            new NoteCodec(CODEC_DEFLATE, Deflater.BEST_SPEED, DEFAULT_THRESHOLD);
+
+    /**
+     * A codec that never compresses. Used to compare against compression.
+     */
+    static final NoteCodec NONE = new NoteCodec(CODEC_NONE, 0, Integer.MAX_VALUE);
+
+    // The size of the buffer the compressed data is written through
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The number of characters of a note's text, or bytes of its compressed data, read at a time
+     * by {@link #readNote(SQLiteDatabase, long)}
+     */
+    static final int SLICE_LENGTH = 64 * 1024;
+
+    private final int mCodec;
+    private final int mLevel;
+    private final int mThreshold;
+
+    /**
+     * @param codec {@link #CODEC_DEFLATE}, or {@link #CODEC_NONE} to never compress.
+     * @param level The compression level, from 1 for the fastest to 9 for the smallest.
+     * @param threshold The number of characters from which a note is compressed.
+     */
+    NoteCodec(int codec, int level, int threshold) {
+        mCodec = codec;
+        mLevel = level;
+        mThreshold = threshold;
+    }
+
+    int getCodec() {
+        return mCodec;
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    int getThreshold() {
+        return mThreshold;
+    }
+
+    /**
+     * Compresses the note column of a map of values, if it has one that is worth compressing:
+     * the compressed data is put in {@link #COLUMN_NAME_DATA}, and the note column is set to
+     * null. A note that is stored as text sets the data column to null, so that it replaces a
+     * note that was compressed.
+     *
+     * @return The text of the note, if it was compressed, or else null.
+     */
+    String putEncoded(ContentValues values) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            return null;
+        }
+        String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        byte[] data = encode(note);
+        if (data == null) {
+            values.putNull(COLUMN_NAME_DATA);
+            return null;
+        }
+        values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.put(COLUMN_NAME_DATA, data);
+        return note;
+    }
+
+    /**
+     * Compresses a note.
+     *
+     * @return The header and the compressed note, or null if the note should be stored as text.
+     */
+    byte[] encode(String note) {
+        if (mCodec == CODEC_NONE || note == null || note.length() < mThreshold) {
+            return null;
+        }
+        byte[] utf8 = toUtf8(note);
+
+        // Stops as soon as the data is too large to be worth keeping.
+        int maxLength = utf8.length - utf8.length / 8;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 4 + HEADER_LENGTH);
+        out.write(mCodec);
+        out.write(utf8.length >>> 24);
+        out.write(utf8.length >>> 16);
+        out.write(utf8.length >>> 8);
+        out.write(utf8.length);
+
+        Deflater deflater = new Deflater(mLevel);
+        try {
+            deflater.setInput(utf8);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+                if (out.size() > maxLength) {
+                    return null;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses a note.
+     *
+     * @param data The header and the compressed note, as made by {@link #encode(String)}.
+     * @throws IllegalArgumentException if the data is not a compressed note.
+     */
+    static String decode(byte[] data) {
+        int length = getDecodedLength(data);
+        byte[] utf8 = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+            int offset = 0;
+            while (offset < length) {
+                int count = inflater.inflate(utf8, offset, length - offset);
+                if (count == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated note data");
+                }
+                offset += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt note data", e);
+        } finally {
+            inflater.end();
+        }
+        try {
+            return new String(utf8, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform supports UTF-8
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the length in UTF-8 of a compressed note, from the header of its data.
+     *
+     * @throws IllegalArgumentException if the data is not a compressed note.
+     */
+    static int getDecodedLength(byte[] data) {
+        if (data.length < HEADER_LENGTH || data[0] != CODEC_DEFLATE) {
+            throw new IllegalArgumentException("Unknown note codec");
+        }
+        return (data[1] & 0xff) << 24 | (data[2] & 0xff) << 16 | (data[3] & 0xff) << 8
+                | (data[4] & 0xff);
+    }
+
+    /**
+     * Returns a stream of the UTF-8 bytes of a compressed note, decompressed as they are read.
+     *
+     * @param data The header and the compressed note. The header is read and checked first.
+     * Closing the returned stream closes it.
+     * @throws IOException if the data is not a compressed note.
+     */
+    static InputStream openStream(InputStream data) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        int offset = 0;
+        while (offset < HEADER_LENGTH) {
+            int count = data.read(header, offset, HEADER_LENGTH - offset);
+            if (count < 0) {
+                throw new EOFException("Missing note data");
+            }
+            offset += count;
+        }
+        try {
+            getDecodedLength(header);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        return new InflaterInputStream(data, new Inflater(), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                // Frees the inflater's native memory, which is only freed on close for an
+                // inflater the stream created itself.
+                super.close();
+                inf.end();
+            }
+        };
+    }
+
+    /**
+     * Reads the text of a note from the database, one slice of {@link #SLICE_LENGTH} at a time,
+     * whether it is stored as text or compressed, so that the text never has to fit in a cursor
+     * window however large the note is.
+     *
+     * @return The text, or null if the note has none or doesn't exist.
+     * @throws IllegalArgumentException if the note's compressed data is corrupt.
+     */
+    static String readNote(SQLiteDatabase db, long noteId) {
+        long compressed;
+        try {
+            compressed = DatabaseUtils.longForQuery(db, "SELECT " + COLUMN_NAME_DATA
+                    + " IS NOT NULL FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                    + NotePad.Notes._ID + " = ?", new String[] { String.valueOf(noteId) });
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+        return compressed != 0 ? readCompressedNote(db, noteId) : readTextNote(db, noteId);
+    }
+
+    private static String readTextNote(SQLiteDatabase db, long noteId) {
+        SQLiteStatement slice = db.compileStatement("SELECT substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, " + SLICE_LENGTH + ") FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?");
+        try {
+            slice.bindLong(2, noteId);
+            StringBuilder text = null;
+
+            // SQLite counts characters from 1. A slice shorter than asked for is the last one.
+            for (long offset = 1; ; offset += SLICE_LENGTH) {
+                slice.bindLong(1, offset);
+                String part = slice.simpleQueryForString();
+                if (part == null) {
+                    return text != null ? text.toString() : null;
+                }
+                if (text == null) {
+                    if (part.length() < SLICE_LENGTH) {
+                        return part;
+                    }
+                    text = new StringBuilder(2 * SLICE_LENGTH);
+                }
+                text.append(part);
+                if (part.length() < SLICE_LENGTH) {
+                    return text.toString();
+                }
+            }
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            slice.close();
+        }
+    }
+
+    private static String readCompressedNote(SQLiteDatabase db, long noteId) {
+        InputStream data = new SliceInputStream(db, noteId, SLICE_LENGTH);
+        ByteArrayOutputStream utf8 = new ByteArrayOutputStream();
+        try {
+            InputStream in = openStream(data);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    utf8.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+            return utf8.toString("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt note data", e);
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * Wraps a cursor whose note column holds either the text of a note or its compressed data,
+     * so that the column reads as text. A note is only decompressed when its text is read, and
+     * only once for each row. Likewise, a length column that holds the header of a note's
+     * compressed data reads as the length of its text.
+     *
+     * @return The wrapped cursor, or the cursor itself if it has neither column.
+     */
+    static Cursor wrap(Cursor c) {
+        int noteIndex = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        int lengthIndex = c.getColumnIndex(NotePad.Notes.COLUMN_NAME_LENGTH);
+        if (noteIndex < 0 && lengthIndex < 0) {
+            return c;
+        }
+        return new DecodingCursor(c, noteIndex, lengthIndex);
+    }
+
+    private static byte[] toUtf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform supports UTF-8
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * A cursor whose note column decompresses the notes that are stored compressed, and whose
+     * length column reads their length from the header of their data.
+     */
+    private static final class DecodingCursor extends CursorWrapper {
+        private final int mNoteIndex;
+        private final int mLengthIndex;
+
+        // The row whose note was last decompressed, and its text
+        private int mDecodedPosition = -1;
+        private String mDecoded;
+
+        /**
+         * @param noteIndex The index of the note column, or -1 if there is none.
+         * @param lengthIndex The index of the length column, or -1 if there is none.
+         */
+        DecodingCursor(Cursor c, int noteIndex, int lengthIndex) {
+            super(c);
+            mNoteIndex = noteIndex;
+            mLengthIndex = lengthIndex;
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            int type = super.getType(columnIndex);
+            if (type == FIELD_TYPE_BLOB) {
+                if (columnIndex == mNoteIndex) {
+                    return FIELD_TYPE_STRING;
+                } else if (columnIndex == mLengthIndex) {
+                    return FIELD_TYPE_INTEGER;
+                }
+            }
+            return type;
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            if (isCompressedLength(columnIndex)) {
+                return getDecodedLength(super.getBlob(columnIndex));
+            }
+            return super.getLong(columnIndex);
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            if (isCompressedLength(columnIndex)) {
+                return getDecodedLength(super.getBlob(columnIndex));
+            }
+            return super.getInt(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (isCompressedLength(columnIndex)) {
+                return String.valueOf(getDecodedLength(super.getBlob(columnIndex)));
+            }
+            if (columnIndex != mNoteIndex || super.getType(columnIndex) != FIELD_TYPE_BLOB) {
+                return super.getString(columnIndex);
+            }
+            int position = getPosition();
+            if (position != mDecodedPosition) {
+                mDecoded = decode(super.getBlob(columnIndex));
+                mDecodedPosition = position;
+            }
+            return mDecoded;
+        }
+
+        private boolean isCompressedLength(int columnIndex) {
+            return columnIndex == mLengthIndex && super.getType(columnIndex) == FIELD_TYPE_BLOB;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public boolean requery() {
+            // The rows may have changed
+            mDecodedPosition = -1;
+            mDecoded = null;
+            return super.requery();
+        }
+    }
+
+    /**
+     * Reads the compressed data of a note from the database, one slice at a time, so that the
+     * data never has to fit in a cursor window. Ends early if the note is deleted, or is no longer
+     * compressed, while it is read.
+     */
+    static final class SliceInputStream extends InputStream {
+        private final SQLiteStatement mSlice;
+        private final long mNoteId;
+        private final byte[] mBuffer;
+
+        // The number of bytes in the buffer, and the next one to read
+        private int mCount;
+        private int mPosition;
+
+        // The 1-based offset in the data of the next slice, or -1 once the data has been read
+        private long mOffset = 1;
+
+        private boolean mClosed;
+
+        /**
+         * @param sliceSize The number of bytes read from the database at a time.
+         */
+        SliceInputStream(SQLiteDatabase db, long noteId, int sliceSize) {
+            mSlice = db.compileStatement("SELECT substr(" + COLUMN_NAME_DATA + ", ?, ?) FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?");
+            mNoteId = noteId;
+            mBuffer = new byte[sliceSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mPosition == mCount && !fill()) {
+                return -1;
+            }
+            return mBuffer[mPosition++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPosition == mCount && !fill()) {
+                return -1;
+            }
+            int count = Math.min(length, mCount - mPosition);
+            System.arraycopy(mBuffer, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        /**
+         * Closes the statement that reads the slices. Closing the stream again does nothing.
+         */
+        @Override
+        public void close() {
+            if (!mClosed) {
+                mClosed = true;
+                mSlice.close();
+            }
+        }
+
+        /**
+         * Reads the next slice into the buffer.
+         *
+         * @return False if there is no data left.
+         */
+        private boolean fill() throws IOException {
+            if (mOffset < 0) {
+                return false;
+            }
+            mSlice.bindLong(1, mOffset);
+            mSlice.bindLong(2, mBuffer.length);
+            mSlice.bindLong(3, mNoteId);
+            ParcelFileDescriptor sliceFd;
+            try {
+                sliceFd = mSlice.simpleQueryForBlobFileDescriptor();
+            } catch (SQLiteDoneException e) {
+                // The note was deleted
+                sliceFd = null;
+            }
+            if (sliceFd == null) {
+                mOffset = -1;
+                return false;
+            }
+
+            int count = 0;
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(sliceFd);
+            try {
+                int read;
+                while (count < mBuffer.length
+                        && (read = in.read(mBuffer, count, mBuffer.length - count)) > 0) {
+                    count += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            // A slice shorter than asked for is the last one.
+            mOffset = count < mBuffer.length ? -1 : mOffset + count;
+            mCount = count;
+            mPosition = 0;
+            return count > 0;
+        }
+    }
+}
@@ -19,13 +19,17 @@ package com.example.android.notepad;
 import static com.example.android.notepad.R.*;
 
 import android.app.Activity;
+import android.app.LoaderManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Canvas;
@@ -33,12 +37,24 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextWatcher;
+import android.text.method.KeyListener;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.widget.EditText;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
 
 /**
  * This Activity handles "editing" a note, where editing is responding to
@@ -46,27 +62,64 @@ import android.widget.EditText;
  * {@link Intent#ACTION_EDIT}, create a note {@link Intent#ACTION_INSERT}, or
  * create a new note from the current contents of the clipboard {@link Intent#ACTION_PASTE}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler}
+ * The note is queried on a background thread by a {@link CursorLoader}, and edits are saved on a
+ * background thread by a {@link NoteAutosaver}. Each save only happens if the note hasn't been
+ * changed elsewhere since the editor loaded or last saved it; if it has, the editor keeps both
+ * versions by saving its text as a new note.
+ *
+ * A note of {@link #LARGE_NOTE_BYTES} or more is edited in large note mode. Its text is never
+ * queried as a whole: it is streamed into the editor a chunk at a time by a
+ * {@link LargeNoteLoader}, and saved through a pipe with
+ * {@link NotePad.Streams#METHOD_WRITE_NOTE}, so that neither the load nor a save holds a
+ * second full copy of the note as a String. The note is read-only until all of it has loaded.
+ *
+ * NOTE: Notice that the insert and delete operations in this Activity are taking place
+ * on the UI thread. This is not a good practice. It is only done here to make the code more
+ * readable. A real application should use the {@link android.content.AsyncQueryHandler}
  * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
  */
-public class NoteEditor extends Activity {
+public class NoteEditor extends Activity implements LoaderManager.LoaderCallbacks<Cursor> {
     // For logging and debugging purposes
     private static final String TAG = "NoteEditor";
 
     /*
-     * Creates a projection that returns the note ID and the note contents.
+     * Creates a projection that returns the note ID, the note contents, and their length. The
+     * editor queries it with a body limit of LARGE_NOTE_BYTES, so that the contents of a large
+     * note are left out.
      */
     private static final String[] PROJECTION =
         new String[] {
             NotePad.Notes._ID,
             NotePad.Notes.COLUMN_NAME_TITLE,
-            NotePad.Notes.COLUMN_NAME_NOTE
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_REVISION,
+            NotePad.Notes.COLUMN_NAME_VERSION,
+            NotePad.Notes.COLUMN_NAME_LENGTH
     };
 
+    /**
+     * The length, in UTF-8 bytes, from which a note is edited in large note mode.
+     */
+    static final long LARGE_NOTE_BYTES = 512 * 1024;
+
+    // The editing modes. A note's mode is unknown until its length has loaded.
+    private static final int MODE_UNKNOWN = 0;
+    private static final int MODE_NORMAL = 1;
+    private static final int MODE_LARGE = 2;
+
     // A label for the saved state of the activity
-    private static final String ORIGINAL_CONTENT = "origContent";
+    private static final String ORIGINAL_REVISION = "origRevision";
+
+    // The original revision of a note that had no revisions when the editor opened it. Revision
+    // IDs start at 1, so every revision of the note is newer than this.
+    private static final long NO_REVISION = 0;
+
+    // The version of a note that hasn't loaded yet. Saves before the note loads aren't
+    // conditional on its version.
+    private static final long UNKNOWN_VERSION = -1;
+
+    // The ID of the loader that queries the note
+    private static final int NOTE_LOADER = 0;
 
     // This Activity can be started by more than one action. Each action is represented
     // as a "state" constant
@@ -74,25 +127,72 @@ public class NoteEditor extends Activity {
     private static final int STATE_INSERT = 1;
 
     // Global mutable variables
-    private int mState;
-    private Uri mUri;
+    private volatile int mState;
+    private volatile Uri mUri;
     private Cursor mCursor;
     private EditText mText;
-    private String mOriginalContent;
+
+    // The ID of the note's latest revision when editing began, or null until the note is loaded.
+    // The text of the revision is only read if the user reverts the note.
+    private Long mOriginalRevision;
+
+    // The note text as it was last loaded from or written to the provider. Used to tell whether
+    // the text in the editor has been changed by the user since.
+    private volatile String mSavedContent;
+
+    // Saves the user's edits in the background
+    private NoteAutosaver mAutosaver;
+
+    // The version of the note that the text in the editor is based on. Each save only happens if
+    // the note is still at this version, so that it never overwrites a change made elsewhere.
+    // Saved on the autosaver's writer thread and loaded on the UI thread, so it only moves
+    // forward. Guarded by mVersionLock.
+    private long mVersion = UNKNOWN_VERSION;
+    private final Object mVersionLock = new Object();
+
+    // The editing mode, MODE_NORMAL or MODE_LARGE once the note's length has loaded
+    private volatile int mMode = MODE_UNKNOWN;
+
+    // In large note mode: streams the text into the editor, or null once it has loaded
+    private LargeNoteLoader mLargeNoteLoader;
+
+    // In large note mode: true once all of the text has loaded, after which it can be edited
+    // and saved
+    private boolean mLargeNoteLoaded;
+
+    // In large note mode: true if the user has changed the text since it loaded
+    private boolean mLargeNoteEdited;
+
+    // In large note mode: the editor's key listener, put back once the text has loaded
+    private KeyListener mKeyListener;
 
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
+     *
+     * Only the lines inside the canvas's clip, which is the part of the view on screen, are
+     * ruled, so the cost of a frame doesn't grow with the length of the note. The rules are drawn
+     * with a single drawLines() call, from an array of points that is kept between frames.
      */
     public static class LinedEditText extends EditText {
         private Rect mRect;
         private Paint mPaint;
 
+        // The visible part of the view, in the coordinates of its content
+        private Rect mClip;
+
+        // The end points of the rules, four coordinates for each, reused by every frame
+        private float[] mPoints = new float[0];
+
+        // The number of rules drawn by the last frame. Only for tests and benchmarks.
+        private int mRuleCount;
+
         // This constructor is used by LayoutInflater
         public LinedEditText(Context context, AttributeSet attrs) {
             super(context, attrs);
 
             // Creates a Rect and a Paint object, and sets the style and color of the Paint object.
             mRect = new Rect();
+            mClip = new Rect();
             mPaint = new Paint();
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setColor(0x800000FF);
@@ -105,32 +205,62 @@ public class NoteEditor extends Activity {
         @Override
         protected void onDraw(Canvas canvas) {
 
-            // Gets the number of lines of text in the View.
-            int count = getLineCount();
-
             // Gets the global Rect and Paint objects
             Rect r = mRect;
             Paint paint = mPaint;
 
             /*
-             * Draws one line in the rectangle for every line of text in the EditText
+             * Finds the lines of text that are visible. The layout's coordinates start below the
+             * top padding, and a line one either side of the clip is included, since its rule may
+             * fall just inside it.
              */
-            for (int i = 0; i < count; i++) {
-
-                // Gets the baseline coordinates for the current line of text
-                int baseline = getLineBounds(i, r);
+            Layout layout = getLayout();
+            int count = 0;
+            if (layout != null && canvas.getClipBounds(mClip)) {
+                int offset = getExtendedPaddingTop();
+                int first = Math.max(0, layout.getLineForVertical(mClip.top - offset) - 1);
+                int last = Math.min(getLineCount() - 1,
+                        layout.getLineForVertical(mClip.bottom - offset) + 1);
+
+                int needed = (last - first + 1) * 4;
+                if (mPoints.length < needed) {
+                    mPoints = new float[needed];
+                }
 
                 /*
-                 * Draws a line in the background from the left of the rectangle to the right,
-                 * at a vertical position one dip below the baseline, using the "paint" object
-                 * for details.
+                 * Adds one line in the rectangle for every visible line of text in the EditText,
+                 * from the left of the rectangle to the right, at a vertical position one dip
+                 * below the baseline.
                  */
-                canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+                float[] points = mPoints;
+                for (int i = first; i <= last; i++) {
+
+                    // Gets the baseline coordinates for the current line of text
+                    int baseline = getLineBounds(i, r);
+                    points[count * 4] = r.left;
+                    points[count * 4 + 1] = baseline + 1;
+                    points[count * 4 + 2] = r.right;
+                    points[count * 4 + 3] = baseline + 1;
+                    count++;
+                }
+
+                // Draws all of the lines at once, using the "paint" object for details.
+                if (count > 0) {
+                    canvas.drawLines(points, 0, count * 4, paint);
+                }
             }
+            mRuleCount = count;
 
             // Finishes up by calling the parent method
             super.onDraw(canvas);
         }
+
+        /**
+         * Returns the number of rules drawn by the last frame. Only for tests and benchmarks.
+         */
+        int getRuleCountForTest() {
+            return mRuleCount;
+        }
     }
 
     /**
@@ -168,6 +298,7 @@ public class NoteEditor extends Activity {
             // Sets the Activity state to INSERT, gets the general note URI, and inserts an
             // empty record in the provider
             mState = STATE_INSERT;
+            mMode = MODE_NORMAL;
             mUri = getContentResolver().insert(intent.getData(), null);
 
             /*
@@ -199,24 +330,7 @@ public class NoteEditor extends Activity {
             return;
         }
 
-        /*
-         * Using the URI passed in with the triggering Intent, gets the note or notes in
-         * the provider.
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-        mCursor = managedQuery(
-            mUri,         // The URI that gets multiple notes from the provider.
-            PROJECTION,   // A projection that returns the note ID and note content for each note.
-            null,         // No "where" clause selection criteria.
-            null,         // No "where" clause selection values.
-            null          // Use the default sort order (modification date, descending)
-        );
-
         // For a paste, initializes the data from clipboard.
-        // (Must be done after mCursor is initialized.)
         if (Intent.ACTION_PASTE.equals(action)) {
             // Does the paste
             performPaste();
@@ -231,80 +345,233 @@ public class NoteEditor extends Activity {
         mText = (EditText) findViewById(R.id.note);
 
         /*
-         * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
+         * Creates the autosaver, which saves the note a short while after the user stops typing.
+         * It only takes a copy of the text when there is something to save, and writes it on its
+         * own thread.
+         */
+        mAutosaver = new NoteAutosaver(new NoteAutosaver.Callbacks() {
+            @Override
+            public CharSequence getText() {
+                if (mMode == MODE_LARGE) {
+                    return copyLargeNoteText();
+                }
+                return mText.getText().toString();
+            }
+
+            @Override
+            public void save(CharSequence text) {
+                // A new note takes its title from its text, as it always has.
+                updateNote(text, mState == STATE_INSERT ? text.toString() : null);
+            }
+        });
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // The text of a large note is being loaded, not edited, until it has all loaded.
+                if (mMode == MODE_LARGE) {
+                    if (!mLargeNoteLoaded) {
+                        return;
+                    }
+                    mLargeNoteEdited = true;
+                }
+                mAutosaver.onTextChanged();
+            }
+        });
+
+        /*
+         * If this Activity had stopped previously, its state was written the ORIGINAL_REVISION
          * location in the saved Instance state. This gets the state.
          */
-        if (savedInstanceState != null) {
-            mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+        if (savedInstanceState != null && savedInstanceState.containsKey(ORIGINAL_REVISION)) {
+            mOriginalRevision = savedInstanceState.getLong(ORIGINAL_REVISION);
         }
+
+        /*
+         * Starts loading the note, using the URI passed in with the triggering Intent. The query
+         * runs on a background thread, and the loader keeps its cursor across configuration
+         * changes, so a recreated Activity gets the note without querying again.
+         */
+        getLoaderManager().initLoader(NOTE_LOADER, null, this);
     }
 
     /**
-     * This method is called when the Activity is about to come to the foreground. This happens
-     * when the Activity comes to the top of the task stack, OR when it is first starting.
+     * Called by the LoaderManager to create the loader for the note.
+     */
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // The contents of a large note are left out, so that a small note loads in a single
+        // query and a large one is never read whole.
+        return new CursorLoader(
+            this,
+            // The URI that gets the note from the provider.
+            NotePad.Notes.buildBodyLimitUri(mUri, LARGE_NOTE_BYTES),
+            PROJECTION,   // Return the note ID, title, contents, and their length for each note.
+            null,         // No "where" clause selection criteria.
+            null,         // No "where" clause selection values.
+            null          // Use the default sort order (modification date, descending)
+        );
+    }
+
+    /**
+     * Called by the LoaderManager when the note has loaded, either for the first time or again
+     * after the provider notified a change to it (such as a new title).
+     *
+     * Sets an appropriate title for the action chosen by the user, puts the note contents into
+     * the TextView, and remembers the original revision of the note. The contents are only
+     * replaced if the user hasn't changed the text since it was last loaded or saved, so that a
+     * reload never discards the user's work.
      *
-     * Moves to the first note in the list, sets an appropriate title for the action chosen by
-     * the user, puts the note contents into the TextView, and saves the original text as a
-     * backup.
+     * The first load chooses the editing mode from the length of the note. An ordinary note
+     * comes with its contents, and a large one, whose contents are left out, is streamed into
+     * the editor.
      */
     @Override
-    protected void onResume() {
-        super.onResume();
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
 
         /*
-         * mCursor is initialized, since onCreate() always precedes onResume for any running
-         * process. This tests that it's not null, since it should always contain data.
+         * Moves to the first record. Always call moveToFirst() before accessing data in
+         * a Cursor for the first time. If there is no record, the note no longer exists.
          */
-        if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
+        if (data == null || !data.moveToFirst()) {
+            mCursor = null;
+            setTitle(getText(R.string.error_title));
+            mText.setText(getText(R.string.error_message));
+            return;
+        }
 
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
+        // Chooses the editing mode from the length of the note.
+        long length = data.getLong(data.getColumnIndex(NotePad.Notes.COLUMN_NAME_LENGTH));
+        if (mMode == MODE_UNKNOWN) {
+            mMode = length < LARGE_NOTE_BYTES ? MODE_NORMAL : MODE_LARGE;
+        }
+        boolean firstLoad = (mCursor == null);
+        mCursor = data;
 
-            // Modifies the window title for the Activity according to the current Activity state.
-            if (mState == STATE_EDIT) {
-                // Set the title of the Activity to include the note title
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
-                Resources res = getResources();
-                String text = String.format(res.getString(R.string.title_edit), title);
-                setTitle(text);
-            // Sets the title to "create" for inserts
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
-            }
+        // Modifies the window title for the Activity according to the current Activity state.
+        if (mState == STATE_EDIT) {
+            // Set the title of the Activity to include the note title
+            int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+            String title = mCursor.getString(colTitleIndex);
+            Resources res = getResources();
+            String text = String.format(res.getString(R.string.title_edit), title);
+            setTitle(text);
+        // Sets the title to "create" for inserts
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
 
-            /*
-             * onResume() may have been called after the Activity lost focus (was paused).
-             * The user was either editing or creating a note when the Activity paused.
-             * The Activity should re-display the text that had been retrieved previously, but
-             * it should not move the cursor. This helps the user to continue editing or entering.
-             */
+        // The text of a large note is streamed in once, and never replaced by a reload.
+        if (mMode == MODE_LARGE) {
+            if (firstLoad) {
+                advanceVersion(mCursor.getLong(
+                        mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION)));
+                startLoadingLargeNote();
+            }
+            storeOriginalRevision();
+            return;
+        }
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
+        // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
+        // the text cursor's position.
+        // If the note has grown too large since it was opened, changed elsewhere, its contents
+        // were left out, and the editor keeps its text.
+        if (length >= LARGE_NOTE_BYTES) {
+            storeOriginalRevision();
+            return;
+        }
+        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+        String note = mCursor.getString(colNoteIndex);
+        // The editor's text is now based on the loaded version of the note, unless the user has
+        // unsaved changes, which are still based on the version they started from.
+        if (firstLoad || mSavedContent == null
+                || mSavedContent.equals(mText.getText().toString())) {
             mText.setTextKeepState(note);
+            advanceVersion(mCursor.getLong(
+                    mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_VERSION)));
+        }
+        mSavedContent = note;
+        mAutosaver.setPersisted(note);
+        storeOriginalRevision();
+    }
+
+    /**
+     * Stores the original revision of the note, to allow the user to revert changes.
+     */
+    private void storeOriginalRevision() {
+        if (mOriginalRevision == null) {
+            int colRevisionIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_REVISION);
+            mOriginalRevision = mCursor.isNull(colRevisionIndex)
+                    ? NO_REVISION : mCursor.getLong(colRevisionIndex);
+        }
+    }
 
-            // Stores the original note text, to allow the user to revert changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
+    /**
+     * Starts streaming the text of a large note into the editor. The editor is read-only until
+     * all of the text has loaded, so that a save never truncates the note.
+     */
+    private void startLoadingLargeNote() {
+        mKeyListener = mText.getKeyListener();
+        mText.setKeyListener(null);
+        mText.setText("");
+        mLargeNoteLoader = new LargeNoteLoader(getContentResolver(), mUri,
+                new LargeNoteLoader.Callbacks() {
+            @Override
+            public void onChunk(String chunk) {
+                mText.append(chunk);
             }
 
-        /*
-         * Something is wrong. The Cursor should always contain data. Report an error in the
-         * note.
-         */
-        } else {
-            setTitle(getText(R.string.error_title));
-            mText.setText(getText(R.string.error_message));
-        }
+            @Override
+            public void onLoaded() {
+                mLargeNoteLoader = null;
+                mLargeNoteLoaded = true;
+                mText.setKeyListener(mKeyListener);
+                mAutosaver.setPersisted(copyLargeNoteText());
+            }
+
+            @Override
+            public void onLoadFailed() {
+                // Stays read-only, so that the part of the note that loaded is never saved.
+                mLargeNoteLoader = null;
+                setTitle(getText(R.string.error_title));
+                Toast.makeText(NoteEditor.this, R.string.error_message, Toast.LENGTH_LONG).show();
+            }
+        });
+        mLargeNoteLoader.start();
+    }
+
+    /**
+     * Returns a single copy of the characters of a large note in the editor, which is written out
+     * as it is, without ever turning it into a String.
+     */
+    private CharSequence copyLargeNoteText() {
+        Editable text = mText.getText();
+        char[] chars = new char[text.length()];
+        text.getChars(0, chars.length, chars, 0);
+        return CharBuffer.wrap(chars);
+    }
+
+    /**
+     * Returns true if the editor holds the whole of the note, so that it can be saved. A large
+     * note can't be saved until all of its text has loaded.
+     */
+    private boolean hasNote() {
+        return mCursor != null && (mMode != MODE_LARGE || mLargeNoteLoaded);
+    }
+
+    /**
+     * Called by the LoaderManager when the note's cursor is about to be closed.
+     */
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
     }
 
     /**
@@ -317,9 +584,11 @@ public class NoteEditor extends Activity {
      */
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-        // Save away the original text, so we still have it if the activity
+        // Save away the original revision, so we still have it if the activity
         // needs to be killed while paused.
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
+        if (mOriginalRevision != null) {
+            outState.putLong(ORIGINAL_REVISION, mOriginalRevision);
+        }
     }
 
     /**
@@ -341,14 +610,10 @@ public class NoteEditor extends Activity {
         /*
          * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
          * will exist, even if no records were returned, unless the query failed because of some
-         * exception or error.
+         * exception or error. A large note that hasn't finished loading is left as it is.
          *
          */
-        if (mCursor != null) {
-
-            // Get the current note text.
-            String text = mText.getText().toString();
-            int length = text.length();
+        if (hasNote()) {
 
             /*
              * If the Activity is in the midst of finishing and there is no text in the current
@@ -356,23 +621,36 @@ public class NoteEditor extends Activity {
              * even if the note was being edited, the assumption being that the user wanted to
              * "clear out" (delete) the note.
              */
-            if (isFinishing() && (length == 0)) {
+            if (isFinishing() && (mText.length() == 0)) {
                 setResult(RESULT_CANCELED);
+                mAutosaver.cancel();
                 deleteNote();
 
                 /*
-                 * Writes the edits to the provider. The note has been edited if an existing note was
-                 * retrieved into the editor *or* if a new note was inserted. In the latter case,
-                 * onCreate() inserted a new empty note into the provider, and it is this new note
-                 * that is being edited.
+                 * Writes any edits that haven't been saved yet to the provider. The note has been
+                 * edited if an existing note was retrieved into the editor *or* if a new note was
+                 * inserted. In the latter case, onCreate() inserted a new empty note into the
+                 * provider, and it is this new note that is being edited. This only blocks if
+                 * there is a save to wait for.
                  */
-            } else if (mState == STATE_EDIT) {
-                // Creates a map to contain the new values for the columns
-                updateNote(text, null);
-            } else if (mState == STATE_INSERT) {
-                updateNote(text, text);
+            } else {
+                mAutosaver.flush();
                 mState = STATE_EDIT;
-          }
+            }
+        }
+    }
+
+    /**
+     * Stops the autosaver's writer thread. onPause() has already saved or discarded the note.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLargeNoteLoader != null) {
+            mLargeNoteLoader.cancel();
+        }
+        if (mAutosaver != null) {
+            mAutosaver.quit();
         }
     }
 
@@ -410,11 +688,12 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
+        // Check if note has changed and enable/disable the revert option. The text of a large
+        // note isn't copied to compare it.
+        if (mMode == MODE_LARGE) {
+            menu.findItem(R.id.menu_revert).setVisible(mLargeNoteEdited);
+        } else if (mSavedContent == null
+                || mSavedContent.equals(mText.getText().toString())) {
             menu.findItem(R.id.menu_revert).setVisible(false);
         } else {
             menu.findItem(R.id.menu_revert).setVisible(true);
@@ -436,8 +715,7 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         int id = item.getItemId();
         if(id== R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            mAutosaver.flush();
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
@@ -492,8 +770,8 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+                        int colNoteIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+                        int colTitleIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
                         text = orig.getString(colNoteIndex);
                         title = orig.getString(colTitleIndex);
                     }
@@ -520,63 +798,204 @@ public class NoteEditor extends Activity {
      * @param text The new note contents to use.
      * @param title The new note title to use
      */
-    private final void updateNote(String text, String title) {
+    private final void updateNote(CharSequence text, String title) {
 
         // Sets up a map to contain values to be updated in the provider.
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
         // If the action is to insert a new note, this creates an initial title for it.
-        if (mState == STATE_INSERT) {
-
-            // If no title was provided as an argument, create one from the note text.
-            if (title == null) {
-  
-                // Get the note's length
-                int length = text.length();
-
-                // Sets the title by getting a substring of the text that is 31 characters long
-                // or the number of characters in the note plus one, whichever is smaller.
-                title = text.substring(0, Math.min(30, length));
-  
-                // If the resulting length is more than 30 characters, chops off any
-                // trailing spaces
-                if (length > 30) {
-                    int lastSpace = title.lastIndexOf(' ');
-                    if (lastSpace > 0) {
-                        title = title.substring(0, lastSpace);
-                    }
-                }
-            }
-            // In the values map, sets the value of the title
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        if (mState == STATE_INSERT && title == null) {
+
+            // If no title was provided as an argument, a null title asks the provider to derive
+            // one from the note text as it saves it.
+            values.putNull(NotePad.Notes.COLUMN_NAME_TITLE);
         } else if (title != null) {
             // In the values map, sets the value of the title
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
         }
 
-        // This puts the desired notes text into the map.
-        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        // This puts the desired notes text into the map. The text of a large note is written
+        // through a pipe instead, and never made into a String.
+        boolean large = !(text instanceof String);
+        if (!large) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, (String) text);
+            mSavedContent = (String) text;
+        }
 
         /*
-         * Updates the provider with the new values in the map. The ListView is updated
+         * Updates the provider with the new values in the map, if the note is still at the
+         * version the editor's text is based on. The ListView is updated
          * automatically. The provider sets this up by setting the notification URI for
          * query Cursor objects to the incoming URI. The content resolver is thus
          * automatically notified when the Cursor for the URI changes, and the UI is
          * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Note: Edits are saved here on the autosaver's writer thread. Only a paste, which
+         * happens once when the Activity starts, still updates the note on the UI thread.
          */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-            );
+        Uri noteUri = mUri;
+        long version = getVersion();
+        int count;
+        if (large) {
+            count = writeLargeNote(getVersionedUri(noteUri, version), values, text);
+        } else {
+            count = getContentResolver().update(
+                    getVersionedUri(noteUri, version), // The URI for the record to update.
+                    values,  // The map of column names and new values to apply to them.
+                    null,    // No selection criteria are used, so no where columns are necessary.
+                    null     // No where columns are used, so no where arguments are necessary.
+                );
+        }
+
+        // Each update moves the note to its next version. If the note was no longer at the
+        // expected version, it was changed elsewhere, and the text is kept in a new note instead.
+        if (count > 0) {
+            if (version != UNKNOWN_VERSION) {
+                advanceVersion(version + 1);
+            }
+        } else if (version != UNKNOWN_VERSION) {
+            saveConflictCopy(noteUri, text);
+        }
+    }
+
+    /**
+     * Saves text that conflicts with a change made elsewhere as a new note, which takes its
+     * title from the text, and goes on editing the new note. The other change is left as it is.
+     * Called on the autosaver's writer thread.
+     */
+    private void saveConflictCopy(Uri noteUri, CharSequence text) {
+        ContentValues values = new ContentValues();
+        values.putNull(NotePad.Notes.COLUMN_NAME_TITLE);
+        Uri copyUri;
+        long copyVersion = NotePad.Notes.FIRST_VERSION;
+        if (text instanceof String) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, (String) text);
+            copyUri = getContentResolver().insert(NotePad.Notes.CONTENT_URI, values);
+        } else {
+            // The text of a large note is written to an empty new note through a pipe.
+            copyUri = getContentResolver().insert(NotePad.Notes.CONTENT_URI, null);
+            if (copyUri != null && writeLargeNote(NotePad.Notes.buildExpectedVersionUri(
+                    copyUri, copyVersion), values, text) == 0) {
+                copyUri = null;
+            }
+            copyVersion++;
+        }
+        if (copyUri == null) {
+            Log.e(TAG, "Failed to save the conflicting changes to " + noteUri);
+            return;
+        }
+        Log.w(TAG, noteUri + " was changed elsewhere; saved the changes as " + copyUri);
+
+        // Later saves go to the new note, at the version it was saved as.
+        synchronized (mVersionLock) {
+            mUri = copyUri;
+            mVersion = copyVersion;
+        }
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (isFinishing()) {
+                    return;
+                }
+                mOriginalRevision = NO_REVISION;
+                getLoaderManager().restartLoader(NOTE_LOADER, null, NoteEditor.this);
+                Toast.makeText(NoteEditor.this, R.string.note_conflict, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Writes the text of a large note with {@link NotePad.Streams#METHOD_WRITE_NOTE}, along with
+     * the other values, through a pipe that is fed from a thread of its own while the provider
+     * reads it. Called on the autosaver's writer thread.
+     *
+     * @param uri The note URI, with the version the update expects, if any.
+     * @return The number of notes updated, 0 if the note was not at the expected version.
+     */
+    private int writeLargeNote(final Uri uri, ContentValues values, final CharSequence text) {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open a pipe to write " + uri, e);
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeText(new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]), text);
+                } catch (IOException e) {
+                    // The provider stopped reading, and saves nothing.
+                    Log.w(TAG, "Failed to write the text of " + uri, e);
+                }
+            }
+        }, TAG).start();
+
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(NotePad.Streams.KEY_TEXT, pipe[0]);
+            extras.putInt(NotePad.Streams.KEY_LENGTH, text.length());
+            extras.putParcelable(NotePad.Streams.KEY_VALUES, values);
+            Bundle result = getContentResolver().call(NotePad.Notes.CONTENT_URI,
+                    NotePad.Streams.METHOD_WRITE_NOTE, uri.toString(), extras);
+            return result != null ? result.getInt(NotePad.Streams.KEY_COUNT) : 0;
+        } finally {
+            try {
+                pipe[0].close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the pipe for " + uri, e);
+            }
+        }
+    }
+
+    /**
+     * Writes text to a stream as UTF-8, and closes the stream. The characters of a snapshot
+     * taken by the autosaver are written straight from its array.
+     */
+    private static void writeText(OutputStream out, CharSequence text) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        try {
+            if (text instanceof CharBuffer && ((CharBuffer) text).hasArray()) {
+                CharBuffer chars = (CharBuffer) text;
+                writer.write(chars.array(), chars.arrayOffset() + chars.position(),
+                        chars.remaining());
+            } else {
+                writer.append(text);
+            }
+        } finally {
+            writer.close();
+        }
+    }
 
+    /**
+     * Returns the version of the note the editor's text is based on, or UNKNOWN_VERSION if the
+     * note hasn't loaded yet.
+     */
+    private long getVersion() {
+        synchronized (mVersionLock) {
+            return mVersion;
+        }
+    }
 
+    /**
+     * Moves the version the editor's text is based on forward. A version older than the
+     * current one, from a load that finished after a save, is ignored.
+     */
+    private void advanceVersion(long version) {
+        synchronized (mVersionLock) {
+            if (version > mVersion) {
+                mVersion = version;
+            }
+        }
+    }
+
+    /**
+     * Returns the URI for an update of a note that only happens if it is at the given version,
+     * or the note URI itself if the version is unknown.
+     */
+    private static Uri getVersionedUri(Uri noteUri, long version) {
+        return version != UNKNOWN_VERSION
+                ? NotePad.Notes.buildExpectedVersionUri(noteUri, version) : noteUri;
     }
 
     /**
@@ -585,13 +1004,25 @@ public class NoteEditor extends Activity {
      */
     private final void cancelNote() {
         if (mCursor != null) {
+            // Drops unsaved edits, and waits for saves in progress, so they can't overwrite the
+            // revert.
+            mAutosaver.cancel();
             if (mState == STATE_EDIT) {
-                // Put the original note text back into the database
-                mCursor.close();
+                // Put the original note text back into the database. Stops the loader first,
+                // since the Activity is finishing and doesn't need the reloaded note.
+                getLoaderManager().destroyLoader(NOTE_LOADER);
                 mCursor = null;
-                ContentValues values = new ContentValues();
-                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                String original = getOriginalContent();
+                if (original != null) {
+                    // Reverts only the editor's own changes. If the note was changed elsewhere
+                    // since, the revert would overwrite that change, so it is left alone.
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, original);
+                    if (getContentResolver().update(getVersionedUri(mUri, getVersion()),
+                            values, null, null) == 0) {
+                        Log.w(TAG, "Not reverting " + mUri + ", which was changed elsewhere");
+                    }
+                }
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -601,12 +1032,57 @@ public class NoteEditor extends Activity {
         finish();
     }
 
+    /**
+     * Reads the text of the note as it was when editing began, from the note's revision history.
+     * If that revision has since been compacted away, returns the oldest revision kept instead.
+     *
+     * @return The original text, or null if the note has no revision since editing began, which
+     * means that the text in the provider is still the original.
+     */
+    private String getOriginalContent() {
+        long noteId = ContentUris.parseId(mUri);
+
+        // Finds the oldest revision at or after the original one.
+        Cursor revisions = getContentResolver().query(
+                NotePad.Revisions.buildRevisionsUri(noteId),
+                new String[] { NotePad.Revisions._ID },
+                NotePad.Revisions._ID + " >= ?",
+                new String[] { String.valueOf(mOriginalRevision) },
+                NotePad.Revisions._ID + " ASC");
+        if (revisions == null) {
+            return null;
+        }
+        long revisionId;
+        try {
+            if (!revisions.moveToFirst()) {
+                return null;
+            }
+            revisionId = revisions.getLong(0);
+        } finally {
+            revisions.close();
+        }
+
+        // Gets the text of the note at that revision.
+        Cursor revision = getContentResolver().query(
+                NotePad.Revisions.buildRevisionUri(noteId, revisionId),
+                new String[] { NotePad.Revisions.COLUMN_NAME_NOTE },
+                null, null, null);
+        if (revision == null) {
+            return null;
+        }
+        try {
+            return revision.moveToFirst() ? revision.getString(0) : null;
+        } finally {
+            revision.close();
+        }
+    }
+
     /**
      * Take care of deleting a note.  Simply deletes the entry.
      */
     private final void deleteNote() {
         if (mCursor != null) {
-            mCursor.close();
+            getLoaderManager().destroyLoader(NOTE_LOADER);
             mCursor = null;
             getContentResolver().delete(mUri, null, null);
             mText.setText("");
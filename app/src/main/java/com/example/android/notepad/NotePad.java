@@ -78,6 +78,11 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * The content:// style URL for this table
          */
@@ -103,6 +108,88 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content:// style URL for full-text searches of the notes. The search terms are
+         * passed in the {@link #SEARCH_QUERY_PARAMETER} query parameter, for example
+         * <code>content://com.google.provider.NotePad/notes/search?q=groceries</code>.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The name of the {@link #SEARCH_URI} query parameter that holds the search terms. Each
+         * whitespace-separated term is matched as a word prefix.
+         */
+        public static final String SEARCH_QUERY_PARAMETER = "q";
+
+        /**
+         * The name of the {@link #CONTENT_URI} query parameter that limits a query to one page of
+         * notes. A paged query is always sorted by {@link #PAGED_SORT_ORDER}, and each page after
+         * the first starts after the last note of the previous page, given by
+         * {@link #PAGE_AFTER_MODIFIED_PARAMETER} and {@link #PAGE_AFTER_ID_PARAMETER}.
+         */
+        public static final String PAGE_SIZE_PARAMETER = "limit";
+
+        /**
+         * The name of the {@link #CONTENT_URI} query parameter that holds the modification date
+         * of the last note of the previous page.
+         */
+        public static final String PAGE_AFTER_MODIFIED_PARAMETER = "after_modified";
+
+        /**
+         * The name of the {@link #CONTENT_URI} query parameter that holds the ID of the last note
+         * of the previous page.
+         */
+        public static final String PAGE_AFTER_ID_PARAMETER = "after_id";
+
+        /**
+         * The name of the note ID URI query parameter that makes an update conditional on the
+         * note's {@link #COLUMN_NAME_VERSION}. The update only happens if the note is still at
+         * the given version; otherwise it changes nothing and returns 0, without waiting for or
+         * overwriting the other writer's change. A client that read the note at version N, and
+         * has made every update since, knows the note is at version N plus its number of
+         * updates, and so doesn't need to read the note again before each save. After a 0 the
+         * client can query the note to tell a conflict from a deleted note. In a batch, use
+         * {@link android.content.ContentProviderOperation.Builder#withExpectedCount(int)} to
+         * fail the whole batch on a conflict.
+         * <P>
+         * For example, <code>content://com.google.provider.NotePad/notes/1?expected_version=3
+         * </code>. Only a note ID URI takes the parameter.
+         */
+        public static final String EXPECTED_VERSION_PARAMETER = "expected_version";
+
+        /**
+         * Builds the URI for an update of a note that only happens if the note is at the given
+         * version. See {@link #EXPECTED_VERSION_PARAMETER}.
+         */
+        public static Uri buildExpectedVersionUri(Uri noteUri, long version) {
+            return noteUri.buildUpon()
+                    .appendQueryParameter(EXPECTED_VERSION_PARAMETER, String.valueOf(version))
+                    .build();
+        }
+
+        /**
+         * The name of the note ID URI query parameter that leaves the text of a large note out
+         * of a query. The {@link #COLUMN_NAME_NOTE} column holds the text only if the note's
+         * {@link #COLUMN_NAME_LENGTH} is less than the given number of bytes, and is null
+         * otherwise; the other columns are returned as usual. A client can then read a small
+         * note, or find out that a note is too large to read in one piece and should be
+         * streamed (see {@link Streams}), with a single query.
+         * <P>
+         * For example, <code>content://com.google.provider.NotePad/notes/1?body_limit=524288
+         * </code>. Only a note ID query takes the parameter.
+         */
+        public static final String BODY_LIMIT_PARAMETER = "body_limit";
+
+        /**
+         * Builds the URI for a query of a note that only returns its text if it is shorter than
+         * the given number of bytes. See {@link #BODY_LIMIT_PARAMETER}.
+         */
+        public static Uri buildBodyLimitUri(Uri noteUri, long bytes) {
+            return noteUri.buildUpon()
+                    .appendQueryParameter(BODY_LIMIT_PARAMETER, String.valueOf(bytes))
+                    .build();
+        }
+
         /*
          * MIME type definitions
          */
@@ -123,18 +210,44 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The default sort order for {@link #SEARCH_URI}, best matches first
+         */
+        public static final String SEARCH_SORT_ORDER = "rank DESC, modified DESC";
+
+        /**
+         * The sort order of a paged query. The ID breaks ties between notes with the same
+         * modification date, so that every note has a unique position to continue from.
+         */
+        public static final String PAGED_SORT_ORDER = "modified DESC, _id ASC";
+
+        /**
+         * A sort order by title. Like {@link #DEFAULT_SORT_ORDER} and {@link #CREATED_SORT_ORDER},
+         * it is read from an index, either ascending or descending. A title sort with another
+         * collation, such as NOCASE, sorts the whole list.
+         */
+        public static final String TITLE_SORT_ORDER = "title ASC";
+
+        /**
+         * A sort order by creation date, newest first
+         */
+        public static final String CREATED_SORT_ORDER = "created DESC";
+
         /*
          * Column definitions
          */
 
         /**
-         * Column name for the title of the note
+         * Column name for the title of the note. Writing a null title along with the note text
+         * asks the provider to make the title from the start of the text.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. The provider stores large notes compressed, and
+         * returns them as text, but a selection or sort order on this column only sees the
+         * notes stored as text; search for words in notes with {@link #SEARCH_URI} instead.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
@@ -150,5 +263,544 @@ public final class NotePad {
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * Column name for the start of the note, on one line, for showing in a list. It is at
+         * most {@link #PREVIEW_LENGTH} characters long, and is kept up to date by the provider.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_PREVIEW = "preview";
+
+        /**
+         * Column name for the number of words in the note, kept up to date by the provider. It
+         * is null for a note written by an older version of the app until the provider has
+         * counted it, which it does in the background after an upgrade.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_WORD_COUNT = "word_count";
+
+        /**
+         * Column name for the matching excerpt of a note, only available from {@link #SEARCH_URI}.
+         * For a large note that only matched in its text, it may be the note's
+         * {@link #COLUMN_NAME_PREVIEW} instead.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * Column name for the relevance of a search match, only available from
+         * {@link #SEARCH_URI}. Higher values are better matches.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_RANK = "rank";
+
+        /**
+         * Column name for the ID of the note's latest revision, or null if the note has not been
+         * changed since it was created. Pass it to {@link Revisions#buildRevisionUri(long, long)}
+         * to get the note's text as it was at that revision.
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_REVISION = "revision";
+
+        /**
+         * Column name for the version of the note, which is {@link #FIRST_VERSION} when the note
+         * is inserted and goes up by exactly 1 with every update of the note. It is kept by the
+         * provider, which ignores values written to it. See
+         * {@link #EXPECTED_VERSION_PARAMETER}.
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_VERSION = "version";
+
+        /**
+         * Column name for the length of the note text in UTF-8 bytes. The provider knows it
+         * without reading the text, so it is a cheap way to find out whether a note is too large
+         * to read in one piece; see {@link Streams}.
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_LENGTH = "length";
+
+        /**
+         * The {@link #COLUMN_NAME_VERSION} of a newly inserted note
+         */
+        public static final long FIRST_VERSION = 1;
+
+        /**
+         * The columns a list of notes needs, and the default projection of {@link #CONTENT_URI}.
+         * It leaves out the note body, which can be large, in favor of the short
+         * {@link #COLUMN_NAME_PREVIEW} and the precomputed {@link #COLUMN_NAME_WORD_COUNT}. Ask
+         * for {@link #COLUMN_NAME_NOTE} explicitly to get the body. {@link #LIVE_FOLDER_URI}
+         * likewise returns the preview as the live folder item's description.
+         */
+        public static final String[] LIST_PROJECTION = new String[] {
+            _ID,
+            COLUMN_NAME_TITLE,
+            COLUMN_NAME_MODIFICATION_DATE,
+            COLUMN_NAME_PREVIEW,
+            COLUMN_NAME_WORD_COUNT
+        };
+
+        /**
+         * The maximum length of {@link #COLUMN_NAME_PREVIEW}, in characters
+         */
+        public static final int PREVIEW_LENGTH = 100;
+    }
+
+    /**
+     * Revisions table contract. Every change to the text of a note through the provider records
+     * a revision, whether it updates a single note or many notes at once, through
+     * {@link Notes#CONTENT_URI}. Revisions are read-only, and are deleted with their note.
+     */
+    public static final class Revisions implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Revisions() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "revisions";
+
+        /**
+         * The path segment that follows a note ID URI to list the note's revisions, for example
+         * <code>content://com.google.provider.NotePad/notes/1/revisions</code>. Append a revision
+         * ID to get a single revision.
+         */
+        public static final String PATH_SEGMENT = "revisions";
+
+        /**
+         * 0-relative position of a revision ID segment in the path part of a revision ID URI
+         */
+        public static final int REVISION_ID_PATH_POSITION = 3;
+
+        /*
+         * MIME type definitions
+         */
+
+        /**
+         * The MIME type of a directory of the revisions of a note.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.google.note.revision";
+
+        /**
+         * The MIME type of a single revision of a note.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.google.note.revision";
+
+        /**
+         * The default sort order for the revisions of a note, newest first
+         */
+        public static final String DEFAULT_SORT_ORDER = "_id DESC";
+
+        /**
+         * Builds the URI that lists the revisions of a note.
+         */
+        public static Uri buildRevisionsUri(long noteId) {
+            return Notes.CONTENT_ID_URI_BASE.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(PATH_SEGMENT)
+                    .build();
+        }
+
+        /**
+         * Builds the URI of a single revision of a note. A query on it returns the text of the
+         * note as it was at that revision, in {@link #COLUMN_NAME_NOTE}.
+         */
+        public static Uri buildRevisionUri(long noteId, long revisionId) {
+            return buildRevisionsUri(noteId).buildUpon()
+                    .appendPath(String.valueOf(revisionId))
+                    .build();
+        }
+
+        /*
+         * Column definitions
+         */
+
+        /**
+         * Column name for the ID of the note the revision belongs to
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_ID = "note_id";
+
+        /**
+         * Column name for the time the revision was recorded
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String COLUMN_NAME_CREATE_DATE = "created";
+
+        /**
+         * Column name for whether the revision is stored as the full text of the note (1) or as
+         * a change (0). Always 0 since database version 12, which stores every revision as the
+         * change back from the revision after it, the newest from the current text of the note.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_SNAPSHOT = "snapshot";
+
+        /**
+         * Column name for the text of the note at the revision, only available from a single
+         * revision URI
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NOTE = "note";
+    }
+
+    /**
+     * Large note contract. A note of several megabytes is too large to read or write in one
+     * piece: a cursor window can't hold it, and a client would need the whole text as a single
+     * String. Instead, a client reads the text of a note from the text/plain stream of its note
+     * ID URI, opened with {@link #OPTION_BODY_ONLY}, and writes it through a pipe with
+     * {@link #METHOD_WRITE_NOTE}.
+     */
+    public static final class Streams {
+
+        // This class cannot be instantiated
+        private Streams() {}
+
+        /**
+         * The boolean option of
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor(Uri, String,
+         * android.os.Bundle)} that asks for the text of the note alone, without the title and
+         * the line separators around it. The length of the returned descriptor is the
+         * length of the text, in UTF-8 bytes.
+         */
+        public static final String OPTION_BODY_ONLY = "body_only";
+
+        /**
+         * The {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}
+         * method that replaces the text of a note with text read from a pipe, called on
+         * {@link Notes#CONTENT_URI}. The argument is the note ID URI, which may have a
+         * {@link Notes#EXPECTED_VERSION_PARAMETER}. The extras hold the read end of the pipe in
+         * {@link #KEY_TEXT}, the length of the text in {@link #KEY_LENGTH}, and any other columns
+         * to update with it in {@link #KEY_VALUES}. The write is an update of the note, and
+         * returns the number of notes updated in {@link #KEY_COUNT}.
+         * <P>
+         * The caller must write the text to the pipe as UTF-8, on another thread, and close it.
+         * Text shorter than its length, because the writer failed, is never saved. Only the app
+         * itself may call this method; other callers get a SecurityException.
+         */
+        public static final String METHOD_WRITE_NOTE = "writeNote";
+
+        /**
+         * The read end of the pipe the text is written to
+         * <P>Type: ParcelFileDescriptor</P>
+         */
+        public static final String KEY_TEXT = "text";
+
+        /**
+         * The length of the text, in characters
+         * <P>Type: int</P>
+         */
+        public static final String KEY_LENGTH = "length";
+
+        /**
+         * The other columns to update along with the text, such as the modification date.
+         * Optional.
+         * <P>Type: ContentValues</P>
+         */
+        public static final String KEY_VALUES = "values";
+
+        /**
+         * The number of notes updated by the write, 0 or 1
+         * <P>Type: int</P>
+         */
+        public static final String KEY_COUNT = "count";
+    }
+
+    /**
+     * Archive contract. All of the notes can be exported as a single stream, to back them up or
+     * move them to another device, and imported again from it. The archive holds the title,
+     * text, creation date and modification date of every note that isn't deleted; revisions are
+     * not exported. It is written and read one note at a time, so it takes the same memory
+     * whether it holds ten notes or a hundred thousand.
+     * <P>
+     * A client exports the notes by opening {@link #CONTENT_URI} for reading, with
+     * {@link android.content.ContentResolver#openInputStream(Uri)} or
+     * {@link android.content.ContentResolver#openTypedAssetFileDescriptor(Uri, String,
+     * android.os.Bundle)} for {@link #CONTENT_TYPE}. The notes are written into a pipe as they
+     * are read, so the length of the stream is unknown. A note changed while the export runs may
+     * be exported with some of its old text and some of its new text.
+     * <P>
+     * A client imports an archive with {@link #METHOD_IMPORT_NOTES}.
+     */
+    public static final class Archive {
+
+        // This class cannot be instantiated
+        private Archive() {}
+
+        /**
+         * The content:// style URL of the archive of all the notes
+         */
+        public static final Uri CONTENT_URI =
+                Uri.parse("content://" + AUTHORITY + "/notes/export");
+
+        /**
+         * The MIME type of an archive
+         */
+        public static final String CONTENT_TYPE = "application/vnd.google.note-archive";
+
+        /**
+         * The name of the {@link #CONTENT_URI} query parameter that asks for a compressed
+         * archive, when "true". Notes are mostly text, which deflate compresses to a fraction of
+         * its size, at the cost of a slower export.
+         */
+        public static final String COMPRESS_PARAMETER = "compress";
+
+        /**
+         * The {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)}
+         * method that imports an archive, called on {@link Notes#CONTENT_URI}. The extras hold
+         * the archive in {@link #KEY_ARCHIVE}, which may be a file or the read end of a pipe. The
+         * notes are added as new notes, with new IDs, alongside the notes already there. The
+         * number of notes imported is returned in {@link #KEY_COUNT}.
+         * <P>
+         * The notes are inserted in batches, each in its own transaction, so that other clients
+         * can read and write between them, but they only appear once the whole archive has been
+         * read, all at once. If the archive is corrupt or truncated, the method throws an
+         * IllegalArgumentException, and none of its notes are imported. Only the app itself may
+         * call this method; other callers get a SecurityException.
+         */
+        public static final String METHOD_IMPORT_NOTES = "importNotes";
+
+        /**
+         * The archive to import
+         * <P>Type: ParcelFileDescriptor</P>
+         */
+        public static final String KEY_ARCHIVE = "archive";
+
+        /**
+         * The number of notes imported
+         * <P>Type: int</P>
+         */
+        public static final String KEY_COUNT = "count";
+    }
+
+    /**
+     * Provider metrics contract. The provider records the latency of its operations, and returns
+     * them from {@link android.content.ContentResolver#call(Uri, String, String,
+     * android.os.Bundle)}, called on {@link Notes#CONTENT_URI} with {@link #METHOD_GET_METRICS}.
+     *
+     * The returned Bundle holds the counters below, and a {@link #KEY_OPERATIONS} Bundle with one
+     * Bundle for each kind of operation and type of URI that has been used, under a key such as
+     * "query/notes" or "update/note_id". The kinds are query, fill (a query cursor reading a
+     * window of rows), insert, update, delete and stream. It also holds a {@link #KEY_CACHES}
+     * Bundle with one Bundle for each of the provider's caches: "notes", the notes most recently
+     * read, and "query_plans", the SQL of the queries by their shape.
+     */
+    public static final class Metrics {
+
+        // This class cannot be instantiated
+        private Metrics() {}
+
+        /**
+         * The method that returns the metrics recorded since the provider started, or since
+         * they were last reset.
+         */
+        public static final String METHOD_GET_METRICS = "getMetrics";
+
+        /**
+         * The method that resets the metrics. Returns null.
+         */
+        public static final String METHOD_RESET_METRICS = "resetMetrics";
+
+        /*
+         * Keys of the metrics Bundle
+         */
+
+        /**
+         * The time the metrics cover, in milliseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_ELAPSED_MILLIS = "elapsed_millis";
+
+        /**
+         * The number of bytes of notes written to streams
+         * <P>Type: long</P>
+         */
+        public static final String KEY_BYTES_STREAMED = "bytes_streamed";
+
+        /**
+         * The number of transactions the provider began
+         * <P>Type: long</P>
+         */
+        public static final String KEY_LOCK_WAITS = "lock_waits";
+
+        /**
+         * The total time spent waiting to begin transactions, mostly for the database lock, in
+         * microseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_LOCK_WAIT_MICROS = "lock_wait_micros";
+
+        /**
+         * The longest wait to begin a transaction, in microseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_LOCK_WAIT_MAX_MICROS = "lock_wait_max_micros";
+
+        /**
+         * The upper bound of each latency bucket, in microseconds. The last bucket has no bound.
+         * <P>Type: long[]</P>
+         */
+        public static final String KEY_BUCKET_BOUNDS_MICROS = "bucket_bounds_micros";
+
+        /**
+         * The Bundle of operations, by kind and URI type
+         * <P>Type: Bundle</P>
+         */
+        public static final String KEY_OPERATIONS = "operations";
+
+        /*
+         * Keys of an operation Bundle
+         */
+
+        /**
+         * The number of times the operation ran
+         * <P>Type: long</P>
+         */
+        public static final String KEY_COUNT = "count";
+
+        /**
+         * The number of rows the operation read or changed, in total
+         * <P>Type: long</P>
+         */
+        public static final String KEY_ROWS = "rows";
+
+        /**
+         * The total time the operation took, in microseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_TOTAL_MICROS = "total_micros";
+
+        /**
+         * The longest time the operation took, in microseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_MAX_MICROS = "max_micros";
+
+        /**
+         * The median time the operation took, to within a factor of two, in microseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_P50_MICROS = "p50_micros";
+
+        /**
+         * The 99th percentile of the time the operation took, to within a factor of two, in
+         * microseconds
+         * <P>Type: long</P>
+         */
+        public static final String KEY_P99_MICROS = "p99_micros";
+
+        /**
+         * The number of times the operation took a time within each latency bucket
+         * <P>Type: long[]</P>
+         */
+        public static final String KEY_BUCKETS = "buckets";
+
+        /**
+         * The Bundle of caches, by name
+         * <P>Type: Bundle</P>
+         */
+        public static final String KEY_CACHES = "caches";
+
+        /*
+         * Keys of a cache Bundle
+         */
+
+        /**
+         * The number of lookups the cache answered
+         * <P>Type: long</P>
+         */
+        public static final String KEY_HITS = "hits";
+
+        /**
+         * The number of lookups the cache couldn't answer
+         * <P>Type: long</P>
+         */
+        public static final String KEY_MISSES = "misses";
+
+        /**
+         * The fraction of lookups the cache answered, from 0 to 1
+         * <P>Type: double</P>
+         */
+        public static final String KEY_HIT_RATE = "hit_rate";
+    }
+
+    /**
+     * Database storage contract. The provider reports the size of its database file, and how much
+     * of it is free space left by edited and deleted notes, from
+     * {@link android.content.ContentResolver#call(Uri, String, String, android.os.Bundle)},
+     * called on {@link Notes#CONTENT_URI} with {@link #METHOD_GET_STORAGE_STATS}.
+     *
+     * The provider gives free space back to the file system by itself, in the background, at
+     * most once a day. {@link #METHOD_RUN_MAINTENANCE} does it right away.
+     */
+    public static final class Storage {
+
+        // This class cannot be instantiated
+        private Storage() {}
+
+        /**
+         * The method that returns the storage statistics.
+         */
+        public static final String METHOD_GET_STORAGE_STATS = "getStorageStats";
+
+        /**
+         * The method that gives free space back to the file system and refreshes the database's
+         * query statistics, on the calling thread. It returns the storage statistics after it
+         * ran, with {@link #KEY_PAGES_RECLAIMED}. It never rebuilds the database, so it gives
+         * nothing back until the database can give free pages back a few at a time; see
+         * {@link #KEY_INCREMENTAL_VACUUM}. Only the Note Pad app itself may call it; any other
+         * caller gets a SecurityException.
+         */
+        public static final String METHOD_RUN_MAINTENANCE = "runMaintenance";
+
+        /*
+         * Keys of the storage statistics Bundle
+         */
+
+        /**
+         * The size of a database page, in bytes
+         * <P>Type: long</P>
+         */
+        public static final String KEY_PAGE_SIZE = "page_size";
+
+        /**
+         * The number of pages in the database, free or not
+         * <P>Type: long</P>
+         */
+        public static final String KEY_PAGE_COUNT = "page_count";
+
+        /**
+         * The number of free pages in the database
+         * <P>Type: long</P>
+         */
+        public static final String KEY_FREELIST_COUNT = "freelist_count";
+
+        /**
+         * The fraction of the database's pages that are free, from 0 to 1
+         * <P>Type: double</P>
+         */
+        public static final String KEY_FRAGMENTATION = "fragmentation";
+
+        /**
+         * Whether the database can give free pages back a few at a time. Until it can, the free
+         * pages are only reused. The background maintenance rebuilds the database once, so
+         * that it can, when enough of it is free.
+         * <P>Type: boolean</P>
+         */
+        public static final String KEY_INCREMENTAL_VACUUM = "incremental_vacuum";
+
+        /**
+         * When maintenance last ran, in milliseconds since the epoch, or 0 if it never has
+         * <P>Type: long</P>
+         */
+        public static final String KEY_LAST_MAINTENANCE_MILLIS = "last_maintenance_millis";
+
+        /**
+         * The number of pages a maintenance run gave back. Only returned by
+         * {@link #METHOD_RUN_MAINTENANCE}.
+         * <P>Type: long</P>
+         */
+        public static final String KEY_PAGES_RECLAIMED = "pages_reclaimed";
     }
 }
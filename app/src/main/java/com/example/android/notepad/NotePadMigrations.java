@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Upgrades the Note Pad database in place, one version at a time. Each {@link Migration} takes
+ * the schema from version N to version N + 1 without losing any notes. SQLiteOpenHelper runs
+ * onUpgrade() in a single transaction, and every step runs in a transaction nested in it, so no
+ * step commits on its own: an upgrade either completes every step or leaves the database exactly
+ * as it was, at the old version. The journal holds every change of the upgrade until it commits,
+ * however a step divides its work. Work that rewrites every note, such as the word counts of
+ * version 7, can be left to a backfill that runs after the database is opened instead; see
+ * {@link #addPendingBackfill(SQLiteDatabase, String)}.
+ *
+ * To change the schema, bump the database version in {@link NotePadProvider}, update
+ * DatabaseHelper.onCreate() to build the new schema from scratch, and add a Migration here
+ * that builds the same schema from the previous version.
+ */
+final class NotePadMigrations {
+    // Used for debugging and logging
+    private static final String TAG = "NotePadMigrations";
+
+    /**
+     * The oldest database version that can be upgraded in place. Older databases predate the
+     * migrations and are recreated.
+     */
+    static final int OLDEST_MIGRATABLE_VERSION = 2;
+
+    /**
+     * The number of notes each query reads when a step updates every note. This bounds the
+     * memory of each query's cursor, but not the journal, since the step still runs in the
+     * upgrade's one transaction.
+     */
+    static final int COPY_CHUNK_SIZE = 5000;
+
+    // The number of characters of each note read to make its preview. Leading and repeated
+    // whitespace is dropped from the preview, so this is more than its maximum length.
+    private static final int PREVIEW_SOURCE_LENGTH = NotePad.Notes.PREVIEW_LENGTH * 4;
+
+    /**
+     * The table of the backfills an upgrade has left to run after the database is opened. See
+     * {@link #addPendingBackfill(SQLiteDatabase, String)}.
+     */
+    static final String BACKFILLS_TABLE_NAME = "pending_backfills";
+
+    // This class cannot be instantiated
+    private NotePadMigrations() {
+    }
+
+    /**
+     * A single upgrade step from {@link #startVersion} to startVersion + 1.
+     */
+    abstract static class Migration {
+        final int startVersion;
+
+        Migration(int startVersion) {
+            this.startVersion = startVersion;
+        }
+
+        /**
+         * Changes the schema and data of the database. This is called inside a transaction.
+         */
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * The upgrade steps, ordered by start version. There must be one step for every version
+     * from {@link #OLDEST_MIGRATABLE_VERSION} up to the current database version.
+     */
+    private static final Migration[] MIGRATIONS = {
+
+        // Version 3 adds the full-text search index, built from the existing notes. The trigger
+        // that updates it is created by the step to version 9, the first version with every
+        // column the trigger reads.
+        new Migration(2) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                NotePadProvider.DatabaseHelper.createSearchIndex(db);
+                db.execSQL("INSERT INTO " + NotePadProvider.FTS_TABLE_NAME + " (docid, "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ") SELECT " + NotePad.Notes._ID + ", "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " FROM " + NotePad.Notes.TABLE_NAME);
+            }
+        },
+
+        // Version 4 adds the index for the default and paged sort orders.
+        new Migration(3) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                NotePadProvider.DatabaseHelper.createModifiedIndex(db);
+            }
+        },
+
+        // Version 5 adds the revision history. Existing notes start with no revisions; the
+        // first change to each note records its text as it was before the change.
+        new Migration(4) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                NoteRevisions.createTable(db);
+            }
+        },
+
+        // Version 6 adds the preview column, filled in from the start of each note.
+        new Migration(5) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                addColumn(db, NotePad.Notes.TABLE_NAME,
+                        NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT");
+                backfillPreviews(db);
+            }
+        },
+
+        // Version 7 adds the word count column. The existing notes are counted after the
+        // upgrade, in the background, by WordCountBackfill.
+        new Migration(6) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                addColumn(db, NotePad.Notes.TABLE_NAME,
+                        NotePad.Notes.COLUMN_NAME_WORD_COUNT + " INTEGER");
+                createBackfillsTable(db);
+                addPendingBackfill(db, WordCountBackfill.NAME);
+            }
+        },
+
+        // Version 8 adds the deleted column, which marks deleted notes until they are purged,
+        // and its index.
+        new Migration(7) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                addColumn(db, NotePad.Notes.TABLE_NAME,
+                        NotePadProvider.COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0");
+                NotePadProvider.DatabaseHelper.createDeletedIndex(db);
+            }
+        },
+
+        // Version 9 adds the column that holds the compressed bodies of large notes, and
+        // replaces the search update trigger with one that keeps the indexed text of a
+        // compressed note. Existing notes stay as text until they are next written.
+        new Migration(8) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                addColumn(db, NotePad.Notes.TABLE_NAME, NoteCodec.COLUMN_NAME_DATA + " BLOB");
+                db.execSQL("DROP TRIGGER IF EXISTS " + NotePadProvider.FTS_TABLE_NAME
+                        + "_update");
+                NotePadProvider.DatabaseHelper.createSearchUpdateTrigger(db);
+            }
+        },
+
+        // Version 10 adds the version column, for updates that only happen if the note hasn't
+        // changed since the client read it. Existing notes start at the first version.
+        new Migration(9) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                addColumn(db, NotePad.Notes.TABLE_NAME,
+                        NotePadProvider.VERSION_COLUMN_DEFINITION);
+            }
+        },
+
+        // Version 11 replaces the indexes on the modification date and on the deleted column
+        // with an index for each sort order, each of which leads with the deleted column.
+        new Migration(10) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                NotePadProvider.DatabaseHelper.createSortIndexes(db);
+                db.execSQL("DROP INDEX IF EXISTS " + NotePadProvider.MODIFIED_INDEX_NAME);
+                db.execSQL("DROP INDEX IF EXISTS " + NotePadProvider.DELETED_INDEX_NAME);
+            }
+        },
+
+        // Version 12 stores each revision as a delta back from the revision after it, rather
+        // than forward from a full copy of the text every twentieth revision, and converts the
+        // existing revisions.
+        new Migration(11) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                NoteRevisions.convertForwardHistories(db);
+            }
+        },
+
+        // Version 13 replaces the search index with one that reads the text of the notes from
+        // the notes table rather than keeping a copy of it, where SQLite supports that, and
+        // indexes every note again. Elsewhere the index is kept as it is.
+        new Migration(12) {
+            @Override
+            void migrate(SQLiteDatabase db) {
+                if (NoteSearchIndex.isSupported()) {
+                    NoteSearchIndex.drop(db);
+                    NoteSearchIndex.create(db);
+                    NoteSearchIndex.indexNotes(db);
+                }
+            }
+        },
+    };
+
+    /**
+     * Tests whether there is a chain of migrations from oldVersion to newVersion.
+     */
+    static boolean canMigrate(int oldVersion, int newVersion) {
+        if (oldVersion < OLDEST_MIGRATABLE_VERSION || oldVersion > newVersion) {
+            return false;
+        }
+        for (int version = oldVersion; version < newVersion; version++) {
+            if (findMigration(version) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs every migration from oldVersion to newVersion, in order.
+     *
+     * @throws IllegalStateException if there is no chain of migrations between the versions.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (!canMigrate(oldVersion, newVersion)) {
+            throw new IllegalStateException("No migration from version " + oldVersion
+                    + " to " + newVersion);
+        }
+
+        for (int version = oldVersion; version < newVersion; version++) {
+            Migration migration = findMigration(version);
+            long start = SystemClock.elapsedRealtime();
+
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            Log.i(TAG, "Migrated database from version " + version + " to " + (version + 1)
+                    + " in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        }
+    }
+
+    private static Migration findMigration(int startVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.startVersion == startVersion) {
+                return migration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the preview of every note, in chunks of {@link #COPY_CHUNK_SIZE} notes ordered by _id.
+     * Only the start of each note is read, since that is all the preview needs.
+     */
+    static void backfillPreviews(SQLiteDatabase db) {
+        String select = "SELECT " + NotePad.Notes._ID + ", substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + PREVIEW_SOURCE_LENGTH + ") FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " > ? ORDER BY "
+                + NotePad.Notes._ID + " LIMIT " + COPY_CHUNK_SIZE;
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_PREVIEW + " = ? WHERE "
+                + NotePad.Notes._ID + " = ?");
+        try {
+            long lastId = Long.MIN_VALUE;
+            boolean more = true;
+            while (more) {
+                Cursor c = db.rawQuery(select, new String[] { Long.toString(lastId) });
+                try {
+                    more = c.getCount() == COPY_CHUNK_SIZE;
+                    while (c.moveToNext()) {
+                        lastId = c.getLong(0);
+                        String preview = NoteAnalyzer.makePreview(c.getString(1));
+                        if (preview == null) {
+                            update.bindNull(1);
+                        } else {
+                            update.bindString(1, preview);
+                        }
+                        update.bindLong(2, lastId);
+                        update.execute();
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Creates the table of pending backfills.
+     */
+    static void createBackfillsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + BACKFILLS_TABLE_NAME
+                + " (name TEXT PRIMARY KEY)");
+    }
+
+    /**
+     * Marks a backfill as pending. A migration that would take too long to fill in a new column
+     * on a large database leaves the column null instead, and marks a backfill that fills it in
+     * after the database is opened. The mark is kept in the database, so that the backfill
+     * resumes if the process dies before it is done, and it costs a single lookup to find out
+     * that there is nothing left to do.
+     */
+    static void addPendingBackfill(SQLiteDatabase db, String name) {
+        db.execSQL("INSERT OR IGNORE INTO " + BACKFILLS_TABLE_NAME + " (name) VALUES (?)",
+                new Object[] { name });
+    }
+
+    /**
+     * Tests whether a backfill is still pending.
+     */
+    static boolean isBackfillPending(SQLiteDatabase db, String name) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM " + BACKFILLS_TABLE_NAME
+                + " WHERE name = ?", new String[] { name }) > 0;
+    }
+
+    /**
+     * Marks a backfill as done.
+     */
+    static void removePendingBackfill(SQLiteDatabase db, String name) {
+        db.delete(BACKFILLS_TABLE_NAME, "name = ?", new String[] { name });
+    }
+
+    /**
+     * Adds a column to an existing table. SQLite only changes the table definition, so this
+     * takes the same time however many rows the table has.
+     *
+     * @param columnDefinition The column name, type and default, for example "deleted INTEGER
+     * NOT NULL DEFAULT 0".
+     */
+    static void addColumn(SQLiteDatabase db, String table, String columnDefinition) {
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + columnDefinition);
+    }
+}
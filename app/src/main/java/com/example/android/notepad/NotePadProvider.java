@@ -18,23 +18,34 @@ package com.example.android.notepad;
 
 import com.example.android.notepad.NotePad;
 
+import android.annotation.TargetApi;
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
@@ -42,10 +53,18 @@ import android.util.Log;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,28 +82,287 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 13;
+
+    /**
+     * The full-text index over the title and note columns. Each row's docid is the _id of the
+     * note it indexes. Set to package visibility for testing purposes.
+     */
+    static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * The index on the modification date, created by the step to version 4 and replaced by
+     * {@link #BY_MODIFIED_INDEX_NAME} in version 11
+     */
+    static final String MODIFIED_INDEX_NAME = "notes_modified_index";
+
+    /**
+     * The column that marks a note as deleted, until {@link NotePurger} removes it. Deleted notes
+     * are left out of every query, so the column isn't part of the contract.
+     */
+    static final String COLUMN_NAME_DELETED = "deleted";
+
+    /**
+     * The value of the deleted column for a note that an import has added but not yet finished.
+     * Such notes are left out of every query like deleted notes, but aren't purged, until the
+     * import either makes all of them visible at once or marks them deleted; see
+     * {@link #importNotes(Bundle)}.
+     */
+    static final int DELETED_IMPORTING = 2;
+
+    /**
+     * The index on the deleted column, created by the step to version 8 and replaced in version
+     * 11 by the sort order indexes, which all lead with the deleted column
+     */
+    static final String DELETED_INDEX_NAME = "notes_deleted_index";
+
+    /**
+     * The index that serves the default and paged sort orders, so that each page of the notes
+     * list is a range seek instead of a sort of the whole table.
+     *
+     * This and the other sort order indexes lead with the deleted column. Every list leaves out
+     * the deleted notes, and with an index on the sort column alone SQLite would rather find the
+     * notes that aren't deleted with an index on the deleted column, and then sort them all. The
+     * deleted column first makes the notes that aren't deleted a range of the index that is
+     * already in order, and lets the purge find the deleted notes without scanning the table.
+     */
+    static final String BY_MODIFIED_INDEX_NAME = "notes_by_modified";
+
+    /**
+     * The index that serves {@link NotePad.Notes#TITLE_SORT_ORDER}, and lookups by title
+     */
+    static final String BY_TITLE_INDEX_NAME = "notes_by_title";
+
+    /**
+     * The index that serves {@link NotePad.Notes#CREATED_SORT_ORDER}, and lookups by creation
+     * date
+     */
+    static final String BY_CREATED_INDEX_NAME = "notes_by_created";
+
+    /**
+     * The condition that leaves out deleted notes. It is qualified with the table name, so that
+     * it also works in a search, which joins the notes with the full-text index.
+     */
+    static final String NOT_DELETED =
+            NotePad.Notes.TABLE_NAME + "." + COLUMN_NAME_DELETED + " = 0";
+
+    /**
+     * The definition of the version column, which starts at {@link NotePad.Notes#FIRST_VERSION}
+     */
+    static final String VERSION_COLUMN_DEFINITION = NotePad.Notes.COLUMN_NAME_VERSION
+            + " INTEGER NOT NULL DEFAULT " + NotePad.Notes.FIRST_VERSION;
 
     /**
      * A projection map used to select columns from the database
      */
     private static HashMap<String, String> sNotesProjectionMap;
 
+    /**
+     * A projection map used for note ID queries with a body limit, which leaves the text of a
+     * note at or over the limit out
+     */
+    private static HashMap<String, String> sLimitedNoteProjectionMap;
+
     /**
      * A projection map used to select columns from the database
      */
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
     /**
-     * Standard projection for the interesting columns of a normal note.
+     * A projection map used to select columns from a full-text search
+     */
+    private static HashMap<String, String> sSearchProjectionMap;
+
+    /**
+     * A projection map used to select columns from the revisions of a note
+     */
+    private static HashMap<String, String> sRevisionsProjectionMap;
+
+    /**
+     * The ID of a note's latest revision
+     */
+    private static final String LATEST_REVISION = "(SELECT max(" + NotePad.Revisions._ID
+            + ") FROM " + NotePad.Revisions.TABLE_NAME + " WHERE "
+            + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = " + NotePad.Notes.TABLE_NAME + "."
+            + NotePad.Notes._ID + ")";
+
+    /**
+     * The columns of a single revision, which is read by rebuilding its text rather than by a
+     * query on the revisions table
+     */
+    private static final String[] REVISION_PROJECTION = new String[] {
+            NotePad.Revisions._ID,
+            NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+            NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+            NotePad.Revisions.COLUMN_NAME_NOTE
+    };
+
+    /**
+     * The tables joined by a full-text search, so that the results can return note columns. The
+     * CROSS JOIN keeps the full-text index as the outer table, so that the search runs once and
+     * each result looks up its note by ID. Otherwise SQLite may walk the notes that aren't deleted
+     * and run the search again for each of them.
+     */
+    private static final String SEARCH_TABLES = FTS_TABLE_NAME + " CROSS JOIN "
+            + NotePad.Notes.TABLE_NAME
+            + " ON (" + FTS_TABLE_NAME + ".docid = " + NotePad.Notes.TABLE_NAME + "."
+            + NotePad.Notes._ID + ")";
+
+    /**
+     * The number of matched phrases in a row. offsets() returns four integers for each match,
+     * separated by single spaces, so counting the spaces gives the number of matches. An
+     * external content index can't find the matches in the text of a compressed note, for which
+     * offsets() is null, so such a note counts as a single match.
+     */
+    private static final String SEARCH_RANK = "coalesce((length(offsets(" + FTS_TABLE_NAME
+            + ")) - length(replace(offsets(" + FTS_TABLE_NAME + "), ' ', '')) + 1) / 4, 1)";
+
+    /**
+     * An excerpt of up to 16 tokens around the best match, from either indexed column, or the
+     * preview of a compressed note whose matches an external content index can't find
+     */
+    private static final String SEARCH_SNIPPET = "coalesce(snippet(" + FTS_TABLE_NAME
+            + ", '', '', '...', -1, 16), " + NotePad.Notes.TABLE_NAME + "."
+            + NotePad.Notes.COLUMN_NAME_PREVIEW + ")";
+
+    /**
+     * The note body as UTF-8 bytes. SQLite stores text as UTF-8, so the cast copies the stored
+     * bytes as they are, and substr() and length() on the result count bytes, not characters.
+     */
+    private static final String NOTE_BYTES = "CAST(" + NotePad.Notes.COLUMN_NAME_NOTE
+            + " AS BLOB)";
+
+    /**
+     * The note text, or the compressed data of a note that is stored compressed
+     */
+    private static final String NOTE_OR_DATA = "coalesce(" + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+            + NoteCodec.COLUMN_NAME_DATA + ") AS " + NotePad.Notes.COLUMN_NAME_NOTE;
+
+    /**
+     * The note text or compressed data, as {@link #NOTE_OR_DATA}, but only for a note shorter
+     * than the limit of {@link NotePad.Notes#BODY_LIMIT_PARAMETER}. The limit is bound twice:
+     * as a number of bytes, which the text is measured against, and as eight hex digits, which
+     * the big-endian length in the header of compressed data is compared with as text.
+     */
+    private static final String LIMITED_NOTE_OR_DATA = "CASE WHEN length(" + NOTE_BYTES
+            + ") < CAST(? AS INTEGER) OR (" + NoteCodec.COLUMN_NAME_DATA + " IS NOT NULL"
+            + " AND hex(substr(" + NoteCodec.COLUMN_NAME_DATA + ", 2, 4)) < ?)"
+            + " THEN coalesce(" + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+            + NoteCodec.COLUMN_NAME_DATA + ") END AS " + NotePad.Notes.COLUMN_NAME_NOTE;
+
+    /**
+     * Projection for streaming a note. The body itself is left out, since it is read in slices
+     * by {@link #STREAM_SLICE_SQL}; only its length is read up front. The length of a compressed
+     * body is null, and is read from the header of its data instead.
+     */
+    private static final String[] STREAM_NOTE_PROJECTION = new String[] {
+            NotePad.Notes._ID,                  // Projection position 0, the note's id
+            NotePad.Notes.COLUMN_NAME_TITLE,    // Projection position 1, the note's title
+            "length(" + NOTE_BYTES + ")",       // Projection position 2, the body's length in bytes
+            "substr(" + NoteCodec.COLUMN_NAME_DATA + ", 1, " + NoteCodec.HEADER_LENGTH
+                    + ")",                      // Projection position 3, the compressed header
+    };
+
+    /**
+     * The columns of a stream cursor made from a cached note, in the order of
+     * {@link #STREAM_NOTE_PROJECTION}.
      */
-    private static final String[] READ_NOTE_PROJECTION = new String[] {
-            NotePad.Notes._ID,               // Projection position 0, the note's id
-            NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
-            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
+    private static final String[] STREAM_NOTE_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            "length",
+            "header"
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+
+    private static final int STREAM_NOTE_ID_INDEX = 0;
+    private static final int STREAM_NOTE_TITLE_INDEX = 1;
+    private static final int STREAM_NOTE_LENGTH_INDEX = 2;
+    private static final int STREAM_NOTE_HEADER_INDEX = 3;
+
+    /**
+     * Reads one slice of a note's body, as bytes. The arguments are the 1-based offset of the
+     * slice, its length and the note's ID.
+     */
+    private static final String STREAM_SLICE_SQL = "SELECT substr(" + NOTE_BYTES + ", ?, ?) FROM "
+            + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?";
+
+    /**
+     * Checks whether a note is stored compressed. The argument is the note's ID.
+     */
+    private static final String IS_COMPRESSED_SQL = "SELECT " + NoteCodec.COLUMN_NAME_DATA
+            + " IS NOT NULL FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID
+            + " = ?";
+
+    /**
+     * The number of bytes of a note read by each slice query. This is well below the size of a
+     * CursorWindow, so a note of any size can be streamed.
+     */
+    static final int STREAM_SLICE_SIZE = 64 * 1024;
+
+    /**
+     * The size of the buffer that copies each slice into the pipe
+     */
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The line separator written between the parts of a streamed note
+     */
+    private static final byte NEWLINE = '\n';
+
+    /**
+     * The number of notes each query of an export reads
+     */
+    static final int EXPORT_CHUNK_NOTES = 256;
+
+    /**
+     * The longest text, in UTF-8 bytes, that an export reads along with the rest of its note.
+     * Longer text is read in slices, so that a chunk of notes always fits in a CursorWindow.
+     */
+    private static final int EXPORT_INLINE_BYTES = 4 * 1024;
+
+    /**
+     * The longest text, in characters, that {@link NotePad.Streams#METHOD_WRITE_NOTE} accepts.
+     * A note is never longer than the database can store in one row.
+     */
+    static final int MAX_WRITE_CHARS = 16 * 1024 * 1024;
+
+    /**
+     * The number of characters a write reads from its pipe at a time
+     */
+    private static final int WRITE_SLICE_CHARS = 8 * 1024;
+
+    /**
+     * Reads the next chunk of notes to export, in ID order, after the ID of the last note of the
+     * previous chunk. The first four columns are those of {@link #STREAM_NOTE_PROJECTION}; the
+     * text of a short note follows as bytes, and is null for a longer or compressed one.
+     *
+     * The unary plus keeps SQLite from reading the chunk from one of the sort indexes, which all
+     * start with the deleted column, and sorting it by ID; a database without statistics would,
+     * for every chunk. Instead each chunk is a range of the primary key, already in order.
+     */
+    static final String EXPORT_CHUNK_SQL = "SELECT "
+            + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + "length(" + NOTE_BYTES + "), "
+            + "substr(" + NoteCodec.COLUMN_NAME_DATA + ", 1, " + NoteCodec.HEADER_LENGTH + "), "
+            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+            + "CASE WHEN length(" + NOTE_BYTES + ") <= " + EXPORT_INLINE_BYTES
+            + " THEN " + NOTE_BYTES + " END"
+            + " FROM " + NotePad.Notes.TABLE_NAME
+            + " WHERE " + NotePad.Notes._ID + " > ? AND +" + NOT_DELETED
+            + " ORDER BY " + NotePad.Notes._ID
+            + " LIMIT " + EXPORT_CHUNK_NOTES;
+
+    private static final int EXPORT_CREATE_DATE_INDEX = 4;
+    private static final int EXPORT_MODIFICATION_DATE_INDEX = 5;
+    private static final int EXPORT_TEXT_INDEX = 6;
+
+    /**
+     * The number of notes an import inserts in each transaction. Other clients can read and write
+     * between transactions, and a batch this size commits in a few milliseconds.
+     */
+    static final int IMPORT_BATCH_SIZE = 500;
 
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
@@ -99,14 +377,95 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int SEARCH = 4;
+
+    // The incoming URI matches the revisions of a note
+    private static final int REVISIONS = 5;
+
+    // The incoming URI matches a single revision of a note
+    private static final int REVISION_ID = 6;
+
+    // The incoming URI matches the archive of all the notes
+    private static final int NOTES_EXPORT = 7;
+
+    // Not a URI pattern: the query plans of note ID queries with a body limit are cached under
+    // it, since their SQL differs from that of the same queries without one
+    private static final int NOTE_ID_BODY_LIMIT = 8;
+
     /**
      * A UriMatcher instance
      */
     private static final UriMatcher sUriMatcher;
 
+    /**
+     * The columns that a batch insert can bind to its compiled statement. Inserts with any other
+     * column fall back to {@link SQLiteDatabase#insert(String, String, ContentValues)}.
+     */
+    private static final String[] BATCH_INSERT_COLUMNS = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PREVIEW,
+            NotePad.Notes.COLUMN_NAME_WORD_COUNT,
+            NoteCodec.COLUMN_NAME_DATA,
+            COLUMN_NAME_DELETED
+    };
+
+    /**
+     * The SQL for the compiled statement used by batch inserts
+     */
+    private static final String BATCH_INSERT_SQL = "INSERT INTO " + NotePad.Notes.TABLE_NAME
+            + " (" + TextUtils.join(", ", BATCH_INSERT_COLUMNS)
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Coalesces the change notifications sent to observers
+    private NotificationBatcher mNotifier;
+
+    // Records the latency of the provider's operations
+    private ProviderMetrics mMetrics;
+
+    // The most recently read notes
+    private NoteCache mNoteCache;
+
+    // Compresses the bodies of large notes as they are written
+    private volatile NoteCodec mCodec = NoteCodec.DEFAULT;
+
+    // Held by an import for as long as it runs, so that imports run one at a time
+    private final Object mImportLock = new Object();
+
+    // The compiled statements that update and delete single notes
+    private final NoteStatements mNoteStatements = new NoteStatements();
+
+    // The SQL of the queries, by their shape
+    private QueryPlanCache mQueryPlans;
+
+    /**
+     * The state of the batch running on the current thread, or null if the current thread is not
+     * running a batch. See {@link #bulkInsert(Uri, ContentValues[])} and
+     * {@link #applyBatch(ArrayList)}.
+     */
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<Batch>();
+
+    /**
+     * Holds the state of a batch of writes that run in a single transaction.
+     */
+    private static class Batch {
+        // The insert statement, compiled on first use and reused for the rest of the batch
+        SQLiteStatement insert;
+
+        // The URIs changed by the batch, whose observers are notified when it commits
+        final LinkedHashSet<Uri> changes = new LinkedHashSet<Uri>();
+
+        // True once the transaction has been marked successful
+        boolean successful;
+    }
+
 
     /**
      * A block that instantiates and sets static objects
@@ -130,6 +489,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
+        // Add a pattern that routes URIs terminated with notes/search to a full-text search.
+        // "search" is not numeric, so it never collides with the note ID pattern.
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // Add patterns that route the revisions of a note, and a single revision of a note
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_SEGMENT,
+                REVISIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Revisions.PATH_SEGMENT + "/#",
+                REVISION_ID);
+
+        // Add a pattern that routes URIs terminated with notes/export to the archive of all the
+        // notes. Like "search", "export" never collides with the note ID pattern.
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/export", NOTES_EXPORT);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -144,8 +517,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "title" to "title"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
 
-        // Maps "note" to "note"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+        // Maps "note" to the note text, or to its compressed data if it is compressed. The
+        // cursor is wrapped by NoteCodec.wrap(), which decompresses the data as it is read.
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NOTE_OR_DATA);
 
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
@@ -156,6 +530,33 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
+        // Maps "preview" to "preview"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PREVIEW,
+                NotePad.Notes.COLUMN_NAME_PREVIEW);
+
+        // Maps "word_count" to "word_count"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_WORD_COUNT,
+                NotePad.Notes.COLUMN_NAME_WORD_COUNT);
+
+        // Maps "revision" to the ID of the note's latest revision
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_REVISION,
+                LATEST_REVISION + " AS " + NotePad.Notes.COLUMN_NAME_REVISION);
+
+        // Maps "version" to "version"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_VERSION,
+                NotePad.Notes.COLUMN_NAME_VERSION);
+
+        // Maps "length" to the length of the note text, or to the header of its compressed data,
+        // which the cursor wrapper reads the length from. Neither reads the text itself.
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_LENGTH, "coalesce(length("
+                + NOTE_BYTES + "), substr(" + NoteCodec.COLUMN_NAME_DATA + ", 1, "
+                + NoteCodec.HEADER_LENGTH + ")) AS " + NotePad.Notes.COLUMN_NAME_LENGTH);
+
+        // The same columns for a query with a body limit, whose note column is only filled in
+        // for a note shorter than the limit
+        sLimitedNoteProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sLimitedNoteProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, LIMITED_NOTE_OR_DATA);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -169,8 +570,72 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "NAME" to "title AS NAME"
         sLiveFolderProjectionMap.put(LiveFolders.NAME, NotePad.Notes.COLUMN_NAME_TITLE + " AS " +
             LiveFolders.NAME);
+
+        // Maps "DESCRIPTION" to "preview AS DESCRIPTION", so that a live folder shows the start of
+        // each note without reading its body
+        sLiveFolderProjectionMap.put(LiveFolders.DESCRIPTION,
+            NotePad.Notes.COLUMN_NAME_PREVIEW + " AS " + LiveFolders.DESCRIPTION);
+
+        /*
+         * Creates and initializes a projection map for full-text searches. Note columns are
+         * qualified because the search joins the notes table with the full-text index.
+         */
+        sSearchProjectionMap = new HashMap<String, String>();
+
+        sSearchProjectionMap.put(NotePad.Notes._ID,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " AS " + NotePad.Notes._ID);
+
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_TITLE + " AS "
+                + NotePad.Notes.COLUMN_NAME_TITLE);
+
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_WORD_COUNT,
+                NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_WORD_COUNT);
+
+        // Maps "snippet" to the matching excerpt
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET,
+                SEARCH_SNIPPET + " AS " + NotePad.Notes.COLUMN_NAME_SNIPPET);
+
+        // Maps "rank" to the number of matches in the note
+        sSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_RANK,
+                SEARCH_RANK + " AS " + NotePad.Notes.COLUMN_NAME_RANK);
+
+        /*
+         * Creates and initializes a projection map for the revisions of a note. The stored
+         * data is left out, since a delta is meaningless without the revisions before it.
+         */
+        sRevisionsProjectionMap = new HashMap<String, String>();
+
+        sRevisionsProjectionMap.put(NotePad.Revisions._ID, NotePad.Revisions._ID);
+
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID);
+
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE,
+                NotePad.Revisions.COLUMN_NAME_CREATE_DATE);
+
+        sRevisionsProjectionMap.put(NotePad.Revisions.COLUMN_NAME_SNAPSHOT,
+                NotePad.Revisions.COLUMN_NAME_SNAPSHOT);
     }
 
+    /**
+     * The default projection for a full-text search. The note body is deliberately left out,
+     * since the snippet column already carries the matching text.
+     */
+    private static final String[] SEARCH_PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_RANK
+    };
+
     /**
     *
     * This class helps open, create, and upgrade the database file. Set to package visibility
@@ -178,10 +643,107 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     */
    static class DatabaseHelper extends SQLiteOpenHelper {
 
-       DatabaseHelper(Context context) {
+       // The connection settings applied each time the database is opened
+       private final DatabaseTuning mTuning;
+
+       // Counts the words of notes from before version 7, or null if this helper doesn't
+       private final WordCountBackfill mWordCountBackfill;
+
+       // Removes deleted notes, or null if this helper doesn't
+       private final NotePurger mPurger;
+
+       // Keeps the size of the database in check, or null if this helper doesn't
+       private final DatabaseMaintenance mMaintenance;
+
+       /**
+        * Opens the provider's database.
+        *
+        * @param onWordsCounted Run on a background thread each time the backfill after an
+        * upgrade has counted the words of a chunk of notes.
+        */
+       DatabaseHelper(Context context, ProviderMetrics metrics, Runnable onWordsCounted) {
+
+           // calls the super constructor, requesting a cursor factory that records the time
+           // spent reading query results.
+           super(context, DATABASE_NAME, metrics.cursorFactory, DATABASE_VERSION);
+           mTuning = DatabaseTuning.DEFAULT;
+           mWordCountBackfill = new WordCountBackfill(this, onWordsCounted);
+           mPurger = new NotePurger(this);
+           mMaintenance = new DatabaseMaintenance(context, this);
+       }
+
+       /**
+        * Opens a database with a name other than the provider's. Used by tests that need a
+        * database of their own, such as the migration tests.
+        */
+       DatabaseHelper(Context context, String name) {
+           this(context, name, DatabaseTuning.DEFAULT);
+       }
+
+       /**
+        * Opens a database with a name other than the provider's, and with its own connection
+        * settings. Used by tests that compare settings.
+        */
+       DatabaseHelper(Context context, String name, DatabaseTuning tuning) {
+           super(context, name, null, DATABASE_VERSION);
+           mTuning = tuning;
+           mWordCountBackfill = null;
+           mPurger = null;
+           mMaintenance = null;
+       }
+
+       /**
+        * Returns the purger that removes the notes deleted from this helper's database, or null
+        * if the helper isn't the provider's.
+        */
+       NotePurger getPurger() {
+           return mPurger;
+       }
+
+       /**
+        * Returns the maintenance of this helper's database, or null if the helper isn't the
+        * provider's.
+        */
+       DatabaseMaintenance getMaintenance() {
+           return mMaintenance;
+       }
+
+       /**
+        * Applies the connection settings as the database is opened, before it is created or
+        * upgraded. Only called on Android 4.1 and later; older versions apply the settings in
+        * {@link #onOpen(SQLiteDatabase)} instead.
+        */
+       @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+       @Override
+       public void onConfigure(SQLiteDatabase db) {
+           mTuning.apply(db);
+       }
 
-           // calls the super constructor, requesting the default cursor factory.
-           super(context, DATABASE_NAME, null, DATABASE_VERSION);
+       /**
+        * Applies the connection settings on versions of Android that don't call
+        * {@link #onConfigure(SQLiteDatabase)}. Starts the word count backfill if an upgrade
+        * left it pending, schedules a purge if deleted notes were left from the last time the
+        * database was open, and schedules maintenance if it is due.
+        */
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+               mTuning.apply(db);
+           }
+           if (mWordCountBackfill != null
+                   && NotePadMigrations.isBackfillPending(db, WordCountBackfill.NAME)) {
+               mWordCountBackfill.start();
+           }
+           if (mPurger != null && !db.isReadOnly()) {
+               // An import that was still running when the process died left its notes hidden.
+               abandonImports(db);
+           }
+           if (mPurger != null && NotePurger.hasDeletedNotes(db)) {
+               mPurger.schedule();
+           }
+           if (mMaintenance != null) {
+               mMaintenance.startIfDue();
+           }
        }
 
        /**
@@ -196,25 +758,157 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
-                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                   + NotePad.Notes.COLUMN_NAME_PREVIEW + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_WORD_COUNT + " INTEGER,"
+                   + COLUMN_NAME_DELETED + " INTEGER NOT NULL DEFAULT 0,"
+                   + NoteCodec.COLUMN_NAME_DATA + " BLOB,"
+                   + VERSION_COLUMN_DEFINITION
+                   + ");");
+
+           if (NoteSearchIndex.isSupported()) {
+               NoteSearchIndex.create(db);
+           } else {
+               createSearchIndex(db);
+               createSearchUpdateTrigger(db);
+           }
+           createSortIndexes(db);
+           NoteRevisions.createTable(db);
+           NotePadMigrations.createBackfillsTable(db);
+       }
+
+       /**
+        * Creates the indexes that serve the sort orders of the notes lists, each after the
+        * deleted column; see {@link #BY_MODIFIED_INDEX_NAME}. The index on the modification date
+        * and ID is in the order of {@link NotePad.Notes#PAGED_SORT_ORDER}.
+        */
+       static void createSortIndexes(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX IF NOT EXISTS " + BY_MODIFIED_INDEX_NAME + " ON "
+                   + NotePad.Notes.TABLE_NAME + " ("
+                   + COLUMN_NAME_DELETED + ", "
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                   + NotePad.Notes._ID
+                   + ");");
+           db.execSQL("CREATE INDEX IF NOT EXISTS " + BY_TITLE_INDEX_NAME + " ON "
+                   + NotePad.Notes.TABLE_NAME + " ("
+                   + COLUMN_NAME_DELETED + ", "
+                   + NotePad.Notes.COLUMN_NAME_TITLE
+                   + ");");
+           db.execSQL("CREATE INDEX IF NOT EXISTS " + BY_CREATED_INDEX_NAME + " ON "
+                   + NotePad.Notes.TABLE_NAME + " ("
+                   + COLUMN_NAME_DELETED + ", "
+                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE
+                   + ");");
+       }
+
+       /**
+        * Creates the index on the modification date and ID that versions 4 to 10 had. Only for
+        * the migrations to those versions.
+        */
+       static void createModifiedIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX IF NOT EXISTS " + MODIFIED_INDEX_NAME + " ON "
+                   + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC, "
+                   + NotePad.Notes._ID
                    + ");");
        }
 
+       /**
+        * Creates the index on the deleted column that versions 8 to 10 had. Only for the
+        * migration to version 8.
+        */
+       static void createDeletedIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX IF NOT EXISTS " + DELETED_INDEX_NAME + " ON "
+                   + NotePad.Notes.TABLE_NAME + " (" + COLUMN_NAME_DELETED + ");");
+       }
+
+       /**
+        * Creates the full-text index that holds its own copy of the text, and the triggers that
+        * keep it in sync with the notes table, apart from the update trigger; see
+        * {@link #createSearchUpdateTrigger(SQLiteDatabase)}. The index of versions 3 to 12, and
+        * of databases created where {@link NoteSearchIndex} isn't supported. Because the
+        * triggers run inside
+        * SQLite, every insert, update and delete against the notes table updates the index in
+        * the same transaction, whether it comes through the provider or straight through the
+        * database.
+        *
+        * The one exception is the text of a compressed note, which SQLite can't read. The
+        * triggers index a compressed note without its text, and keep the text already indexed
+        * when its title changes; the provider indexes the text itself whenever it writes a
+        * compressed note.
+        */
+       static void createSearchIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ");");
+
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_insert AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ") VALUES (new." + NotePad.Notes._ID + ", new."
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", new." + NotePad.Notes.COLUMN_NAME_NOTE
+                   + "); END;");
+
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old."
+                   + NotePad.Notes._ID + "; END;");
+       }
+
+       /**
+        * Creates the trigger that updates the full-text index when a note's title or text
+        * changes. It only fires when an indexed column changes, so date-only updates skip the
+        * index. A note stored as text is indexed again; a compressed note only has its title
+        * changed, since the provider indexes its text.
+        */
+       static void createSearchUpdateTrigger(SQLiteDatabase db) {
+           String asText = "new." + NoteCodec.COLUMN_NAME_DATA + " IS NULL";
+           String compressed = "new." + NoteCodec.COLUMN_NAME_DATA + " IS NOT NULL";
+           db.execSQL("CREATE TRIGGER " + FTS_TABLE_NAME + "_update AFTER UPDATE OF "
+                   + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " ON " + NotePad.Notes.TABLE_NAME
+                   + " BEGIN "
+                   + "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old."
+                   + NotePad.Notes._ID + " AND " + asText + "; "
+                   + "INSERT INTO " + FTS_TABLE_NAME + " (docid, "
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                   + ") SELECT new." + NotePad.Notes._ID + ", new."
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", new." + NotePad.Notes.COLUMN_NAME_NOTE
+                   + " WHERE " + asText + "; "
+                   + "UPDATE " + FTS_TABLE_NAME + " SET docid = new." + NotePad.Notes._ID
+                   + ", " + NotePad.Notes.COLUMN_NAME_TITLE + " = new."
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " WHERE docid = old." + NotePad.Notes._ID
+                   + " AND " + compressed + "; END;");
+       }
+
        /**
         *
         * Demonstrates that the provider must consider what happens when the
-        * underlying datastore is changed. In this sample, the database is upgraded the database
-        * by destroying the existing data.
-        * A real application should upgrade the database in place.
+        * underlying datastore is changed. Databases from version
+        * {@link NotePadMigrations#OLDEST_MIGRATABLE_VERSION} on are upgraded in place, one
+        * version at a time, by {@link NotePadMigrations}. Anything older is upgraded by
+        * destroying the existing data.
         */
        @Override
        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
+           if (NotePadMigrations.canMigrate(oldVersion, newVersion)) {
+               Log.i(TAG, "Upgrading database from version " + oldVersion + " to "
+                       + newVersion);
+               NotePadMigrations.migrate(db, oldVersion, newVersion);
+               return;
+           }
+
            // Logs that the database is being upgraded
            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                    + newVersion + ", which will destroy all old data");
 
-           // Kills the table and existing data
+           // Kills the tables and existing data
+           NoteSearchIndex.drop(db);
+           db.execSQL("DROP TABLE IF EXISTS " + NotePad.Revisions.TABLE_NAME);
+           db.execSQL("DROP TABLE IF EXISTS " + NotePadMigrations.BACKFILLS_TABLE_NAME);
            db.execSQL("DROP TABLE IF EXISTS notes");
 
            // Recreates the database with a new version
@@ -233,7 +927,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
        // Creates a new helper object. Note that the database itself isn't opened until
        // something tries to access it, and it's only created if it doesn't already exist.
-       mOpenHelper = new DatabaseHelper(getContext());
+       mMetrics = new ProviderMetrics();
+       mOpenHelper = new DatabaseHelper(getContext(), mMetrics, new Runnable() {
+           @Override
+           public void run() {
+               // Refreshes the notes lists, and drops the cached notes whose word counts were
+               // still null.
+               notifyChange(NotePad.Notes.CONTENT_URI);
+           }
+       });
+
+       mNoteCache = new NoteCache(NoteCache.DEFAULT_MAX_CHARS, mMetrics);
+       mQueryPlans = new QueryPlanCache(mMetrics);
+
+       mNotifier = new NotificationBatcher(getContext().getContentResolver());
 
        // Assumes that any failures will be reported by a thrown exception.
        return true;
@@ -251,18 +958,45 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    @Override
    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
            String sortOrder) {
+       long start = System.nanoTime();
 
-       // Constructs a new query builder and sets its table name
-       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-       qb.setTables(NotePad.Notes.TABLE_NAME);
+       // The table to query and its projection map. The where clause that the URI adds is
+       // written with its values as arguments, so that its SQL is the same for every URI with
+       // the same pattern; see QueryPlanCache.
+       int match = sUriMatcher.match(uri);
+       String tables = NotePad.Notes.TABLE_NAME;
+       Map<String, String> projectionMap;
+       StringBuilder where = new StringBuilder();
+       ArrayList<String> whereArgs = new ArrayList<String>();
+
+       // The maximum number of rows to return, or null to return all of them
+       String limit = null;
+
+       // The kind of query the SQL is cached under, which is the URI pattern unless the SQL
+       // depends on more than the URI pattern
+       int planMatch = match;
 
        /**
         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
         */
-       switch (sUriMatcher.match(uri)) {
+       switch (match) {
            // If the incoming URI is for notes, chooses the Notes projection
            case NOTES:
-               qb.setProjectionMap(sNotesProjectionMap);
+               projectionMap = sNotesProjectionMap;
+
+               // Lists return the preview rather than the body, unless the body is asked for.
+               if (projection == null) {
+                   projection = NotePad.Notes.LIST_PROJECTION;
+               }
+               where.append(NOT_DELETED);
+
+               // If the caller asked for a page, restricts the query to the rows after the
+               // previous page and switches to the paged sort order.
+               limit = uri.getQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER);
+               if (limit != null) {
+                   appendPageWhere(where, whereArgs, uri);
+                   sortOrder = NotePad.Notes.PAGED_SORT_ORDER;
+               }
                break;
 
            /* If the incoming URI is for a single note identified by its ID, chooses the
@@ -270,19 +1004,85 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             * it selects that single note
             */
            case NOTE_ID:
-               qb.setProjectionMap(sNotesProjectionMap);
-               qb.appendWhere(
+               // Answers the query from the note cache if it can. The cache holds the whole
+               // note, so a query with a body limit always goes to the database.
+               String bodyLimit = uri.getQueryParameter(NotePad.Notes.BODY_LIMIT_PARAMETER);
+               if (selection == null && bodyLimit == null && NoteCache.covers(projection)) {
+                   Cursor cached = queryCachedNote(uri, projection);
+                   if (cached != null) {
+                       mMetrics.record(ProviderMetrics.QUERY, getUriType(uri), start,
+                               cached.getCount());
+                       return cached;
+                   }
+               }
+
+               // The limit is bound in the note column, which comes before the where clause, so
+               // a query that leaves the note column out ignores the limit.
+               long bodyLimitBytes = bodyLimit != null ? parseBodyLimit(uri, bodyLimit) : 0;
+               if (bodyLimit != null && NoteCache.includesNote(projection)) {
+                   projectionMap = sLimitedNoteProjectionMap;
+                   appendBodyLimitArgs(whereArgs, bodyLimitBytes);
+                   planMatch = NOTE_ID_BODY_LIMIT;
+               } else {
+                   projectionMap = sNotesProjectionMap;
+               }
+               where.append(
                    NotePad.Notes._ID +    // the name of the ID column
-                   "=" +
-                   // the position of the note ID itself in the incoming URI
-                   uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                   "=? AND " + NOT_DELETED);
+               // the position of the note ID itself in the incoming URI
+               whereArgs.add(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
                break;
 
            case LIVE_FOLDER_NOTES:
                // If the incoming URI is from a live folder, chooses the live folder projection.
-               qb.setProjectionMap(sLiveFolderProjectionMap);
+               projectionMap = sLiveFolderProjectionMap;
+               where.append(NOT_DELETED);
+               break;
+
+           /* If the incoming URI is a search, queries the full-text index joined with the notes
+            * table, and restricts the results to the rows that match the search terms.
+            */
+           case SEARCH:
+               String terms = uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER);
+               String matchExpression = buildMatchExpression(terms);
+               if (matchExpression == null) {
+                   throw new IllegalArgumentException("No search terms in " + uri);
+               }
+               tables = SEARCH_TABLES;
+               projectionMap = sSearchProjectionMap;
+               where.append(FTS_TABLE_NAME + " MATCH ? AND " + NOT_DELETED);
+               whereArgs.add(matchExpression);
+               if (projection == null) {
+                   projection = SEARCH_PROJECTION;
+               }
+               if (TextUtils.isEmpty(sortOrder)) {
+                   sortOrder = NotePad.Notes.SEARCH_SORT_ORDER;
+               }
+               break;
+
+           // If the incoming URI is for the revisions of a note, lists them from the revisions
+           // table, newest first.
+           case REVISIONS:
+               tables = NotePad.Revisions.TABLE_NAME;
+               projectionMap = sRevisionsProjectionMap;
+               // The note is looked up by its ID, rather than listing every note that isn't
+               // deleted.
+               where.append(NotePad.Revisions.COLUMN_NAME_NOTE_ID + "=? AND EXISTS (SELECT 1 FROM "
+                       + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.TABLE_NAME + "."
+                       + NotePad.Notes._ID + " = " + NotePad.Revisions.TABLE_NAME + "."
+                       + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " AND " + NOT_DELETED + ")");
+               whereArgs.add(uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+               if (TextUtils.isEmpty(sortOrder)) {
+                   sortOrder = NotePad.Revisions.DEFAULT_SORT_ORDER;
+               }
                break;
 
+           // If the incoming URI is for a single revision, rebuilds its text.
+           case REVISION_ID:
+               Cursor revision = queryRevision(uri, projection);
+               mMetrics.record(ProviderMetrics.QUERY, getUriType(uri), start, revision.getCount());
+               return revision;
+
            default:
                // If the URI doesn't match any of the known patterns, throw an exception.
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -298,6 +1098,31 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
            orderBy = sortOrder;
        }
 
+       // Gets the SQL for a query of this shape, and only builds it if it isn't cached.
+       QueryPlanCache.Key key = new QueryPlanCache.Key(planMatch, where.toString(), projection,
+               selection, orderBy, limit);
+       String sql = mQueryPlans.get(key);
+       if (sql == null) {
+           SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+           qb.setTables(tables);
+           qb.setProjectionMap(projectionMap);
+           qb.appendWhere(where);
+           sql = qb.buildQuery(
+               projection,    // The columns to return from the query
+               selection,     // The columns for the where clause
+               null,          // don't group the rows
+               null,          // don't filter by row groups
+               orderBy,       // The sort order
+               limit          // The maximum number of rows, or null for no limit
+           );
+           mQueryPlans.put(key, sql);
+       }
+
+       // The values for the URI's where clause come first, since it comes first in the SQL.
+       if (selectionArgs != null) {
+           whereArgs.addAll(Arrays.asList(selectionArgs));
+       }
+
        // Opens the database object in "read" mode, since no writes need to be done.
        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
@@ -306,46 +1131,305 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         * object is returned; otherwise, the cursor variable contains null. If no records were
         * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
         */
-       Cursor c = qb.query(
-           db,            // The database to query
-           projection,    // The columns to return from the query
-           selection,     // The columns for the where clause
-           selectionArgs, // The values for the where clause
-           null,          // don't group the rows
-           null,          // don't filter by row groups
-           orderBy        // The sort order
+       Cursor c = db.rawQueryWithFactory(
+           null,          // Use the database's cursor factory
+           sql,           // The query
+           whereArgs.toArray(new String[whereArgs.size()]), // The values for the where clauses
+           SQLiteDatabase.findEditTable(tables)
        );
 
-       // Tells the Cursor what URI to watch, so it knows when its source data changes
-       c.setNotificationUri(getContext().getContentResolver(), uri);
-       return c;
+       // Tells the Cursor what URI to watch, so it knows when its source data changes. Search
+       // results can change with any note, so they watch the whole notes URI.
+       if (match == SEARCH) {
+           c.setNotificationUri(getContext().getContentResolver(), NotePad.Notes.CONTENT_URI);
+       } else {
+           c.setNotificationUri(getContext().getContentResolver(), uri);
+       }
+
+       // Records the query. The rows are read, and recorded, when the cursor fills its window.
+       String uriType = getUriType(uri);
+       if (c instanceof ProviderMetrics.MeteredCursor) {
+           ((ProviderMetrics.MeteredCursor) c).setUriType(uriType);
+       }
+       mMetrics.record(ProviderMetrics.QUERY, uriType, start, 0);
+
+       // Decompresses the text of compressed notes, if the query asked for it, as it is read.
+       return NoteCodec.wrap(c);
    }
 
    /**
-    * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
-    * Returns the MIME data type of the URI given as a parameter.
+    * Answers a note ID query from the note cache. If the note isn't cached, and the query asks
+    * for its text, reads the whole note and caches it.
     *
-    * @param uri The URI whose MIME type is desired.
-    * @return The MIME type of the URI.
-    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    * @param projection The columns to return, all of which are cached, or null for all of them.
+    * @return A cursor with the note, or null if the query can't be answered from the cache.
     */
-   @Override
-   public String getType(Uri uri) {
+   private Cursor queryCachedNote(Uri uri, String[] projection) {
+       long noteId = Long.parseLong(
+               uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+       if (projection == null) {
+           projection = NoteCache.COLUMNS;
+       }
+
+       NoteCache.Entry note = mNoteCache.get(noteId);
+       if (note == null) {
+           // Only a query for the text is worth the cost of reading and caching the whole note.
+           if (!NoteCache.includesNote(projection)) {
+               return null;
+           }
+           note = loadNote(noteId);
+           if (note == null) {
+               return null;
+           }
+       }
+
+       MatrixCursor c = new MatrixCursor(projection, 1);
+       c.addRow(note.getValues(projection));
+       c.setNotificationUri(getContext().getContentResolver(), uri);
+       return c;
+   }
+
+   /**
+    * Reads all of the cached columns of a note from the database, and caches them.
+    *
+    * @return The note, or null if it doesn't exist.
+    */
+   private NoteCache.Entry loadNote(long noteId) {
+       // Read before the note, so that a write that happens while it is read keeps it out of
+       // the cache.
+       long generation = mNoteCache.getGeneration();
+
+       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+       qb.setTables(NotePad.Notes.TABLE_NAME);
+       qb.setProjectionMap(sNotesProjectionMap);
+       Cursor c = NoteCodec.wrap(qb.query(mOpenHelper.getReadableDatabase(), NoteCache.COLUMNS,
+               NotePad.Notes._ID + " = ? AND " + NOT_DELETED,
+               new String[] { String.valueOf(noteId) }, null, null, null));
+       NoteCache.Entry note;
+       try {
+           if (!c.moveToFirst()) {
+               return null;
+           }
+           note = new NoteCache.Entry(c);
+       } finally {
+           c.close();
+       }
+       mNoteCache.put(noteId, note, generation);
+       return note;
+   }
+
+   /**
+    * Returns the name under which operations on a URI are recorded in the provider metrics.
+    */
+   private static String getUriType(Uri uri) {
+       switch (sUriMatcher.match(uri)) {
+           case NOTES:
+               return "notes";
+           case NOTE_ID:
+               return "note_id";
+           case LIVE_FOLDER_NOTES:
+               return "live_folder";
+           case SEARCH:
+               return "search";
+           case REVISIONS:
+               return "revisions";
+           case REVISION_ID:
+               return "revision_id";
+           case NOTES_EXPORT:
+               return "export";
+           default:
+               return "other";
+       }
+   }
+
+   /**
+    * Returns a single revision of a note, with the text of the note at that revision. The
+    * cursor is empty if the note has no such revision, for example because it was compacted away.
+    *
+    * @throws IllegalArgumentException if the projection asks for an unknown column.
+    */
+   private Cursor queryRevision(Uri uri, String[] projection) {
+       long noteId = Long.parseLong(
+               uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+       long revisionId = Long.parseLong(
+               uri.getPathSegments().get(NotePad.Revisions.REVISION_ID_PATH_POSITION));
+
+       if (projection == null) {
+           projection = REVISION_PROJECTION;
+       }
+       MatrixCursor c = new MatrixCursor(projection, 1);
+
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+       // The revisions of a deleted note are gone, as far as clients can tell, even before the
+       // note is purged.
+       String text = null;
+       if (DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+               NotePad.Notes._ID + " = ? AND " + NOT_DELETED,
+               new String[] { String.valueOf(noteId) }) > 0) {
+           text = NoteRevisions.getText(db, noteId, revisionId);
+       }
+       if (text != null) {
+           long created = DatabaseUtils.longForQuery(db, "SELECT "
+                   + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " FROM "
+                   + NotePad.Revisions.TABLE_NAME + " WHERE " + NotePad.Revisions._ID
+                   + " = ?", new String[] { String.valueOf(revisionId) });
+
+           Object[] row = new Object[projection.length];
+           for (int i = 0; i < projection.length; i++) {
+               if (NotePad.Revisions._ID.equals(projection[i])) {
+                   row[i] = revisionId;
+               } else if (NotePad.Revisions.COLUMN_NAME_NOTE_ID.equals(projection[i])) {
+                   row[i] = noteId;
+               } else if (NotePad.Revisions.COLUMN_NAME_CREATE_DATE.equals(projection[i])) {
+                   row[i] = created;
+               } else if (NotePad.Revisions.COLUMN_NAME_NOTE.equals(projection[i])) {
+                   row[i] = text;
+               } else {
+                   throw new IllegalArgumentException("Invalid column " + projection[i]);
+               }
+           }
+           c.addRow(row);
+       }
+
+       c.setNotificationUri(getContext().getContentResolver(), uri);
+       return c;
+   }
+
+   /**
+    * Checks the paging parameters of a query on the notes URI, and if the query is for a page
+    * after the first, restricts it to the notes after the last note of the previous page. The
+    * condition on the modification date alone lets SQLite seek straight to the start of the page
+    * in {@link #BY_MODIFIED_INDEX_NAME}. The condition is added to the where clause with AND, after
+    * the condition that leaves out deleted notes.
+    *
+    * @throws IllegalArgumentException if a paging parameter is not a number, or only one of
+    * the parameters for the previous page is given.
+    */
+   private static void appendPageWhere(StringBuilder where, List<String> whereArgs, Uri uri) {
+       String afterModified = uri.getQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER);
+       String afterId = uri.getQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER);
+
+       try {
+           if (Integer.parseInt(uri.getQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER)) <= 0) {
+               throw new IllegalArgumentException("Invalid page size in " + uri);
+           }
+           if (afterModified == null && afterId == null) {
+               // This is the first page
+               return;
+           }
+           if (afterModified == null || afterId == null) {
+               throw new IllegalArgumentException("Incomplete page position in " + uri);
+           }
+
+           // The values are parsed as numbers, and bound as arguments, so that every page shares
+           // the same SQL.
+           String modified = String.valueOf(Long.parseLong(afterModified));
+           String id = String.valueOf(Long.parseLong(afterId));
+           where.append(" AND " + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ?"
+                   + " AND (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ?"
+                   + " OR " + NotePad.Notes._ID + " > ?)");
+           whereArgs.add(modified);
+           whereArgs.add(modified);
+           whereArgs.add(id);
+       } catch (NumberFormatException e) {
+           throw new IllegalArgumentException("Invalid page parameters in " + uri);
+       }
+   }
+
+   /**
+    * Parses the value of {@link NotePad.Notes#BODY_LIMIT_PARAMETER}.
+    *
+    * @throws IllegalArgumentException if the limit isn't a positive number.
+    */
+   private static long parseBodyLimit(Uri uri, String bodyLimit) {
+       long bytes;
+       try {
+           bytes = Long.parseLong(bodyLimit);
+       } catch (NumberFormatException e) {
+           throw new IllegalArgumentException("Invalid body limit in " + uri);
+       }
+       if (bytes <= 0) {
+           throw new IllegalArgumentException("Invalid body limit in " + uri);
+       }
+       return bytes;
+   }
+
+   /**
+    * Adds the values for a body limit, which {@link #LIMITED_NOTE_OR_DATA} binds, to the
+    * arguments of a query.
+    */
+   private static void appendBodyLimitArgs(List<String> args, long bytes) {
+       args.add(String.valueOf(bytes));
+       // The header holds the length in four bytes, so a larger limit is above every length.
+       args.add(String.format(Locale.US, "%08X", Math.min(bytes, 0xffffffffL)));
+   }
+
+   /**
+    * Converts the user's search terms into an FTS MATCH expression. Each whitespace-separated
+    * term is quoted, so that characters with a meaning in the FTS query syntax are matched
+    * literally, and is made a prefix query, so that results update as the user types.
+    *
+    * @param terms The raw search terms, as typed by the user.
+    * @return The MATCH expression, or null if there are no terms to search for.
+    */
+   static String buildMatchExpression(String terms) {
+       if (terms == null) {
+           return null;
+       }
+       StringBuilder match = new StringBuilder();
+       for (String term : terms.trim().split("\\s+")) {
+           // Double quotes would end the quoted phrase early, so they are dropped
+           term = term.replace("\"", "");
+           if (term.length() == 0) {
+               continue;
+           }
+           if (match.length() > 0) {
+               match.append(' ');
+           }
+           match.append('"').append(term).append("\"*");
+       }
+       return match.length() == 0 ? null : match.toString();
+   }
+
+   /**
+    * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
+    * Returns the MIME data type of the URI given as a parameter.
+    *
+    * @param uri The URI whose MIME type is desired.
+    * @return The MIME type of the URI.
+    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    */
+   @Override
+   public String getType(Uri uri) {
 
        /**
         * Chooses the MIME type based on the incoming URI pattern
         */
        switch (sUriMatcher.match(uri)) {
 
-           // If the pattern is for notes or live folders, returns the general content type.
+           // If the pattern is for notes, live folders or a search, returns the general content
+           // type.
            case NOTES:
            case LIVE_FOLDER_NOTES:
+           case SEARCH:
                return NotePad.Notes.CONTENT_TYPE;
 
            // If the pattern is for note IDs, returns the note ID content type.
            case NOTE_ID:
                return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+           // If the pattern is for revisions, returns the matching revision type.
+           case REVISIONS:
+               return NotePad.Revisions.CONTENT_TYPE;
+
+           case REVISION_ID:
+               return NotePad.Revisions.CONTENT_ITEM_TYPE;
+
+           // If the pattern is for the archive of all the notes, returns the archive type.
+           case NOTES_EXPORT:
+               return NotePad.Archive.CONTENT_TYPE;
+
            // If the URI pattern doesn't match any permitted patterns, throws an exception.
            default:
                throw new IllegalArgumentException("Unknown URI " + uri);
@@ -360,6 +1444,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    /**
+     * The MIME types of the stream of the archive of all the notes
+     */
+    static ClipDescription ARCHIVE_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Archive.CONTENT_TYPE });
+
     /**
      * Returns the types of available data streams.  URIs to specific notes are supported.
      * The application can convert such a note to a plain text stream.
@@ -377,10 +1467,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, live folders or a search, return null. Data streams
+            // are not supported for this type of URI.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case REVISIONS:
+            case REVISION_ID:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -388,6 +1481,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             case NOTE_ID:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
 
+            // If the pattern is for the archive and the MIME filter matches its type, returns it
+            case NOTES_EXPORT:
+                return ARCHIVE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
                 // If the URI pattern doesn't match any permitted patterns, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -396,10 +1493,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
     /**
-     * Returns a stream of data for each supported stream type. This method does a query on the
-     * incoming URI, then uses
+     * Returns a stream of data for each supported stream type. This method looks up the title of
+     * the note and the length of its body, then uses
      * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
-     * PipeDataWriter)} to start another thread in which to convert the data into a stream.
+     * PipeDataWriter)} to start another thread in which to convert the data into a stream. The
+     * returned descriptor reports the exact length of the stream.
      *
      * @param uri The URI pattern that points to the data stream
      * @param mimeTypeFilter A String containing a MIME type. This method tries to get a stream of
@@ -416,21 +1514,41 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Checks to see if the MIME type filter matches a supported MIME type.
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
+        // The archive of all the notes is written as it is read, so its length is unknown.
+        if (sUriMatcher.match(uri) == NOTES_EXPORT) {
+            if (mimeTypes == null) {
+                throw new FileNotFoundException("Unable to open " + uri + " as " + mimeTypeFilter);
+            }
+            return new AssetFileDescriptor(openArchive(uri), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         // If the MIME type is supported
         if (mimeTypes != null) {
 
-            // Retrieves the note for this URI. Uses the query method defined for this provider,
-            // rather than using the database query method.
-            Cursor c = query(
-                    uri,                    // The URI of a note
-                    READ_NOTE_PROJECTION,   // Gets a projection containing the note's ID, title,
-                                            // and contents
-                    null,                   // No WHERE clause, get all matching records
-                    null,                   // Since there is no WHERE clause, no selection criteria
-                    null                    // Use the default sort order (modification date,
-                                            // descending
-            );
-
+            // Retrieves the title of the note and the length of its body, from the note cache
+            // if the note is cached, or else from the database without reading the body itself.
+            long noteId = Long.parseLong(
+                    uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+            NoteCache.Entry note = mNoteCache.get(noteId);
+            Cursor c;
+            if (note != null) {
+                MatrixCursor cached = new MatrixCursor(STREAM_NOTE_COLUMNS, 1);
+                cached.addRow(new Object[] {
+                    noteId, note.getTitle(), note.getNoteByteLength(), null });
+                c = cached;
+            } else {
+                SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                c = db.query(
+                        NotePad.Notes.TABLE_NAME,
+                        STREAM_NOTE_PROJECTION, // Gets the note's ID, title and length
+                        NotePad.Notes._ID + " = ? AND " + NOT_DELETED,
+                        new String[] { String.valueOf(noteId) },
+                        null,
+                        null,
+                        null
+                );
+            }
 
             // If the query fails or the cursor is empty, stop
             if (c == null || !c.moveToFirst()) {
@@ -444,10 +1562,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new FileNotFoundException("Unable to query " + uri);
             }
 
+            // The stream is the title, an empty line, and the body, each followed by a line
+            // separator, so its length is known before any of it is written. A client that only
+            // wants the body gets the body alone.
+            long length = getBodyLength(c);
+            if (!isBodyOnly(opts)) {
+                length += getTitleBytes(c).length + 2 + 1;
+            }
+
             // Start a new thread that pipes the stream data back to the caller.
             return new AssetFileDescriptor(
-                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH);
+                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0, length);
         }
 
         // If the MIME type is not supported, return a read-only handle to the file.
@@ -458,32 +1583,303 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
      * to perform the actual work of converting the data in one of cursors to a
      * stream of data for the client to read.
+     *
+     * The body of the note is never loaded as a whole. It is copied into the pipe one slice of
+     * {@link #STREAM_SLICE_SIZE} bytes at a time, as the UTF-8 bytes SQLite stores, so it is not
+     * decoded into a String or encoded again on the way out. The body of a compressed note is
+     * read in slices of compressed data, and decompressed into the pipe as it is read. If the
+     * note changes while it is being streamed, the stream may mix the old and new text, but it
+     * is never longer than the length reported when it was opened.
      */
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
             Bundle opts, Cursor c) {
+        long start = System.nanoTime();
+        long written = 0;
+
         // We currently only support conversion-to-text from a single note entry,
         // so no need for cursor data type checking here.
         FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
-        PrintWriter pw = null;
+        boolean bodyOnly = isBodyOnly(opts);
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Ooops", e);
+            if (!bodyOnly) {
+                byte[] title = getTitleBytes(c);
+                fout.write(title);
+                fout.write(NEWLINE);
+                fout.write(NEWLINE);
+                written += title.length + 2;
+            }
+
+            // Writes the body from the note cache if the note is still cached as it was when the
+            // stream was opened, or else from the database. How the note is stored is checked
+            // again here, since a note opened from the cache has no header, and a note can be
+            // compressed or stored as text again after the stream was opened.
+            long noteId = c.getLong(STREAM_NOTE_ID_INDEX);
+            long length = getBodyLength(c);
+            NoteCache.Entry note = mNoteCache.peek(noteId);
+            if (note != null && note.getNoteByteLength() == length) {
+                written += writeCachedNoteBody(fout, note);
+            } else if (isNoteCompressed(noteId)) {
+                written += writeCompressedNoteBody(fout, noteId, length);
+            } else {
+                written += writeNoteBody(fout, noteId, length);
+            }
+            if (!bodyOnly) {
+                fout.write(NEWLINE);
+                written++;
+            }
+            mMetrics.record(ProviderMetrics.STREAM, getUriType(uri), start, 1);
+        } catch (IOException e) {
+            // The reader closed the pipe, or the note could not be read.
+            Log.w(TAG, "Failed to stream " + uri, e);
         } finally {
             c.close();
-            if (pw != null) {
-                pw.flush();
+            try {
+                fout.close();
+            } catch (IOException e) {
             }
+            mMetrics.recordBytesStreamed(written);
+        }
+    }
+
+    /**
+     * Opens the archive of all the notes for reading, as described by {@link NotePad.Archive}.
+     * This is what {@link android.content.ContentResolver#openInputStream(Uri)} opens. No other
+     * URI can be opened as a file, and the archive can't be opened for writing; it is imported
+     * with {@link NotePad.Archive#METHOD_IMPORT_NOTES} instead.
+     *
+     * @throws FileNotFoundException if the URI isn't the archive URI, or the mode isn't "r".
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTES_EXPORT || !"r".equals(mode)) {
+            throw new FileNotFoundException("Unable to open " + uri + " in mode " + mode);
+        }
+        return openArchive(uri);
+    }
+
+    /**
+     * Starts writing the archive of all the notes into a pipe, on another thread.
+     *
+     * @return The read end of the pipe.
+     */
+    private ParcelFileDescriptor openArchive(Uri uri) throws FileNotFoundException {
+        boolean compress = Boolean.parseBoolean(
+                uri.getQueryParameter(NotePad.Archive.COMPRESS_PARAMETER));
+        return openPipeHelper(uri, NotePad.Archive.CONTENT_TYPE, null, compress, mArchiveWriter);
+    }
+
+    /**
+     * Writes the archive of all the notes into the pipe opened by {@link #openArchive(Uri)}
+     */
+    private final PipeDataWriter<Boolean> mArchiveWriter = new PipeDataWriter<Boolean>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, Boolean compress) {
+            exportNotes(output, uri, compress);
+        }
+    };
+
+    /**
+     * Writes every note that isn't deleted into a pipe, as an archive. The notes are read
+     * {@link #EXPORT_CHUNK_NOTES} at a time, in ID order, each chunk starting after the last
+     * note of the one before, so no cursor ever holds more than one chunk, and each query starts
+     * right at its first note in the primary key rather than skipping the notes before it. The
+     * text of a long note is copied in slices, as the body of a stream is, so the export takes
+     * the same memory whatever the number and size of the notes.
+     */
+    private void exportNotes(ParcelFileDescriptor output, Uri uri, boolean compress) {
+        long start = System.nanoTime();
+        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        try {
+            NoteArchive.Writer archive = new NoteArchive.Writer(fout, compress);
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String[] args = new String[] { "0" };
+            int read;
+            do {
+                read = 0;
+                Cursor c = db.rawQuery(EXPORT_CHUNK_SQL, args);
+                try {
+                    while (c.moveToNext()) {
+                        exportNote(archive, c);
+                        args[0] = c.getString(STREAM_NOTE_ID_INDEX);
+                        read++;
+                    }
+                } finally {
+                    c.close();
+                }
+            } while (read == EXPORT_CHUNK_NOTES);
+            long count = archive.finish();
+            mMetrics.record(ProviderMetrics.STREAM, getUriType(uri), start, count);
+        } catch (IOException e) {
+            // The reader closed the pipe, or a note could not be read.
+            Log.w(TAG, "Failed to export " + uri, e);
+        } finally {
             try {
                 fout.close();
             } catch (IOException e) {
             }
         }
     }
+
+    /**
+     * Writes the record of the note at the current position of an export chunk.
+     */
+    private void exportNote(NoteArchive.Writer archive, Cursor c) throws IOException {
+        long noteId = c.getLong(STREAM_NOTE_ID_INDEX);
+        OutputStream body = archive.beginNote(noteId, c.getLong(EXPORT_CREATE_DATE_INDEX),
+                c.getLong(EXPORT_MODIFICATION_DATE_INDEX), c.getString(STREAM_NOTE_TITLE_INDEX));
+        if (!c.isNull(EXPORT_TEXT_INDEX)) {
+            body.write(c.getBlob(EXPORT_TEXT_INDEX));
+        } else if (!c.isNull(STREAM_NOTE_HEADER_INDEX)) {
+            writeCompressedNoteBody(body, noteId, getBodyLength(c));
+        } else {
+            writeNoteBody(body, noteId, getBodyLength(c));
+        }
+        body.close();
+    }
+
+    /**
+     * Writes the body of a cached note into a stream, as UTF-8.
+     *
+     * @return The number of bytes written.
+     */
+    private static long writeCachedNoteBody(OutputStream out, NoteCache.Entry note)
+            throws IOException {
+        // The bytes were encoded once, when the length of the stream was declared.
+        byte[] bytes = note.getNoteBytes();
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Copies up to length bytes of a note's body into a stream, one slice at a time. Each slice is
+     * returned by SQLite in shared memory, and copied into the stream through a single reusable
+     * buffer. Stops early if the note has been deleted or has become shorter.
+     *
+     * @return The number of bytes copied.
+     */
+    private long writeNoteBody(OutputStream out, long noteId, long length) throws IOException {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        SQLiteStatement slice = db.compileStatement(STREAM_SLICE_SQL);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long offset = 0;
+        try {
+            while (offset < length) {
+                long sliceLength = Math.min(STREAM_SLICE_SIZE, length - offset);
+
+                // substr() counts from 1
+                slice.bindLong(1, offset + 1);
+                slice.bindLong(2, sliceLength);
+                slice.bindLong(3, noteId);
+                ParcelFileDescriptor sliceFd = slice.simpleQueryForBlobFileDescriptor();
+                if (sliceFd == null) {
+                    return offset;
+                }
+
+                long copied = 0;
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(sliceFd);
+                try {
+                    int count;
+                    while (copied < sliceLength && (count = in.read(buffer)) > 0) {
+                        count = (int) Math.min(count, sliceLength - copied);
+                        out.write(buffer, 0, count);
+                        copied += count;
+                    }
+                } finally {
+                    in.close();
+                }
+
+                if (copied < sliceLength) {
+                    // The note is shorter than it was when the stream was opened.
+                    return offset + copied;
+                }
+                offset += sliceLength;
+            }
+        } catch (SQLiteDoneException e) {
+            // The note was deleted while it was being streamed.
+        } finally {
+            slice.close();
+        }
+        return offset;
+    }
+
+    /**
+     * Copies up to length bytes of a compressed note's body into a stream, decompressing it as it
+     * goes. The compressed data is read one slice at a time, like the body of a note stored as
+     * text, so neither the data nor the text is ever in memory as a whole. Stops early if the
+     * note has been deleted or has become shorter.
+     *
+     * @return The number of bytes copied.
+     */
+    private long writeCompressedNoteBody(OutputStream out, long noteId, long length)
+            throws IOException {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        InputStream data = new NoteCodec.SliceInputStream(db, noteId, STREAM_SLICE_SIZE);
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        long copied = 0;
+        try {
+            InputStream in = NoteCodec.openStream(data);
+            try {
+                int count;
+                while (copied < length && (count = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, length - copied))) > 0) {
+                    out.write(buffer, 0, count);
+                    copied += count;
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            data.close();
+        }
+        return copied;
+    }
+
+    /**
+     * Returns true if a note is stored compressed, or false if it is stored as text or has been
+     * deleted.
+     */
+    private boolean isNoteCompressed(long noteId) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        try {
+            return DatabaseUtils.longForQuery(db, IS_COMPRESSED_SQL,
+                    new String[] { String.valueOf(noteId) }) != 0;
+        } catch (SQLiteDoneException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the length of the body of the note in a streaming cursor, in UTF-8 bytes. The
+     * length of a compressed body is read from the header of its data.
+     */
+    private static long getBodyLength(Cursor c) {
+        if (c.isNull(STREAM_NOTE_LENGTH_INDEX) && !c.isNull(STREAM_NOTE_HEADER_INDEX)) {
+            return NoteCodec.getDecodedLength(c.getBlob(STREAM_NOTE_HEADER_INDEX));
+        }
+        return c.getLong(STREAM_NOTE_LENGTH_INDEX);
+    }
+
+    /**
+     * Tests whether the options of a stream ask for the body of the note alone.
+     */
+    private static boolean isBodyOnly(Bundle opts) {
+        return opts != null && opts.getBoolean(NotePad.Streams.OPTION_BODY_ONLY);
+    }
+
+    /**
+     * Returns the title of the note in a streaming cursor, as UTF-8 bytes.
+     */
+    private static byte[] getTitleBytes(Cursor c) {
+        String title = c.getString(STREAM_NOTE_TITLE_INDEX);
+        try {
+            return (title == null ? "" : title).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform supports UTF-8
+            throw new AssertionError(e);
+        }
+    }
 //END_INCLUDE(stream)
 
     /**
@@ -497,6 +1893,19 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        return insertNote(uri, initialValues, 0);
+    }
+
+    /**
+     * Inserts a new note, as {@link #insert(Uri, ContentValues)} does, with the given value of
+     * the deleted column. The deleted column is the provider's own, so any value of it in
+     * initialValues is ignored.
+     *
+     * @param deleted 0 for a note that is visible at once, or {@link #DELETED_IMPORTING} for a
+     * note an import is adding.
+     */
+    private Uri insertNote(Uri uri, ContentValues initialValues, int deleted) {
+        long start = System.nanoTime();
 
         // Validates the incoming URI. Only the full provider URI is allowed for inserts.
         if (sUriMatcher.match(uri) != NOTES) {
@@ -510,6 +1919,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         if (initialValues != null) {
             values = new ContentValues(initialValues);
 
+            // Every note starts at the first version, whatever the client asked for.
+            values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+            values.remove(COLUMN_NAME_DELETED);
         } else {
             // Otherwise, create a new value map
             values = new ContentValues();
@@ -540,17 +1952,70 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
         }
 
+        // A note is visible as soon as it is inserted, unless an import is adding it.
+        values.put(COLUMN_NAME_DELETED, deleted);
+
+        // Sets the title, if asked to, the preview and the word count from the note text.
+        NoteAnalyzer.putDerivedColumns(values);
+
+        // Compresses the note text if it is large enough to be worth it.
+        String compressedText = mCodec.putEncoded(values);
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-            NotePad.Notes.TABLE_NAME,        // The table to insert into.
-            NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                                             // if values is empty.
-            values                           // A map of column names, and the values to insert
-                                             // into the columns.
-        );
+        // A compressed note is inserted and indexed for search in one transaction, as is a note
+        // that replaces another. A note stored as text is indexed by the insert itself.
+        Long id = values.getAsLong(NotePad.Notes._ID);
+        boolean inTransaction = compressedText != null || id != null;
+        if (inTransaction) {
+            beginTransaction(db);
+        }
+        long rowId;
+        try {
+            // A note inserted with the ID of a deleted note that hasn't been purged yet replaces
+            // it.
+            if (id != null) {
+                String replaced = NotePad.Notes._ID + " = ? AND " + COLUMN_NAME_DELETED + " = 1";
+                String[] replacedArgs = new String[] { String.valueOf(id) };
+                boolean staged = NoteSearchIndex.stage(db, replaced, replacedArgs);
+                db.delete(NotePad.Notes.TABLE_NAME, replaced, replacedArgs);
+                if (staged) {
+                    NoteSearchIndex.unstage(db);
+                }
+            }
+
+            SQLiteStatement batchInsert = getBatchInsert(db, values);
+            if (batchInsert != null) {
+                // Inside a batch, binds the values to the batch's compiled statement instead of
+                // compiling a new one for every row.
+                for (int i = 0; i < BATCH_INSERT_COLUMNS.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(batchInsert, i + 1,
+                            values.get(BATCH_INSERT_COLUMNS[i]));
+                }
+                rowId = batchInsert.executeInsert();
+            } else {
+                // Performs the insert and returns the ID of the new note.
+                rowId = db.insert(
+                    NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                    NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to
+                                                     // null if values is empty.
+                    values                           // A map of column names, and the values to
+                                                     // insert into the columns.
+                );
+            }
+
+            if (compressedText != null && rowId > 0) {
+                NoteSearchIndex.indexCompressedText(db, rowId, compressedText);
+            }
+            if (inTransaction) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (inTransaction) {
+                db.endTransaction();
+            }
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
@@ -558,7 +2023,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
             // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri);
+            mMetrics.record(ProviderMetrics.INSERT, getUriType(uri), start, 1);
             return noteUri;
         }
 
@@ -574,6 +2040,10 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * a set of records. The record or records must also match the input selection criteria
      * specified by where and whereArgs.
      *
+     * The records are only marked deleted, which is a quick update however many there are, and
+     * are removed later, in small transactions, by {@link NotePurger}. From the moment they are
+     * marked, no query returns them.
+     *
      * If rows were deleted, then listeners are notified of the change.
      * @return If a "where" clause is used, the number of rows affected is returned, otherwise
      * 0 is returned. To delete all rows and get a row count, use "1" as the where clause.
@@ -581,53 +2051,57 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        long start = System.nanoTime();
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        String finalWhere;
 
         int count;
 
+        // The notes that were deleted, or null if there were too many to notify one at a time
+        ArrayList<Long> noteIds;
+
         // Does the delete based on the incoming URI pattern.
         switch (sUriMatcher.match(uri)) {
 
             // If the incoming pattern matches the general pattern for notes, does a delete
             // based on the incoming "where" columns and arguments.
             case NOTES:
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name
-                    where,                     // The incoming where clause column names
-                    whereArgs                  // The incoming where clause values
-                );
+                ContentValues deleted = new ContentValues(1);
+                deleted.put(COLUMN_NAME_DELETED, 1);
+
+                beginTransaction(db);
+                try {
+                    // Finds the notes first, so that their observers can be notified.
+                    noteIds = selectNoteIds(db, where, whereArgs, NotificationBatcher.MAX_URIS);
+                    count = db.update(
+                        NotePad.Notes.TABLE_NAME,  // The database table name
+                        deleted,                   // Marks the notes deleted
+                        whereNotDeleted(where),    // The incoming where clause column names
+                        whereArgs                  // The incoming where clause values
+                    );
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
                 // If the incoming URI matches a single note ID, does the delete based on the
                 // incoming data, but modifies the where clause to restrict it to the
                 // particular note ID.
             case NOTE_ID:
+                // From the incoming URI, get the note ID
+                long noteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
                 /*
-                 * Starts a final WHERE clause by restricting it to the
-                 * desired note ID.
+                 * Marks the note deleted with the compiled statement for deletes by ID, which
+                 * also applies any additional selection criteria. The ID is bound as an
+                 * argument, so the statement is shared by every note.
                  */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final
-                // WHERE clause
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
-
-                // Performs the delete.
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name.
-                    finalWhere,                // The final WHERE clause
-                    whereArgs                  // The incoming where clause values.
-                );
+                count = mNoteStatements.delete(db, noteId, where, whereArgs);
+                noteIds = new ArrayList<Long>();
+                noteIds.add(noteId);
                 break;
 
             // If the incoming pattern is invalid, throws an exception.
@@ -635,11 +2109,16 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+        /*Notifies the observers of each deleted note. Nothing is sent if no note was deleted.
+         * The notifications pass through the resolver framework to the observers that have
+         * registered themselves for the provider.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyNotesChanged(noteIds);
+            mOpenHelper.getPurger().schedule();
+        }
+
+        mMetrics.record(ProviderMetrics.DELETE, getUriType(uri), start, count);
 
         // Returns the number of rows deleted.
         return count;
@@ -667,11 +2146,30 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        long start = System.nanoTime();
 
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
-        String finalWhere;
+
+        // The notes that were updated, or null if there were too many to notify one at a time
+        ArrayList<Long> noteIds;
+
+        // If the note text changes, updates the columns derived from it along with it. A null
+        // title is derived from the new text too. The provider keeps the version and the deleted
+        // column itself, so a client can't hide or restore a note through an update.
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_VERSION)
+                || values.containsKey(COLUMN_NAME_DELETED)) {
+            values = new ContentValues(values);
+            values.remove(NotePad.Notes.COLUMN_NAME_VERSION);
+            values.remove(COLUMN_NAME_DELETED);
+            NoteAnalyzer.putDerivedColumns(values);
+        }
+        if (values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
 
         // Does the update based on the incoming URI pattern
         switch (sUriMatcher.match(uri)) {
@@ -679,65 +2177,728 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // If the incoming URI matches the general notes pattern, does the update based on
             // the incoming data.
             case NOTES:
+                if (uri.getQueryParameter(NotePad.Notes.EXPECTED_VERSION_PARAMETER) != null) {
+                    throw new IllegalArgumentException("Expected version needs a note ID URI "
+                            + uri);
+                }
+                boolean textChanged = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+                String newText = null;
+                String compressedText = null;
+                if (textChanged) {
+                    // The values were copied above, to derive the columns from the text.
+                    newText = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                    compressedText = mCodec.putEncoded(values);
+                }
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    where,                    // The where clause column names.
-                    whereArgs                 // The where clause column values to select on.
-                );
+                beginTransaction(db);
+                try {
+                    // Finds the notes first, so that their observers can be notified, and since
+                    // the update may change the columns the where clause selects on. If the note
+                    // text changes, every ID is needed to record the revision of each note.
+                    noteIds = selectNoteIds(db, where, whereArgs,
+                            textChanged ? 0 : NotificationBatcher.MAX_URIS);
+
+                    // If the note text changes, records the change to each note as a revision,
+                    // as an update of a single note does. The previous text of each note is read
+                    // before the update, one note at a time, and only the delta back to it is
+                    // kept, so the histories of all the notes are kept without holding more than
+                    // one of their texts at once.
+                    if (textChanged) {
+                        long now = getModificationDate(values);
+                        for (long id : noteIds) {
+                            String oldText = NoteCodec.readNote(db, id);
+                            if (oldText == null || newText == null) {
+                                NoteRevisions.restart(db, id, now);
+                            } else if (!oldText.equals(newText)) {
+                                NoteRevisions.record(db, id, oldText, newText, now);
+                            }
+                        }
+                    }
+
+                    // Does the update, which also moves each note to its next version, and
+                    // returns the number of rows updated. The text of the compressed notes is
+                    // staged if the search index needs it.
+                    boolean staged = writesSearchColumns(values)
+                            && NoteSearchIndex.stage(db, whereNotDeleted(where), whereArgs);
+                    count = updateNotes(db, values, where, whereArgs);
+
+                    // If the new text is compressed, indexes it for search in each note. The
+                    // text, which is the same for every note, is only stored in the notes
+                    // themselves.
+                    if (compressedText != null) {
+                        for (long id : noteIds) {
+                            NoteSearchIndex.indexCompressedText(db, id, compressedText);
+                        }
+                    }
+                    if (staged) {
+                        NoteSearchIndex.unstage(db);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             // If the incoming URI matches a single note ID, does the update based on the incoming
             // data, but modifies the where clause to restrict it to the particular note ID.
             case NOTE_ID:
                 // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
-
-                /*
-                 * Starts creating the final WHERE clause by restricting it to the incoming
-                 * note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final WHERE
-                // clause
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
+                long noteId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+
+                // If the client expects the note to be at a version, only updates it if it still
+                // is. The version is checked by the update itself, so a conflict costs no more
+                // than any update that matches no note.
+                String expectedVersion =
+                        uri.getQueryParameter(NotePad.Notes.EXPECTED_VERSION_PARAMETER);
+                if (expectedVersion != null) {
+                    where = whereVersion(where);
+                    whereArgs = whereVersionArgs(parseVersion(uri, expectedVersion), whereArgs);
                 }
 
-
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    finalWhere,               // The final WHERE clause to use
-                                              // placeholders for whereArgs
-                    whereArgs                 // The where clause column values to select on, or
-                                              // null if the values are in the where argument.
-                );
+                // If the note text changes, records the change as a revision, as well as doing
+                // the update.
+                if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                    count = updateNoteWithRevision(db, noteId, values, where, whereArgs);
+                } else if (writesSearchColumns(values)) {
+                    count = updateNoteIndexed(db, noteId, values, where, whereArgs);
+                } else {
+                    /*
+                     * Does the update with the compiled statement for the updated columns,
+                     * which also applies any additional selection criteria, and returns the
+                     * number of rows updated. The ID is bound as an argument, so the statement
+                     * is shared by every note.
+                     */
+                    count = mNoteStatements.update(db, noteId, values, where, whereArgs);
+                }
+                noteIds = new ArrayList<Long>();
+                noteIds.add(noteId);
                 break;
             // If the incoming pattern is invalid, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
-         * and observers that have registered themselves for the provider are notified.
+        /*Notifies the observers of each updated note. Nothing is sent if no note was updated.
+         * The notifications pass through the resolver framework to the observers that have
+         * registered themselves for the provider.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyNotesChanged(noteIds);
+        }
+
+        mMetrics.record(ProviderMetrics.UPDATE, getUriType(uri), start, count);
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * Updates the text of a single note and records the change in its revision history, in one
+     * transaction. The previous text is read first, a slice at a time so that a note of any size
+     * can be updated, to compute the change. If the text is the
+     * same as before, the note column is left out of the update, so that SQLite neither rewrites
+     * the text nor reindexes it for search. Otherwise the new text is compressed if it is large
+     * enough, and then indexed for search by the provider.
+     *
+     * @param where An additional where clause the note must match, or null.
+     * @return The number of rows updated, 0 or 1.
+     */
+    private int updateNoteWithRevision(SQLiteDatabase db, long noteId, ContentValues values,
+            String where, String[] whereArgs) {
+        ContentValues noteValues = new ContentValues(values);
+        String newText = noteValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+
+        beginTransaction(db);
+        try {
+            if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                    + NotePad.Notes.TABLE_NAME + NoteStatements.noteWhere(where),
+                    NoteStatements.noteWhereArgs(noteId, whereArgs)) == 0) {
+                // The note doesn't exist, or doesn't match the where clause
+                db.setTransactionSuccessful();
+                return 0;
+            }
+            String oldText = NoteCodec.readNote(db, noteId);
+
+            boolean changed = !TextUtils.equals(oldText, newText);
+            String compressedText = null;
+            if (changed) {
+                compressedText = mCodec.putEncoded(noteValues);
+            } else {
+                noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+                noteValues.remove(NotePad.Notes.COLUMN_NAME_PREVIEW);
+                noteValues.remove(NotePad.Notes.COLUMN_NAME_WORD_COUNT);
+            }
+
+            // Updates the note even if nothing is left to change, so that every update moves
+            // the note to its next version, as a client of the expected version counts on.
+            boolean staged = writesSearchColumns(noteValues) && NoteSearchIndex.stage(db, noteId);
+            int count = mNoteStatements.update(db, noteId, noteValues, where, whereArgs);
+
+            if (count > 0 && changed) {
+                long now = getModificationDate(values);
+                if (oldText != null && newText != null) {
+                    NoteRevisions.record(db, noteId, oldText, newText, now);
+                } else {
+                    NoteRevisions.restart(db, noteId, now);
+                }
+                if (compressedText != null) {
+                    NoteSearchIndex.indexCompressedText(db, noteId, compressedText);
+                }
+            }
+            if (staged) {
+                NoteSearchIndex.unstage(db);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates every note that matches a where clause, apart from deleted notes, and moves each
+     * of them to its next version.
+     *
+     * @return The number of rows updated.
+     */
+    private static int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        ArrayList<String> columns = new ArrayList<String>(values.keySet());
+        SQLiteStatement statement = db.compileStatement(NoteStatements.updateSql(columns)
+                .append(" WHERE ").append(whereNotDeleted(where)).toString());
+        try {
+            for (int i = 0; i < columns.size(); i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns.get(i)));
+            }
+            if (whereArgs != null) {
+                for (int i = 0; i < whereArgs.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, columns.size() + 1 + i,
+                            whereArgs[i]);
+                }
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Parses the value of {@link NotePad.Notes#EXPECTED_VERSION_PARAMETER}.
+     *
+     * @throws IllegalArgumentException if the expected version is not a number.
+     */
+    private static long parseVersion(Uri uri, String expectedVersion) {
+        try {
+            return Long.parseLong(expectedVersion);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid expected version in " + uri);
+        }
+    }
+
+    /**
+     * Adds the condition that a note is at the expected version to a where clause. The version
+     * is the first argument; see {@link #whereVersionArgs(long, String[])}.
+     */
+    private static String whereVersion(String where) {
+        String whereVersion = NotePad.Notes.COLUMN_NAME_VERSION + " = ?";
+        return TextUtils.isEmpty(where) ? whereVersion : whereVersion + " AND (" + where + ")";
+    }
+
+    /**
+     * Returns the arguments of a where clause made by {@link #whereVersion(String)}.
+     */
+    private static String[] whereVersionArgs(long expectedVersion, String[] whereArgs) {
+        int extra = whereArgs != null ? whereArgs.length : 0;
+        String[] args = new String[1 + extra];
+        args[0] = String.valueOf(expectedVersion);
+        if (extra > 0) {
+            System.arraycopy(whereArgs, 0, args, 1, extra);
+        }
+        return args;
+    }
+
+    /**
+     * Updates the indexed columns of a single note, but not its text, in one transaction with
+     * staging the text of the note for the search index if it is compressed.
+     *
+     * @param where An additional where clause the note must match, or null.
+     * @return The number of rows updated, 0 or 1.
+     */
+    private int updateNoteIndexed(SQLiteDatabase db, long noteId, ContentValues values,
+            String where, String[] whereArgs) {
+        beginTransaction(db);
+        try {
+            boolean staged = NoteSearchIndex.stage(db, noteId);
+            int count = mNoteStatements.update(db, noteId, values, where, whereArgs);
+            if (staged) {
+                NoteSearchIndex.unstage(db);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Tests whether an update writes a column the search index holds, which fires the search
+     * triggers.
+     */
+    private static boolean writesSearchColumns(ContentValues values) {
+        return values.containsKey(NotePad.Notes._ID)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+    }
+
+    /**
+     * Returns the modification date of an update, or the current time if the update doesn't set
+     * one.
+     */
+    private static long getModificationDate(ContentValues values) {
+        Long modified = values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        return modified != null ? modified : System.currentTimeMillis();
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all of the rows in a single transaction, with one compiled insert statement, and
+     * notifies listeners of the change once, after the transaction commits. If any insert fails,
+     * none of the rows are inserted.
+     *
+     * @return The number of rows inserted.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = beginBatch(db);
+        try {
+            for (ContentValues noteValues : values) {
+                insert(uri, noteValues);
+            }
+            succeedBatch(db, batch);
+        } finally {
+            endBatch(db, batch);
+        }
+        return values.length;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all of the operations in a single transaction, and notifies listeners of the
+     * change once, after the transaction commits. If any operation fails, none of them are
+     * applied.
+     *
+     * @return The results of the operations, in the same order as the operations.
+     * @throws OperationApplicationException if an operation's assertions fail.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Batch batch = beginBatch(db);
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            succeedBatch(db, batch);
+            return results;
+        } finally {
+            endBatch(db, batch);
+        }
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}.
+     * Returns or resets the provider's metrics, as described by {@link NotePad.Metrics}, or
+     * reports on and maintains the database's storage, as described by {@link NotePad.Storage}.
+     * Also writes large notes through a pipe, as described by {@link NotePad.Streams}, and
+     * imports archives of notes, as described by {@link NotePad.Archive}.
+     *
+     * @return The metrics for {@link NotePad.Metrics#METHOD_GET_METRICS}, the storage statistics
+     * for the {@link NotePad.Storage} methods, the count for the write and import methods, or
+     * null.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.Metrics.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.snapshot();
+        } else if (NotePad.Metrics.METHOD_RESET_METRICS.equals(method)) {
+            mMetrics.reset();
+            return null;
+        } else if (NotePad.Storage.METHOD_GET_STORAGE_STATS.equals(method)) {
+            return mOpenHelper.getMaintenance().getStats(mOpenHelper.getReadableDatabase());
+        } else if (NotePad.Storage.METHOD_RUN_MAINTENANCE.equals(method)) {
+            // The provider is exported, but only the app itself may make it write and analyze
+            // the whole database on demand.
+            if (Binder.getCallingUid() != Process.myUid()) {
+                throw new SecurityException(method + " can only be called by the app itself");
+            }
+            return mOpenHelper.getMaintenance().maintain(mOpenHelper.getWritableDatabase());
+        } else if (NotePad.Streams.METHOD_WRITE_NOTE.equals(method)) {
+            // A write holds the binder thread until its pipe is closed, so only the app itself,
+            // which always closes it, may make one.
+            if (Binder.getCallingUid() != Process.myUid()) {
+                throw new SecurityException(method + " can only be called by the app itself");
+            }
+            return writeNote(arg, extras);
+        } else if (NotePad.Archive.METHOD_IMPORT_NOTES.equals(method)) {
+            // An import adds any number of notes, and holds the import lock until its archive
+            // ends, so only the app itself may run one.
+            if (Binder.getCallingUid() != Process.myUid()) {
+                throw new SecurityException(method + " can only be called by the app itself");
+            }
+            return importNotes(extras);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Replaces the text of a note with text read from a pipe, as described by
+     * {@link NotePad.Streams#METHOD_WRITE_NOTE}. The text is read on the calling thread, in
+     * slices of {@link #WRITE_SLICE_CHARS}, so the buffer only grows as the text arrives, never
+     * past {@link #MAX_WRITE_CHARS}, whatever length the caller gave. Nothing is written unless
+     * the whole text arrives.
+     *
+     * @param arg The note ID URI, as a String.
+     * @return A Bundle with the number of notes updated.
+     * @throws IllegalArgumentException if the URI isn't a note ID URI, or the text is missing,
+     * longer than {@link #MAX_WRITE_CHARS}, or shorter or longer than its length.
+     */
+    private Bundle writeNote(String arg, Bundle extras) {
+        Uri uri = Uri.parse(arg);
+        if (sUriMatcher.match(uri) != NOTE_ID) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        ParcelFileDescriptor input = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Streams.KEY_TEXT) : null;
+        if (input == null) {
+            throw new IllegalArgumentException("No text to write to " + uri);
+        }
+
+        String text;
+        try {
+            text = readText(input, extras.getInt(NotePad.Streams.KEY_LENGTH, -1));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to read the text of " + uri, e);
+        }
+
+        ContentValues values = extras.getParcelable(NotePad.Streams.KEY_VALUES);
+        values = values != null ? new ContentValues(values) : new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Streams.KEY_COUNT, update(uri, values, null, null));
+        return result;
+    }
+
+    /**
+     * Adds the notes of an archive, as described by {@link NotePad.Archive#METHOD_IMPORT_NOTES}.
+     * The archive is read on the calling thread, one note at a time, and its notes are inserted
+     * {@link #IMPORT_BATCH_SIZE} at a time, each batch in its own transaction with one compiled
+     * insert statement, as {@link #bulkInsert(Uri, ContentValues[])} does. Only the text of one
+     * note is in memory at a time, however large the archive.
+     *
+     * The notes are inserted hidden, as {@link #DELETED_IMPORTING}, so the batches can commit
+     * without clients seeing a partial import. Once the whole archive has been read, a single
+     * update makes all of them visible. If the import fails, they are marked deleted instead,
+     * and purged. Imports run one at a time, so that each only publishes its own notes.
+     *
+     * @return A Bundle with the number of notes imported.
+     * @throws IllegalArgumentException if there is no archive, or it is corrupt or truncated, in
+     * which case none of its notes are imported.
+     */
+    private Bundle importNotes(Bundle extras) {
+        ParcelFileDescriptor input = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Archive.KEY_ARCHIVE) : null;
+        if (input == null) {
+            throw new IllegalArgumentException("No archive to import");
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+        int count = 0;
+        synchronized (mImportLock) {
+            boolean imported = false;
+            try {
+                NoteArchive.Reader archive = new NoteArchive.Reader(in);
+                boolean more = true;
+                while (more) {
+                    Batch batch = beginBatch(db);
+                    try {
+                        int batched = 0;
+                        while (batched < IMPORT_BATCH_SIZE && (more = archive.next())) {
+                            ContentValues values = new ContentValues();
+                            if (archive.getTitle() != null) {
+                                values.put(NotePad.Notes.COLUMN_NAME_TITLE, archive.getTitle());
+                            }
+                            values.put(NotePad.Notes.COLUMN_NAME_NOTE, archive.readBody());
+                            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+                                    archive.getCreated());
+                            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                                    archive.getModified());
+                            insertNote(NotePad.Notes.CONTENT_URI, values, DELETED_IMPORTING);
+                            batched++;
+                        }
+                        succeedBatch(db, batch);
+                        count += batched;
+                    } finally {
+                        endBatch(db, batch);
+                    }
+                }
+
+                // Makes all of the imported notes visible at once. This only rewrites the deleted
+                // column of each, which is quick even for a large archive.
+                ContentValues visible = new ContentValues(1);
+                visible.put(COLUMN_NAME_DELETED, 0);
+                beginTransaction(db);
+                try {
+                    db.update(NotePad.Notes.TABLE_NAME, visible,
+                            COLUMN_NAME_DELETED + " = " + DELETED_IMPORTING, null);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                imported = true;
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed to read the archive after " + count
+                        + " notes; none were imported", e);
+            } finally {
+                if (!imported && abandonImports(db) > 0) {
+                    mOpenHelper.getPurger().schedule();
+                }
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        notifyChange(NotePad.Notes.CONTENT_URI);
+
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Archive.KEY_COUNT, count);
+        return result;
+    }
+
+    /**
+     * Marks the notes of an import that didn't finish deleted, so that they are purged.
+     *
+     * @return The number of notes marked deleted.
+     */
+    static int abandonImports(SQLiteDatabase db) {
+        ContentValues deleted = new ContentValues(1);
+        deleted.put(COLUMN_NAME_DELETED, 1);
+        return db.update(NotePad.Notes.TABLE_NAME, deleted,
+                COLUMN_NAME_DELETED + " = " + DELETED_IMPORTING, null);
+    }
+
+    /**
+     * Reads exactly length characters of UTF-8 text from a pipe, and closes it. The text is read
+     * a slice at a time, so a wrong length never sizes a buffer.
+     *
+     * @throws IOException if the pipe fails, or holds fewer or more characters than length, or
+     * length is more than {@link #MAX_WRITE_CHARS}.
+     */
+    private static String readText(ParcelFileDescriptor input, int length) throws IOException {
+        Reader reader = new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(input), "UTF-8");
+        try {
+            if (length < 0) {
+                throw new IOException("Unknown text length");
+            } else if (length > MAX_WRITE_CHARS) {
+                throw new IOException("Text of " + length + " characters is too long");
+            }
+            StringBuilder text = new StringBuilder(Math.min(length, WRITE_SLICE_CHARS));
+            char[] slice = new char[Math.min(length, WRITE_SLICE_CHARS) + 1];
+            int count;
+            while ((count = reader.read(slice, 0,
+                    Math.min(slice.length, length - text.length() + 1))) > 0) {
+                text.append(slice, 0, count);
+                if (text.length() > length) {
+                    break;
+                }
+            }
+            if (text.length() != length) {
+                throw new IOException("Expected " + length + " characters");
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Begins a transaction, and records how long it waited for the database lock.
+     */
+    private void beginTransaction(SQLiteDatabase db) {
+        long start = System.nanoTime();
+        db.beginTransaction();
+        mMetrics.recordLockWait(start);
+    }
+
+    /**
+     * Starts a batch of writes on the current thread, in a new transaction. A batch started while
+     * another is running joins the outer batch.
+     *
+     * @return The batch that was started, or null if the thread was already running a batch.
+     */
+    private Batch beginBatch(SQLiteDatabase db) {
+        beginTransaction(db);
+        if (mBatch.get() != null) {
+            return null;
+        }
+        Batch batch = new Batch();
+        mBatch.set(batch);
+        return batch;
+    }
+
+    /**
+     * Marks the transaction of a batch as successful, so that it commits when the batch ends.
+     */
+    private void succeedBatch(SQLiteDatabase db, Batch batch) {
+        db.setTransactionSuccessful();
+        if (batch != null) {
+            batch.successful = true;
+        }
+    }
+
+    /**
+     * Ends a batch started by {@link #beginBatch(SQLiteDatabase)}. Commits or rolls back the
+     * transaction, and if the batch committed a change, notifies the observers of the changed
+     * URIs together.
+     */
+    private void endBatch(SQLiteDatabase db, Batch batch) {
+        db.endTransaction();
+        if (batch == null) {
+            return;
+        }
+        mBatch.remove();
+        if (batch.insert != null) {
+            batch.insert.close();
+        }
+        // Invalidates the changed notes again, now that the batch committed or rolled back, in
+        // case they were read and cached while it ran.
+        for (Uri uri : batch.changes) {
+            invalidateCachedNotes(uri);
+        }
+        if (batch.successful && !batch.changes.isEmpty()) {
+            mNotifier.notifyChanges(batch.changes);
+        }
+    }
+
+    /**
+     * Returns the compiled insert statement of the batch running on the current thread, if the
+     * values can be bound to it.
+     *
+     * @return The statement, or null if no batch is running or the values contain a column that
+     * the statement doesn't insert.
+     */
+    private SQLiteStatement getBatchInsert(SQLiteDatabase db, ContentValues values) {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            return null;
+        }
+        for (String column : values.keySet()) {
+            if (!isBatchInsertColumn(column)) {
+                return null;
+            }
+        }
+        if (batch.insert == null) {
+            batch.insert = db.compileStatement(BATCH_INSERT_SQL);
+        }
+        return batch.insert;
+    }
+
+    private static boolean isBatchInsertColumn(String column) {
+        for (String batchColumn : BATCH_INSERT_COLUMNS) {
+            if (batchColumn.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notifies observers that the data at the URI changed. Inside a batch, the notification is
+     * deferred until the batch commits. Notifications are coalesced by {@link #mNotifier}.
+     *
+     * The changed notes are dropped from the note cache right away, as well.
+     */
+    private void notifyChange(Uri uri) {
+        invalidateCachedNotes(uri);
+        Batch batch = mBatch.get();
+        if (batch != null) {
+            batch.changes.add(uri);
+        } else {
+            mNotifier.notifyChange(uri);
+        }
+    }
+
+    /**
+     * Drops the notes at a URI from the note cache: a single note for a note ID URI, or else
+     * every note.
+     */
+    private void invalidateCachedNotes(Uri uri) {
+        if (sUriMatcher.match(uri) == NOTE_ID) {
+            mNoteCache.invalidate(ContentUris.parseId(uri));
+        } else {
+            mNoteCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Notifies observers of each of a set of notes that the note changed.
+     *
+     * @param noteIds The IDs of the notes, or null to notify observers of all notes.
+     */
+    private void notifyNotesChanged(ArrayList<Long> noteIds) {
+        if (noteIds == null) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+            return;
+        }
+        for (long noteId : noteIds) {
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId));
+        }
+    }
+
+    /**
+     * Restricts a where clause on the notes table to the notes that aren't deleted.
+     *
+     * @param where The where clause, or null to select every note that isn't deleted.
+     */
+    private static String whereNotDeleted(String where) {
+        return TextUtils.isEmpty(where) ? NOT_DELETED : NOT_DELETED + " AND (" + where + ")";
+    }
+
+    /**
+     * Returns the IDs of the notes that match a where clause, leaving out deleted notes.
+     *
+     * @param limit The largest number of IDs to return, or 0 for no limit.
+     * @return The IDs, or null if there are more than limit of them.
+     */
+    private static ArrayList<Long> selectNoteIds(SQLiteDatabase db, String where,
+            String[] whereArgs, int limit) {
+        ArrayList<Long> noteIds = new ArrayList<Long>();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                whereNotDeleted(where), whereArgs, null, null, null,
+                limit > 0 ? String.valueOf(limit + 1) : null);
+        try {
+            while (c.moveToNext()) {
+                noteIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return limit > 0 && noteIds.size() > limit ? null : noteIds;
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -749,4 +2910,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * Returns the provider's cache of compiled single-note statements, so that tests can check
+     * that statements are reused. Only for tests.
+     */
+    NoteStatements getNoteStatementsForTest() {
+        return mNoteStatements;
+    }
+
+    /**
+     * Returns the provider's note cache. Only for tests.
+     */
+    NoteCache getNoteCacheForTest() {
+        return mNoteCache;
+    }
+
+    /**
+     * Returns the provider's cache of query SQL. Only for tests.
+     */
+    QueryPlanCache getQueryPlansForTest() {
+        return mQueryPlans;
+    }
+
+    /**
+     * Replaces the codec that compresses the notes the provider writes from now on. Notes
+     * already written are read whatever codec wrote them. Only for tests and benchmarks.
+     */
+    void setCodecForTest(NoteCodec codec) {
+        mCodec = codec;
+    }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Removes the notes NotePadProvider has marked deleted. The provider deletes a note by setting
+ * its {@link NotePadProvider#COLUMN_NAME_DELETED} column, which is a cheap update however many
+ * notes a delete selects, and leaves the rest of the work to this class: deleting the rows, which
+ * also deletes their search index entries and revisions through triggers. The text of the
+ * compressed notes in each chunk is staged for the search index first; see
+ * {@link NoteSearchIndex}.
+ *
+ * The purge runs on a background thread, a short while after the last delete, so that a run of
+ * deletes is purged together. It deletes {@link #CHUNK_SIZE} notes per transaction, and pauses
+ * between transactions, so that it never holds the database lock for long.
+ *
+ * The purge then gives the pages it freed back to the file system, a few at a time, up to the
+ * limit of a maintenance run; see {@link DatabaseMaintenance#reclaim(SQLiteDatabase, int)}.
+ */
+final class NotePurger {
+    // Used for debugging and logging
+    private static final String TAG = "NotePurger";
+
+    /**
+     * The number of deleted notes removed in each transaction
+     */
+    static final int CHUNK_SIZE = 200;
+
+    /**
+     * How long after the last delete the purge runs, in milliseconds
+     */
+    static final long PURGE_DELAY_MILLIS = 2000;
+
+    // How long the purge waits between transactions, to leave the database to the provider
+    private static final long CHUNK_PAUSE_MILLIS = 20;
+
+    private final SQLiteOpenHelper mHelper;
+
+    // The thread the purge runs on, and a handler that schedules it, both created on first use.
+    // Guarded by this.
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Purges the notes that are left
+    private final Runnable mPurgeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                long start = SystemClock.elapsedRealtime();
+                int purged = purge(mHelper.getWritableDatabase());
+                Log.i(TAG, "Purged " + purged + " notes in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Stopped purging notes", e);
+            } catch (IllegalStateException e) {
+                // The database was closed during the purge
+                Log.w(TAG, "Stopped purging notes", e);
+            }
+        }
+    };
+
+    /**
+     * @param helper Opens the database the notes are in.
+     */
+    NotePurger(SQLiteOpenHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * Schedules a purge {@link #PURGE_DELAY_MILLIS} from now, replacing a purge that is already
+     * scheduled and hasn't started.
+     */
+    synchronized void schedule() {
+        if (mHandler == null) {
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+        mHandler.removeCallbacks(mPurgeRunnable);
+        mHandler.postDelayed(mPurgeRunnable, PURGE_DELAY_MILLIS);
+    }
+
+    /**
+     * Tests whether the database has deleted notes left to purge. This is a single lookup in
+     * one of the indexes that lead with the deleted column.
+     */
+    static boolean hasDeletedNotes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM (SELECT 1 FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePadProvider.COLUMN_NAME_DELETED
+                + " = 1 LIMIT 1)", null) > 0;
+    }
+
+    /**
+     * Removes every deleted note, in transactions of {@link #CHUNK_SIZE} notes, and then gives
+     * some of the pages they took back to the file system. Runs on the calling thread.
+     *
+     * @return The number of notes removed.
+     */
+    int purge(SQLiteDatabase db) {
+        String chunk = NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePadProvider.COLUMN_NAME_DELETED
+                + " = 1 LIMIT " + CHUNK_SIZE + ")";
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + NotePad.Notes.TABLE_NAME
+                + " WHERE " + chunk);
+        int purged = 0;
+        try {
+            int count;
+            do {
+                db.beginTransaction();
+                try {
+                    // The search index needs the text of compressed notes to remove them.
+                    boolean staged = NoteSearchIndex.stage(db, chunk, null);
+                    count = delete.executeUpdateDelete();
+                    if (staged) {
+                        NoteSearchIndex.unstage(db);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                purged += count;
+                if (count == CHUNK_SIZE) {
+                    SystemClock.sleep(CHUNK_PAUSE_MILLIS);
+                }
+            } while (count == CHUNK_SIZE);
+        } finally {
+            delete.close();
+        }
+
+        if (purged > 0) {
+            DatabaseMaintenance.reclaim(db, DatabaseMaintenance.MAX_PAGES_PER_RUN);
+        }
+        return purged;
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+/**
+ * Stores the revision history of notes in the {@link NotePad.Revisions#TABLE_NAME} table. The
+ * current text of each note stays in the notes table, and is the only full copy of it: reading a
+ * note never needs its revisions, and a revision never repeats the text. Instead each revision
+ * stores a delta back to the revision before it: the span of its text that the change replaced,
+ * and the text that was there before. Typing into a large note changes a few characters at a
+ * time, so recording a revision writes a few bytes next to the note however long the note is.
+ *
+ * The newest revision of a note is its current text. To rebuild the text of an older revision,
+ * the deltas of the revisions after it are applied to the current text, newest first. The oldest
+ * revision has no revision before it, and stores no delta. Once a note has
+ * {@link #COMPACTION_SLACK} revisions more than {@link #MAX_REVISIONS}, the oldest are deleted
+ * down to MAX_REVISIONS, which rewrites nothing, since no revision depends on an older one.
+ *
+ * Since the deltas lead back from the current text, every change to the text of a note has to be
+ * recorded. A change from or to a note without text restarts the history instead; see
+ * {@link #restart(SQLiteDatabase, long, long)}. The current text and the deltas are read a slice
+ * at a time, so that neither has to fit in a cursor window. The methods that write must be called
+ * inside a transaction, so that a revision is only recorded if the change to the note commits.
+ */
+final class NoteRevisions {
+
+    /**
+     * The column that holds the delta back to the previous revision, or null for the oldest
+     * revision of a note
+     */
+    static final String COLUMN_NAME_DATA = "data";
+
+    /**
+     * The index that finds the revisions of a note in order
+     */
+    static final String NOTE_INDEX_NAME = "revisions_note_index";
+
+    /**
+     * The number of revisions kept for each note by compaction
+     */
+    static final int MAX_REVISIONS = 100;
+
+    /**
+     * The number of revisions a note may have over {@link #MAX_REVISIONS} before the oldest are
+     * deleted, so that compaction runs once every so many revisions rather than on every one
+     */
+    static final int COMPACTION_SLACK = 20;
+
+    /**
+     * The number of characters of a delta read at a time
+     */
+    static final int SLICE_LENGTH = NoteCodec.SLICE_LENGTH;
+
+    // Reads one slice of a revision's delta. The arguments are the 1-based offset of the slice
+    // and the revision's ID.
+    private static final String SLICE_SQL = "SELECT substr(" + COLUMN_NAME_DATA + ", ?, "
+            + SLICE_LENGTH + ") FROM " + NotePad.Revisions.TABLE_NAME + " WHERE "
+            + NotePad.Revisions._ID + " = ?";
+
+    // This class cannot be instantiated
+    private NoteRevisions() {
+    }
+
+    /**
+     * Creates the revisions table, its index, and the trigger that deletes the revisions of a
+     * note along with the note.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NotePad.Revisions.TABLE_NAME + " ("
+                + NotePad.Revisions._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + NotePad.Revisions.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Revisions.COLUMN_NAME_SNAPSHOT + " INTEGER NOT NULL,"
+                + COLUMN_NAME_DATA + " TEXT"
+                + ");");
+
+        db.execSQL("CREATE INDEX " + NOTE_INDEX_NAME + " ON " + NotePad.Revisions.TABLE_NAME
+                + " (" + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ", " + NotePad.Revisions._ID
+                + ");");
+
+        db.execSQL("CREATE TRIGGER " + NotePad.Revisions.TABLE_NAME + "_delete AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID
+                + "; END;");
+    }
+
+    /**
+     * Records a change to the text of a note, as a delta from the new text back to the old. If
+     * the note has no revisions yet, the old text is recorded first, as the oldest revision, so
+     * that the change can be reverted.
+     *
+     * @param oldText The text of the note before the change.
+     * @param newText The text of the note after the change, which is now its current text.
+     * @param now The time of the change.
+     * @return The ID of the new revision.
+     */
+    static long record(SQLiteDatabase db, long noteId, String oldText, String newText, long now) {
+        long count = countRevisions(db, noteId);
+        if (count == 0) {
+            insert(db, noteId, now, null);
+            count++;
+        }
+        long revisionId = insert(db, noteId, now, encodeDelta(newText, oldText));
+        if (count + 1 >= MAX_REVISIONS + COMPACTION_SLACK) {
+            compact(db, noteId);
+        }
+        return revisionId;
+    }
+
+    /**
+     * Starts the history of a note again from its current text, for a change that can't be
+     * recorded as a delta, from or to a note without text. The note's revisions are deleted, and
+     * replaced by a single revision with no delta.
+     *
+     * @return The ID of the new revision.
+     */
+    static long restart(SQLiteDatabase db, long noteId, long now) {
+        delete(db, noteId);
+        return insert(db, noteId, now, null);
+    }
+
+    private static void delete(SQLiteDatabase db, long noteId) {
+        db.delete(NotePad.Revisions.TABLE_NAME, NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) });
+    }
+
+    /**
+     * Rebuilds the text of a note at one of its revisions, from the note's current text.
+     *
+     * @return The text, or null if the note has no such revision.
+     * @throws IllegalStateException if a delta is malformed or doesn't fit the text.
+     */
+    static String getText(SQLiteDatabase db, long noteId, long revisionId) {
+        String note = String.valueOf(noteId);
+        if (DatabaseUtils.queryNumEntries(db, NotePad.Revisions.TABLE_NAME,
+                NotePad.Revisions._ID + " = ? AND " + NotePad.Revisions.COLUMN_NAME_NOTE_ID
+                        + " = ?", new String[] { String.valueOf(revisionId), note }) == 0) {
+            return null;
+        }
+
+        // Selects the revisions after the revision, newest first. Only their IDs are read here;
+        // each delta is read a slice at a time.
+        Cursor c = db.query(NotePad.Revisions.TABLE_NAME,
+                new String[] { NotePad.Revisions._ID },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + NotePad.Revisions._ID + " > ?",
+                new String[] { note, String.valueOf(revisionId) },
+                null, null, NotePad.Revisions._ID + " DESC");
+        SQLiteStatement slice = db.compileStatement(SLICE_SQL);
+        try {
+            String text = NoteCodec.readNote(db, noteId);
+            while (c.moveToNext()) {
+                String delta = readDelta(slice, c.getLong(0));
+                if (delta == null) {
+                    throw new IllegalStateException("Missing revision delta");
+                }
+                text = applyDelta(text, delta);
+            }
+            return text;
+        } finally {
+            slice.close();
+            c.close();
+        }
+    }
+
+    /**
+     * Deletes all but the newest {@link #MAX_REVISIONS} revisions of a note. The delta of the
+     * oldest revision kept leads to a revision that is deleted, so it is dropped too.
+     */
+    static void compact(SQLiteDatabase db, long noteId) {
+        String note = String.valueOf(noteId);
+        long oldestKept;
+        try {
+            oldestKept = DatabaseUtils.longForQuery(db, "SELECT " + NotePad.Revisions._ID
+                    + " FROM " + NotePad.Revisions.TABLE_NAME + " WHERE "
+                    + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? ORDER BY "
+                    + NotePad.Revisions._ID + " DESC LIMIT " + (MAX_REVISIONS - 1) + ", 1",
+                    new String[] { note });
+        } catch (SQLiteDoneException e) {
+            // There are no more than MAX_REVISIONS revisions
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.putNull(COLUMN_NAME_DATA);
+        db.update(NotePad.Revisions.TABLE_NAME, values,
+                NotePad.Revisions._ID + " = ?", new String[] { String.valueOf(oldestKept) });
+        db.delete(NotePad.Revisions.TABLE_NAME,
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ? AND "
+                        + NotePad.Revisions._ID + " < ?",
+                new String[] { note, String.valueOf(oldestKept) });
+    }
+
+    /**
+     * Converts the revisions recorded before database version 12, which stored the full text of
+     * every twentieth revision and a delta forward from the previous revision in between, to
+     * deltas back from the current text. The notes are converted one at a time, and the
+     * revisions of each oldest first, holding the text of only two revisions at once. If a
+     * note's current text differs from its newest revision, which happened when a change wasn't
+     * recorded, the current text is recorded as a new revision. A history that can't be rebuilt,
+     * or that belongs to a note without text, is deleted.
+     */
+    static void convertForwardHistories(SQLiteDatabase db) {
+        SQLiteStatement nextNote = db.compileStatement("SELECT min("
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + ") FROM " + NotePad.Revisions.TABLE_NAME
+                + " WHERE " + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " > ?");
+        SQLiteStatement slice = db.compileStatement(SLICE_SQL);
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Revisions.TABLE_NAME
+                + " SET " + NotePad.Revisions.COLUMN_NAME_SNAPSHOT + " = 0, "
+                + COLUMN_NAME_DATA + " = ? WHERE " + NotePad.Revisions._ID + " = ?");
+        long now = System.currentTimeMillis();
+        try {
+            long noteId = Long.MIN_VALUE;
+            while (true) {
+                nextNote.bindLong(1, noteId);
+                String next = nextNote.simpleQueryForString();
+                if (next == null) {
+                    return;
+                }
+                noteId = Long.parseLong(next);
+                try {
+                    convertForwardHistory(db, noteId, slice, update, now);
+                } catch (IllegalStateException e) {
+                    delete(db, noteId);
+                }
+            }
+        } finally {
+            nextNote.close();
+            slice.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Converts the revisions of one note for {@link #convertForwardHistories(SQLiteDatabase)}.
+     *
+     * @throws IllegalStateException if the text of a revision can't be rebuilt.
+     */
+    private static void convertForwardHistory(SQLiteDatabase db, long noteId,
+            SQLiteStatement slice, SQLiteStatement update, long now) {
+        // Reads the IDs first, since the revisions are rewritten as they are converted.
+        Cursor c = db.query(NotePad.Revisions.TABLE_NAME,
+                new String[] { NotePad.Revisions._ID, NotePad.Revisions.COLUMN_NAME_SNAPSHOT },
+                NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) },
+                null, null, NotePad.Revisions._ID);
+        long[] ids;
+        boolean[] snapshots;
+        try {
+            ids = new long[c.getCount()];
+            snapshots = new boolean[ids.length];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                snapshots[i] = c.getInt(1) != 0;
+            }
+        } finally {
+            c.close();
+        }
+
+        // Rebuilds the text of each revision from the one before it, and replaces its data with
+        // the delta back to the one before it.
+        String text = null;
+        for (int i = 0; i < ids.length; i++) {
+            String data = readDelta(slice, ids[i]);
+            String previous = text;
+            text = snapshots[i] ? data : applyDelta(previous, data);
+            if (text == null) {
+                throw new IllegalStateException("Revision without text");
+            }
+            if (i == 0) {
+                update.bindNull(1);
+            } else {
+                update.bindString(1, encodeDelta(text, previous));
+            }
+            update.bindLong(2, ids[i]);
+            update.execute();
+        }
+        recordCurrentText(db, noteId, text, now);
+    }
+
+    /**
+     * Records the current text of a note as a new revision if it differs from the text of its
+     * newest revision.
+     */
+    private static void recordCurrentText(SQLiteDatabase db, long noteId, String newestText,
+            long now) {
+        String text = NoteCodec.readNote(db, noteId);
+        if (text == null) {
+            // The note is gone, or has no text to rebuild revisions from.
+            delete(db, noteId);
+        } else if (!TextUtils.equals(text, newestText)) {
+            insert(db, noteId, now, encodeDelta(text, newestText));
+        }
+    }
+
+    /**
+     * Encodes the change from one text to another as "start,end,replacement": the characters of
+     * oldText before start and after end are kept, and the characters between them are replaced.
+     * Only the span between the first and last changed characters is stored, widened to whole
+     * code points, so that a delta never holds half of a surrogate pair.
+     */
+    static String encodeDelta(String oldText, String newText) {
+        int oldLength = oldText.length();
+        int newLength = newText.length();
+
+        int prefix = 0;
+        int maxPrefix = Math.min(oldLength, newLength);
+        while (prefix < maxPrefix && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(oldText.charAt(prefix - 1))) {
+            // The pairs differ in their low surrogates, so both halves are replaced.
+            prefix--;
+        }
+
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix
+                && oldText.charAt(oldLength - 1 - suffix)
+                        == newText.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(oldText.charAt(oldLength - suffix))) {
+            // The pairs differ in their high surrogates, so both halves are replaced.
+            suffix--;
+        }
+
+        return prefix + "," + (oldLength - suffix) + ","
+                + newText.substring(prefix, newLength - suffix);
+    }
+
+    /**
+     * Applies a delta made by {@link #encodeDelta(String, String)} to the text it was made from.
+     *
+     * @throws IllegalStateException if the delta is malformed or doesn't fit the text.
+     */
+    static String applyDelta(String text, String delta) {
+        int firstComma = delta.indexOf(',');
+        int secondComma = delta.indexOf(',', firstComma + 1);
+        if (text == null || firstComma < 0 || secondComma < 0) {
+            throw new IllegalStateException("Invalid revision delta");
+        }
+        try {
+            int start = Integer.parseInt(delta.substring(0, firstComma));
+            int end = Integer.parseInt(delta.substring(firstComma + 1, secondComma));
+            return text.substring(0, start) + delta.substring(secondComma + 1)
+                    + text.substring(end);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Invalid revision delta", e);
+        }
+    }
+
+    /**
+     * Reads the delta of a revision, one slice at a time.
+     *
+     * @return The delta, or null if the revision has none.
+     */
+    private static String readDelta(SQLiteStatement slice, long revisionId) {
+        slice.bindLong(2, revisionId);
+        StringBuilder delta = null;
+
+        // SQLite counts characters from 1. A slice shorter than asked for is the last one.
+        for (long offset = 1; ; offset += SLICE_LENGTH) {
+            slice.bindLong(1, offset);
+            String part = slice.simpleQueryForString();
+            if (part == null) {
+                return delta != null ? delta.toString() : null;
+            }
+            if (delta == null) {
+                if (part.length() < SLICE_LENGTH) {
+                    return part;
+                }
+                delta = new StringBuilder(2 * SLICE_LENGTH);
+            }
+            delta.append(part);
+            if (part.length() < SLICE_LENGTH) {
+                return delta.toString();
+            }
+        }
+    }
+
+    private static long insert(SQLiteDatabase db, long noteId, long now, String delta) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Revisions.COLUMN_NAME_NOTE_ID, noteId);
+        values.put(NotePad.Revisions.COLUMN_NAME_CREATE_DATE, now);
+        values.put(NotePad.Revisions.COLUMN_NAME_SNAPSHOT, 0);
+        values.put(COLUMN_NAME_DATA, delta);
+        return db.insertOrThrow(NotePad.Revisions.TABLE_NAME, null, values);
+    }
+
+    private static long countRevisions(SQLiteDatabase db, long noteId) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                + NotePad.Revisions.TABLE_NAME + " WHERE "
+                + NotePad.Revisions.COLUMN_NAME_NOTE_ID + " = ?",
+                new String[] { String.valueOf(noteId) });
+    }
+}
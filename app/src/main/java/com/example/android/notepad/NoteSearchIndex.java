@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Keeps the full-text search index, {@link NotePadProvider#FTS_TABLE_NAME}, as an external
+ * content FTS4 table: the index holds only the tokens of each note, and reads the text itself
+ * from the notes table when it needs it, so the text of a note is stored once rather than twice.
+ * External content tables need SQLite 3.7.9, which Android has from Jelly Bean on. Earlier
+ * versions keep an index with its own copy of the text, made by
+ * {@link NotePadProvider.DatabaseHelper#createSearchIndex(SQLiteDatabase)}, and a database keeps
+ * the kind of index it was created or upgraded with.
+ *
+ * FTS4 removes a note's tokens by reading the text it indexed back from the content, so the
+ * content must show the text that was indexed whenever a note is deleted or its indexed columns
+ * change. The triggers do both before the row changes, and index the new values after it. The
+ * content is the view {@link #CONTENT_VIEW_NAME} over the notes table, which shows the text of a
+ * note stored as text. SQLite can't decompress the text of a compressed note, so before a write
+ * that changes one, the provider stages its text in {@link #STAGED_TABLE_NAME}, where the view
+ * and the triggers find it, and clears it again in the same transaction; see
+ * {@link #stage(SQLiteDatabase, String, String[])}. The search results of a compressed note
+ * can't show where in the text it matched, since the index can't read the text back then.
+ *
+ * The methods that write must be called inside a transaction.
+ */
+final class NoteSearchIndex {
+    // Used for debugging and logging
+    private static final String TAG = "NoteSearchIndex";
+
+    /**
+     * The view the index reads the text of the notes from. It isn't named "_content", the name
+     * of the table in which an index with its own copy of the text keeps it.
+     */
+    static final String CONTENT_VIEW_NAME = NotePadProvider.FTS_TABLE_NAME + "_source";
+
+    /**
+     * The table that holds the text of compressed notes while their index entries are changed.
+     * It is empty outside of those transactions.
+     */
+    static final String STAGED_TABLE_NAME = NotePadProvider.FTS_TABLE_NAME + "_staged";
+
+    // The ID of the next compressed note after the one bound, for indexing every compressed note
+    private static final String NEXT_COMPRESSED_SQL = "SELECT min(" + NotePad.Notes._ID
+            + ") FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NoteCodec.COLUMN_NAME_DATA
+            + " IS NOT NULL AND " + NotePad.Notes._ID + " > ?";
+
+    // This class cannot be instantiated
+    private NoteSearchIndex() {
+    }
+
+    /**
+     * Tests whether the SQLite of this version of Android supports external content tables.
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Creates the index, its content view and staging table, and the triggers that keep the
+     * index in sync with the notes table. The index starts empty; see
+     * {@link #indexNotes(SQLiteDatabase)}.
+     */
+    static void create(SQLiteDatabase db) {
+        String fts = NotePadProvider.FTS_TABLE_NAME;
+        String id = NotePad.Notes._ID;
+        String title = NotePad.Notes.COLUMN_NAME_TITLE;
+        String note = NotePad.Notes.COLUMN_NAME_NOTE;
+
+        db.execSQL("CREATE TABLE " + STAGED_TABLE_NAME + " ("
+                + "docid INTEGER PRIMARY KEY,"
+                + note + " TEXT"
+                + ");");
+
+        // FTS4 reads the content by rowid, which a view doesn't have, so the view names its ID
+        // column rowid.
+        db.execSQL("CREATE VIEW " + CONTENT_VIEW_NAME + " AS SELECT "
+                + NotePad.Notes.TABLE_NAME + "." + id + " AS rowid, "
+                + NotePad.Notes.TABLE_NAME + "." + title + " AS " + title + ", "
+                + "coalesce(" + NotePad.Notes.TABLE_NAME + "." + note + ", "
+                + STAGED_TABLE_NAME + "." + note + ") AS " + note
+                + " FROM " + NotePad.Notes.TABLE_NAME + " LEFT JOIN " + STAGED_TABLE_NAME
+                + " ON " + STAGED_TABLE_NAME + ".docid = " + NotePad.Notes.TABLE_NAME + "." + id);
+
+        db.execSQL("CREATE VIRTUAL TABLE " + fts + " USING fts4("
+                + "content=\"" + CONTENT_VIEW_NAME + "\", "
+                + title + ", "
+                + note
+                + ");");
+
+        // A compressed note is indexed without its text, which the provider indexes itself.
+        db.execSQL("CREATE TRIGGER " + fts + "_insert AFTER INSERT ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN "
+                + "INSERT INTO " + fts + " (docid, " + title + ", " + note + ") VALUES (new."
+                + id + ", new." + title + ", new." + note + "); END;");
+
+        db.execSQL("CREATE TRIGGER " + fts + "_delete BEFORE DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN "
+                + "DELETE FROM " + fts + " WHERE docid = old." + id + "; END;");
+
+        // Only fires when an indexed column is written, so date-only updates skip the index. A
+        // compressed note is indexed again with its staged text, which is still its text unless
+        // the update changes it, in which case the provider indexes the new text.
+        String indexed = " UPDATE OF " + id + ", " + title + ", " + note + " ON "
+                + NotePad.Notes.TABLE_NAME;
+        db.execSQL("CREATE TRIGGER " + fts + "_unindex BEFORE" + indexed + " BEGIN "
+                + "DELETE FROM " + fts + " WHERE docid = old." + id + "; END;");
+        db.execSQL("CREATE TRIGGER " + fts + "_update AFTER" + indexed + " BEGIN "
+                + "INSERT INTO " + fts + " (docid, " + title + ", " + note + ") VALUES (new."
+                + id + ", new." + title + ", coalesce(new." + note + ", (SELECT " + note
+                + " FROM " + STAGED_TABLE_NAME + " WHERE docid = old." + id + "))); END;");
+    }
+
+    /**
+     * Drops the index, its content view and staging table, and its triggers, whichever kind of
+     * index the database has.
+     */
+    static void drop(SQLiteDatabase db) {
+        String fts = NotePadProvider.FTS_TABLE_NAME;
+        db.execSQL("DROP TRIGGER IF EXISTS " + fts + "_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS " + fts + "_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS " + fts + "_unindex");
+        db.execSQL("DROP TRIGGER IF EXISTS " + fts + "_update");
+        db.execSQL("DROP TABLE IF EXISTS " + fts);
+        db.execSQL("DROP VIEW IF EXISTS " + CONTENT_VIEW_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + STAGED_TABLE_NAME);
+    }
+
+    /**
+     * Indexes every note, for an index that has just been created. The notes stored as text are
+     * indexed by a single statement, and the compressed ones one at a time.
+     */
+    static void indexNotes(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + NotePadProvider.FTS_TABLE_NAME + " (docid, "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME);
+
+        SQLiteStatement next = db.compileStatement(NEXT_COMPRESSED_SQL);
+        try {
+            long noteId = Long.MIN_VALUE;
+            while (true) {
+                next.bindLong(1, noteId);
+                String nextId = next.simpleQueryForString();
+                if (nextId == null) {
+                    break;
+                }
+                noteId = Long.parseLong(nextId);
+                String text = readCompressedText(db, noteId);
+                if (text != null) {
+                    indexCompressedText(db, noteId, text);
+                }
+            }
+        } finally {
+            next.close();
+        }
+    }
+
+    /**
+     * Tests whether the database's index is an external content index made by
+     * {@link #create(SQLiteDatabase)}, which needs the text of compressed notes staged.
+     */
+    static boolean hasExternalContent(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE type = "
+                + "'table' AND name = ?", new String[] { STAGED_TABLE_NAME }) > 0;
+    }
+
+    /**
+     * Stages the text of the compressed notes a where clause selects, before a write that
+     * deletes them or writes their indexed columns. Notes stored as text need nothing staged.
+     * If any text was staged, call {@link #unstage(SQLiteDatabase)} after the write, in the same
+     * transaction.
+     *
+     * @param where The where clause on the notes table, or null for every note.
+     * @return True if any text was staged.
+     */
+    static boolean stage(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                NoteCodec.COLUMN_NAME_DATA + " IS NOT NULL"
+                        + (where != null ? " AND (" + where + ")" : ""),
+                whereArgs, null, null, null);
+        try {
+            if (c.getCount() == 0 || !hasExternalContent(db)) {
+                return false;
+            }
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+                    + STAGED_TABLE_NAME + " (docid, " + NotePad.Notes.COLUMN_NAME_NOTE
+                    + ") VALUES (?, ?)");
+            try {
+                while (c.moveToNext()) {
+                    long noteId = c.getLong(0);
+                    String text = readCompressedText(db, noteId);
+                    if (text != null) {
+                        insert.bindLong(1, noteId);
+                        insert.bindString(2, text);
+                        insert.executeInsert();
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Stages the text of a single note, if it is compressed; see
+     * {@link #stage(SQLiteDatabase, String, String[])}.
+     */
+    static boolean stage(SQLiteDatabase db, long noteId) {
+        return stage(db, NotePad.Notes._ID + " = ?", new String[] { String.valueOf(noteId) });
+    }
+
+    /**
+     * Clears the text staged by {@link #stage(SQLiteDatabase, String, String[])}.
+     */
+    static void unstage(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + STAGED_TABLE_NAME);
+    }
+
+    /**
+     * Indexes the text of a compressed note for search, replacing the note's index entry. The
+     * search triggers can't read the text of a compressed note, so they index the note without
+     * it, or with its staged text.
+     */
+    static void indexCompressedText(SQLiteDatabase db, long noteId, String text) {
+        String[] idArg = new String[] { String.valueOf(noteId) };
+        db.execSQL("DELETE FROM " + NotePadProvider.FTS_TABLE_NAME + " WHERE docid = ?", idArg);
+        db.execSQL("INSERT INTO " + NotePadProvider.FTS_TABLE_NAME + " (docid, "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + ") SELECT " + NotePad.Notes._ID + ", " + NotePad.Notes.COLUMN_NAME_TITLE
+                + ", ? FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID
+                + " = ?", new Object[] { text, noteId });
+    }
+
+    /**
+     * Reads the text of a compressed note, or returns null if its data is corrupt, in which case
+     * the text is left out of the index.
+     */
+    private static String readCompressedText(SQLiteDatabase db, long noteId) {
+        try {
+            return NoteCodec.readNote(db, noteId);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Can't index the text of note " + noteId, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Caches the compiled statements that update and delete a single note, by the ID in a note
+ * URI. The ID is bound as an argument rather than written into the SQL, so every note shares the
+ * statements of the same shape: one for deletes, and one for each set of updated columns. A
+ * caller's own where clause becomes part of the shape, since it is part of the SQL.
+ *
+ * Neither statement touches a note that is already deleted, and a delete only marks the note
+ * deleted, for {@link NotePurger} to remove. An update also moves the note to its next
+ * version.
+ *
+ * A statement is taken out of the cache while it runs, so that threads never share one, and no
+ * lock is held while SQLite waits for the database. If two threads need the same statement at
+ * once, the second compiles its own, and only one of them is kept.
+ *
+ * The least recently used statements are closed once there are more than
+ * {@link #MAX_STATEMENTS}.
+ */
+final class NoteStatements {
+
+    /**
+     * The largest number of statements kept
+     */
+    static final int MAX_STATEMENTS = 16;
+
+    // The statements not in use, by their SQL, least recently used first. Guarded by this.
+    private final LinkedHashMap<String, SQLiteStatement> mStatements =
+            new LinkedHashMap<String, SQLiteStatement>(MAX_STATEMENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > MAX_STATEMENTS) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    // The database the cached statements were compiled for. Guarded by this.
+    private SQLiteDatabase mDatabase;
+
+    // The number of statements compiled, for tests. Guarded by this.
+    private int mCompileCount;
+
+    /**
+     * Updates a single note, and moves it to its next version.
+     *
+     * @param values The new values of the note's columns. If it is empty, the update only moves
+     * the note to its next version.
+     * @param where An additional where clause the note must match, or null.
+     * @param whereArgs The values of the where clause's arguments, or null.
+     * @return The number of rows updated, 0 or 1.
+     */
+    int update(SQLiteDatabase db, long noteId, ContentValues values, String where,
+            String[] whereArgs) {
+        // Sorts the columns, so that the same columns always make the same SQL.
+        ArrayList<String> columns = new ArrayList<String>(new TreeSet<String>(values.keySet()));
+        StringBuilder sql = updateSql(columns).append(noteWhere(where));
+
+        SQLiteStatement statement = acquire(db, sql.toString());
+        try {
+            for (int i = 0; i < columns.size(); i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(columns.get(i)));
+            }
+            bindNoteWhere(statement, columns.size() + 1, noteId, whereArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(db, sql.toString(), statement);
+        }
+    }
+
+    /**
+     * Starts the SQL of an update of the notes table, up to its where clause. The update sets
+     * each of the columns to an argument, in order, and adds 1 to the version of each note it
+     * updates.
+     */
+    static StringBuilder updateSql(List<String> columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(NotePad.Notes.TABLE_NAME)
+                .append(" SET ");
+        for (String column : columns) {
+            sql.append(column).append(" = ?, ");
+        }
+        return sql.append(NotePad.Notes.COLUMN_NAME_VERSION).append(" = ")
+                .append(NotePad.Notes.COLUMN_NAME_VERSION).append(" + 1");
+    }
+
+    /**
+     * Marks a single note deleted.
+     *
+     * @param where An additional where clause the note must match, or null.
+     * @param whereArgs The values of the where clause's arguments, or null.
+     * @return The number of rows deleted, 0 or 1.
+     */
+    int delete(SQLiteDatabase db, long noteId, String where, String[] whereArgs) {
+        String sql = "UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePadProvider.COLUMN_NAME_DELETED + " = 1" + noteWhere(where);
+        SQLiteStatement statement = acquire(db, sql);
+        try {
+            bindNoteWhere(statement, 1, noteId, whereArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Returns the where clause that selects a single note by its ID, unless it is deleted, and
+     * also matches an additional where clause, if there is one. The ID is the first argument.
+     */
+    static String noteWhere(String where) {
+        String noteWhere = " WHERE " + NotePad.Notes._ID + " = ? AND "
+                + NotePadProvider.NOT_DELETED;
+        if (where != null) {
+            noteWhere += " AND (" + where + ")";
+        }
+        return noteWhere;
+    }
+
+    /**
+     * Returns the arguments of a where clause made by {@link #noteWhere(String)}.
+     */
+    static String[] noteWhereArgs(long noteId, String[] whereArgs) {
+        int extra = whereArgs != null ? whereArgs.length : 0;
+        String[] args = new String[1 + extra];
+        args[0] = String.valueOf(noteId);
+        if (extra > 0) {
+            System.arraycopy(whereArgs, 0, args, 1, extra);
+        }
+        return args;
+    }
+
+    /**
+     * Returns the number of statements compiled so far, which stops growing once every shape in
+     * use is cached.
+     */
+    synchronized int getCompileCount() {
+        return mCompileCount;
+    }
+
+    /**
+     * Closes all of the cached statements.
+     */
+    synchronized void close() {
+        for (Iterator<SQLiteStatement> i = mStatements.values().iterator(); i.hasNext();) {
+            i.next().close();
+            i.remove();
+        }
+        mDatabase = null;
+    }
+
+    private static void bindNoteWhere(SQLiteStatement statement, int index, long noteId,
+            String[] whereArgs) {
+        statement.bindLong(index, noteId);
+        if (whereArgs != null) {
+            for (int i = 0; i < whereArgs.length; i++) {
+                if (whereArgs[i] == null) {
+                    statement.bindNull(index + 1 + i);
+                } else {
+                    statement.bindString(index + 1 + i, whereArgs[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a statement out of the cache, or compiles it if it isn't there.
+     */
+    private SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        synchronized (this) {
+            if (db != mDatabase) {
+                // The database was closed and opened again, so the statements are no use.
+                close();
+                mDatabase = db;
+            }
+            SQLiteStatement statement = mStatements.remove(sql);
+            if (statement != null) {
+                return statement;
+            }
+            mCompileCount++;
+        }
+        return db.compileStatement(sql);
+    }
+
+    /**
+     * Puts a statement back in the cache after it has run.
+     */
+    private void release(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (this) {
+            if (db == mDatabase && !mStatements.containsKey(sql)) {
+                mStatements.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+}
@@ -19,13 +19,17 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.app.ListActivity;
+import android.app.LoaderManager;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.CursorLoader;
 import android.content.Intent;
+import android.content.Loader;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
@@ -35,22 +39,28 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 
+import java.util.ArrayList;
+
 
 /**
  * Displays a list of notes. Will display notes from the {@link Uri}
  * provided in the incoming Intent if there is one, otherwise it defaults to displaying the
  * contents of the {@link NotePadProvider}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
+ * The notes are queried on a background thread by a {@link CursorLoader} for each page.
+ *
+ * NOTE: Notice that the delete operation in this Activity is taking place on the UI thread.
  * This is not a good practice. It is only done here to make the code more readable. A real
  * application should use the {@link android.content.AsyncQueryHandler} or
  * {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
  */
-public class NotesList extends ListActivity {
+public class NotesList extends ListActivity
+        implements AbsListView.OnScrollListener, LoaderManager.LoaderCallbacks<Cursor> {
 
     // For logging and debugging
     private static final String TAG = "NotesList";
@@ -61,11 +71,40 @@ public class NotesList extends ListActivity {
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
     };
 
+    /** The index of the ID column */
+    private static final int COLUMN_INDEX_ID = 0;
+
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    /** The index of the modification date column */
+    private static final int COLUMN_INDEX_MODIFIED = 2;
+
+    /** The number of notes fetched from the provider at a time */
+    private static final int PAGE_SIZE = 50;
+
+    // A label for the saved state of the activity
+    private static final String PAGE_URIS = "pageUris";
+
+    /**
+     * The URI of each page of notes requested so far, in list order. Page i is loaded by the
+     * loader with ID i. The URIs are saved with the instance state, so a recreated Activity
+     * reconnects to the same loaders instead of querying again.
+     */
+    private ArrayList<Uri> mPageUris = new ArrayList<Uri>();
+
+    /**
+     * The loaded cursor of each page, or null for a page that is still loading. The list shows
+     * all of them through a MergeCursor, which skips the null entries.
+     */
+    private final ArrayList<Cursor> mPages = new ArrayList<Cursor>();
+
+    /** The adapter that backs the ListView */
+    private SimpleCursorAdapter mAdapter;
+
     /**
      * onCreate is called when Android starts this Activity from scratch.
      */
@@ -96,19 +135,6 @@ public class NotesList extends ListActivity {
          */
         getListView().setOnCreateContextMenuListener(this);
 
-        /* Performs a managed query. The Activity handles closing and requerying the cursor
-         * when needed.
-         *
-         * Please see the introductory note about performing provider operations on the UI thread.
-         */
-        Cursor cursor = managedQuery(
-            getIntent().getData(),            // Use the default content URI for the provider.
-            PROJECTION,                       // Return the note ID and title for each note.
-            null,                             // No where clause, return all records.
-            null,                             // No where clause, therefore no where column values.
-            NotePad.Notes.DEFAULT_SORT_ORDER  // Use the default sort order.
-        );
-
         /*
          * The following two arrays create a "map" between columns in the cursor and view IDs
          * for items in the ListView. Each element in the dataColumns array represents
@@ -124,18 +150,157 @@ public class NotesList extends ListActivity {
         // noteslist_item.xml
         int[] viewIDs = { android.R.id.text1 };
 
-        // Creates the backing adapter for the ListView.
-        SimpleCursorAdapter adapter
+        // Creates the backing adapter for the ListView. It has no cursor until the first page
+        // is loaded.
+        mAdapter
             = new SimpleCursorAdapter(
                       this,                             // The Context for the ListView
                       R.layout.noteslist_item,          // Points to the XML for a list item
-                      cursor,                           // The cursor to get items from
+                      null,                             // The cursor to get items from
                       dataColumns,
                       viewIDs
               );
 
         // Sets the ListView's adapter to be the cursor adapter that was just created.
-        setListAdapter(adapter);
+        setListAdapter(mAdapter);
+
+        // Starts loading the first page, or reconnects to the pages that were loaded before the
+        // Activity was recreated. Further pages are loaded as the user scrolls towards the end
+        // of the list.
+        if (savedInstanceState != null) {
+            ArrayList<Uri> pageUris = savedInstanceState.getParcelableArrayList(PAGE_URIS);
+            if (pageUris != null) {
+                mPageUris = pageUris;
+            }
+        }
+        if (mPageUris.isEmpty()) {
+            mPageUris.add(buildPageUri(null));
+        }
+        for (int page = 0; page < mPageUris.size(); page++) {
+            mPages.add(null);
+            getLoaderManager().initLoader(page, null, this);
+        }
+        getListView().setOnScrollListener(this);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelableArrayList(PAGE_URIS, mPageUris);
+    }
+
+    /**
+     * Builds the URI of a page of notes. Each page after the first starts after the last note of
+     * the previous page, so the provider seeks straight to it in its modification date index
+     * instead of sorting the whole table.
+     *
+     * @param previousPage The previous page, positioned on its last note, or null for the first
+     * page.
+     */
+    private Uri buildPageUri(Cursor previousPage) {
+        Uri.Builder builder = getIntent().getData().buildUpon()
+                .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER,
+                        Integer.toString(PAGE_SIZE));
+        if (previousPage != null) {
+            builder.appendQueryParameter(NotePad.Notes.PAGE_AFTER_MODIFIED_PARAMETER,
+                    Long.toString(previousPage.getLong(COLUMN_INDEX_MODIFIED)));
+            builder.appendQueryParameter(NotePad.Notes.PAGE_AFTER_ID_PARAMETER,
+                    Long.toString(previousPage.getLong(COLUMN_INDEX_ID)));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Requests the page after the last one, if the last page has loaded and is full. A page
+     * with fewer than PAGE_SIZE notes is the end of the list.
+     */
+    private void loadNextPage() {
+        Cursor lastPage = mPages.get(mPages.size() - 1);
+        if (lastPage == null || lastPage.getCount() < PAGE_SIZE || !lastPage.moveToLast()) {
+            return;
+        }
+        mPageUris.add(buildPageUri(lastPage));
+        mPages.add(null);
+        getLoaderManager().initLoader(mPages.size() - 1, null, this);
+    }
+
+    /**
+     * Called by the LoaderManager to create the loader for a page. The CursorLoader runs the
+     * query on a background thread, and runs it again only when the provider notifies a change.
+     */
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(
+            this,
+            mPageUris.get(id),                // Use the URI of the page.
+            PROJECTION,                       // Return the note ID, title and date for each note.
+            null,                             // No where clause, return all records.
+            null,                             // No where clause, therefore no where column values.
+            NotePad.Notes.PAGED_SORT_ORDER    // Use the sort order that pages are defined by.
+        );
+    }
+
+    /**
+     * Called by the LoaderManager when a page has loaded, either for the first time or again
+     * after a change. If the change moved the last note of this page, the pages after it no
+     * longer start in the right place, so they are dropped and the next one is requested again.
+     */
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        int page = loader.getId();
+        mPages.set(page, data);
+
+        if (page + 1 < mPageUris.size()) {
+            Uri nextUri = (data.getCount() == PAGE_SIZE && data.moveToLast())
+                    ? buildPageUri(data) : null;
+            if (!mPageUris.get(page + 1).equals(nextUri)) {
+                for (int later = mPageUris.size() - 1; later > page; later--) {
+                    getLoaderManager().destroyLoader(later);
+                    mPageUris.remove(later);
+                    mPages.remove(later);
+                }
+                loadNextPage();
+            }
+        }
+
+        showPages();
+    }
+
+    /**
+     * Called by the LoaderManager when a page's cursor is about to be closed.
+     */
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        if (loader.getId() < mPages.size()) {
+            mPages.set(loader.getId(), null);
+        }
+        showPages();
+    }
+
+    /**
+     * Shows all of the pages loaded so far. swapCursor() is used instead of changeCursor(),
+     * because closing the previous MergeCursor would also close the pages in it, which belong to
+     * their loaders.
+     */
+    private void showPages() {
+        mAdapter.swapCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+    }
+
+    /**
+     * Called while the list scrolls. Loads another page once the user is within half a page of
+     * the end of the notes loaded so far.
+     */
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (totalItemCount > 0
+                && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+            loadNextPage();
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
     }
 
     /**
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+/**
+ * Coalesces the change notifications sent by NotePadProvider. Changes are collected for
+ * {@link #WINDOW_MILLIS} after the first one, and then sent together, each URI once. A burst of
+ * writes to the same note wakes its observers once, instead of once per write.
+ *
+ * Changes are reported for single notes, so that an observer of one note isn't woken by edits to
+ * another. Observers of the whole notes URI are still woken, since the framework notifies the
+ * observers of a URI's ancestors, once for every note URI sent: a list that requeries on every
+ * change would requery once per note. So if more than {@link #MAX_URIS} notes change in one
+ * window, they are sent as a single change to the whole notes URI instead, which wakes every
+ * observer once.
+ *
+ * Each flush also notifies the live folder URI, which doesn't share a path with the notes.
+ *
+ * The methods can be called on any thread. Notifications are sent on the main thread.
+ */
+final class NotificationBatcher {
+
+    /**
+     * How long changes are collected before they are sent, in milliseconds
+     */
+    static final long WINDOW_MILLIS = 100;
+
+    /**
+     * The largest number of note URIs sent by one flush. It is kept small, since each of them
+     * wakes the observers of the whole notes URI again.
+     */
+    static final int MAX_URIS = 4;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    // The changes waiting to be sent. Guarded by mLock.
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    // True if the pending changes have been merged into a change to all notes. Guarded by mLock.
+    private boolean mAllNotes;
+
+    // True if a flush is scheduled. Guarded by mLock.
+    private boolean mScheduled;
+
+    private final Object mLock = new Object();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    NotificationBatcher(ContentResolver resolver) {
+        this(resolver, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Sends the notifications through the given handler. Used by tests.
+     */
+    NotificationBatcher(ContentResolver resolver, Handler handler) {
+        mResolver = resolver;
+        mHandler = handler;
+    }
+
+    /**
+     * Reports a change to the data at a URI.
+     */
+    void notifyChange(Uri uri) {
+        notifyChanges(Collections.singleton(uri));
+    }
+
+    /**
+     * Reports changes to the data at a number of URIs, such as all of the URIs changed by a
+     * transaction.
+     */
+    void notifyChanges(Collection<Uri> uris) {
+        synchronized (mLock) {
+            for (Uri uri : uris) {
+                addLocked(uri);
+            }
+            if (!mScheduled && (mAllNotes || !mPending.isEmpty())) {
+                mScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, WINDOW_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Sends the pending changes now.
+     */
+    void flush() {
+        ArrayList<Uri> uris;
+        boolean allNotes;
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mScheduled = false;
+            uris = new ArrayList<Uri>(mPending);
+            allNotes = mAllNotes;
+            mPending.clear();
+            mAllNotes = false;
+        }
+
+        if (allNotes) {
+            mResolver.notifyChange(NotePad.Notes.CONTENT_URI, null);
+        } else if (uris.isEmpty()) {
+            return;
+        } else {
+            for (Uri uri : uris) {
+                mResolver.notifyChange(uri, null);
+            }
+        }
+        mResolver.notifyChange(NotePad.Notes.LIVE_FOLDER_URI, null);
+    }
+
+    private void addLocked(Uri uri) {
+        if (mAllNotes) {
+            // Already covered by the change to all notes
+            return;
+        }
+        if (NotePad.Notes.CONTENT_URI.equals(uri) || mPending.size() >= MAX_URIS) {
+            mAllNotes = true;
+            mPending.clear();
+            return;
+        }
+        mPending.add(uri);
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records where NotePadProvider spends its time, so that it can be read from a running device
+ * through {@link NotePad.Metrics#METHOD_GET_METRICS}, without a profiler.
+ *
+ * Each operation is recorded under its kind and the type of URI it was called with, for example
+ * "update/note_id". An operation keeps a count, the rows it touched, and a histogram of its
+ * latency. The histogram has a bucket for each power of two microseconds, so it costs the same
+ * to record into no matter how many operations it holds, and percentiles are read from it to
+ * within a factor of two.
+ *
+ * A query only prepares its statement. The rows are read later, when the cursor fills its window,
+ * so the query cursors the database creates are {@link MeteredCursor}s, which record each window
+ * fill as an operation of its own, "fill/...", with the rows it read.
+ *
+ * Caches report each lookup as a hit or a miss, under the cache's name, so that their hit rates
+ * can be read with the rest of the metrics.
+ *
+ * The methods can be called on any thread.
+ */
+final class ProviderMetrics {
+
+    /*
+     * Kinds of operation
+     */
+
+    static final String QUERY = "query";
+    static final String FILL = "fill";
+    static final String INSERT = "insert";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+    static final String STREAM = "stream";
+
+    /**
+     * The number of latency buckets. Bucket i counts the operations that took less than 2^i
+     * microseconds, and more than the bucket before it; the last bucket counts all slower ones.
+     */
+    static final int BUCKET_COUNT = 25;
+
+    /**
+     * The latency of one kind of operation on one type of URI.
+     */
+    private static final class Timer {
+        long count;
+        long rows;
+        long totalNanos;
+        long maxNanos;
+        final long[] buckets = new long[BUCKET_COUNT];
+
+        void record(long nanos, long rows) {
+            count++;
+            this.rows += rows;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+            buckets[bucketOf(nanos)]++;
+        }
+    }
+
+    // The timers, by operation and URI type. Guarded by this.
+    private final Map<String, Timer> mTimers = new HashMap<String, Timer>();
+
+    // The hits and misses of each cache, by its name. Guarded by this.
+    private final Map<String, long[]> mCaches = new HashMap<String, long[]>();
+
+    // Counters that aren't tied to an operation. Guarded by this.
+    private long mBytesStreamed;
+    private long mLockWaits;
+    private long mLockWaitNanos;
+    private long mLockWaitMaxNanos;
+
+    // When the metrics were last reset, from SystemClock.elapsedRealtime(). Guarded by this.
+    private long mStartMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * The cursor factory the provider's database uses, so that queries return MeteredCursors.
+     */
+    final SQLiteDatabase.CursorFactory cursorFactory = new SQLiteDatabase.CursorFactory() {
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+                SQLiteQuery query) {
+            return new MeteredCursor(driver, editTable, query, ProviderMetrics.this);
+        }
+    };
+
+    /**
+     * Records an operation.
+     *
+     * @param operation The kind of operation, one of the constants above.
+     * @param uriType The type of URI the operation was called with.
+     * @param startNanos When the operation started, from System.nanoTime().
+     * @param rows The number of rows the operation read or changed.
+     */
+    void record(String operation, String uriType, long startNanos, long rows) {
+        long nanos = System.nanoTime() - startNanos;
+        String key = operation + "/" + uriType;
+        synchronized (this) {
+            Timer timer = mTimers.get(key);
+            if (timer == null) {
+                timer = new Timer();
+                mTimers.put(key, timer);
+            }
+            timer.record(nanos, rows);
+        }
+    }
+
+    /**
+     * Records the number of bytes of a note written to a stream.
+     */
+    synchronized void recordBytesStreamed(long bytes) {
+        mBytesStreamed += bytes;
+    }
+
+    /**
+     * Records a lookup in a cache.
+     *
+     * @param cache The name of the cache.
+     * @param hit True if the cache held the value, false if it had to be loaded.
+     */
+    synchronized void recordCacheLookup(String cache, boolean hit) {
+        long[] lookups = mCaches.get(cache);
+        if (lookups == null) {
+            lookups = new long[2];
+            mCaches.put(cache, lookups);
+        }
+        lookups[hit ? 0 : 1]++;
+    }
+
+    /**
+     * Records how long the provider waited to begin a transaction, which is mostly the time it
+     * waited for another connection to release the database lock.
+     *
+     * @param startNanos When the wait started, from System.nanoTime().
+     */
+    void recordLockWait(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        synchronized (this) {
+            mLockWaits++;
+            mLockWaitNanos += nanos;
+            mLockWaitMaxNanos = Math.max(mLockWaitMaxNanos, nanos);
+        }
+    }
+
+    /**
+     * Clears all of the metrics.
+     */
+    synchronized void reset() {
+        mTimers.clear();
+        mCaches.clear();
+        mBytesStreamed = 0;
+        mLockWaits = 0;
+        mLockWaitNanos = 0;
+        mLockWaitMaxNanos = 0;
+        mStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Returns a copy of the metrics, in the format described by {@link NotePad.Metrics}.
+     */
+    synchronized Bundle snapshot() {
+        Bundle metrics = new Bundle();
+        metrics.putLong(NotePad.Metrics.KEY_ELAPSED_MILLIS,
+                SystemClock.elapsedRealtime() - mStartMillis);
+        metrics.putLong(NotePad.Metrics.KEY_BYTES_STREAMED, mBytesStreamed);
+        metrics.putLong(NotePad.Metrics.KEY_LOCK_WAITS, mLockWaits);
+        metrics.putLong(NotePad.Metrics.KEY_LOCK_WAIT_MICROS, mLockWaitNanos / 1000);
+        metrics.putLong(NotePad.Metrics.KEY_LOCK_WAIT_MAX_MICROS, mLockWaitMaxNanos / 1000);
+
+        long[] bounds = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bounds[i] = i < BUCKET_COUNT - 1 ? 1L << i : Long.MAX_VALUE;
+        }
+        metrics.putLongArray(NotePad.Metrics.KEY_BUCKET_BOUNDS_MICROS, bounds);
+
+        // Sorted, so that two snapshots list the operations in the same order.
+        Map<String, Timer> timers = new TreeMap<String, Timer>(mTimers);
+        Bundle operations = new Bundle();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer timer = entry.getValue();
+            Bundle operation = new Bundle();
+            operation.putLong(NotePad.Metrics.KEY_COUNT, timer.count);
+            operation.putLong(NotePad.Metrics.KEY_ROWS, timer.rows);
+            operation.putLong(NotePad.Metrics.KEY_TOTAL_MICROS, timer.totalNanos / 1000);
+            operation.putLong(NotePad.Metrics.KEY_MAX_MICROS, timer.maxNanos / 1000);
+            operation.putLong(NotePad.Metrics.KEY_P50_MICROS, percentile(timer, 50));
+            operation.putLong(NotePad.Metrics.KEY_P99_MICROS, percentile(timer, 99));
+            operation.putLongArray(NotePad.Metrics.KEY_BUCKETS, timer.buckets.clone());
+            operations.putBundle(entry.getKey(), operation);
+        }
+        metrics.putBundle(NotePad.Metrics.KEY_OPERATIONS, operations);
+
+        Bundle caches = new Bundle();
+        for (Map.Entry<String, long[]> entry : mCaches.entrySet()) {
+            long hits = entry.getValue()[0];
+            long misses = entry.getValue()[1];
+            Bundle cache = new Bundle();
+            cache.putLong(NotePad.Metrics.KEY_HITS, hits);
+            cache.putLong(NotePad.Metrics.KEY_MISSES, misses);
+            cache.putDouble(NotePad.Metrics.KEY_HIT_RATE,
+                    hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+            caches.putBundle(entry.getKey(), cache);
+        }
+        metrics.putBundle(NotePad.Metrics.KEY_CACHES, caches);
+        return metrics;
+    }
+
+    /**
+     * Returns the bucket a latency falls in.
+     */
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+
+        // The number of bits needed for the micros is the first power of two above them.
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Estimates a percentile of a timer's latency as the upper bound of the bucket it falls in,
+     * or the largest latency if that is lower.
+     */
+    private static long percentile(Timer timer, int percentile) {
+        if (timer.count == 0) {
+            return 0;
+        }
+        long rank = (timer.count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += timer.buckets[i];
+            if (seen >= rank) {
+                return Math.min(1L << i, timer.maxNanos / 1000);
+            }
+        }
+        return timer.maxNanos / 1000;
+    }
+
+    /**
+     * A database cursor that records each time it fills its window with rows. The provider sets
+     * the type of URI it was queried with, after the query, so that the fills are recorded with
+     * the query.
+     */
+    static final class MeteredCursor extends SQLiteCursor {
+
+        private final ProviderMetrics mMetrics;
+
+        // The type of URI the cursor was queried with
+        private volatile String mUriType = "other";
+
+        MeteredCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query,
+                ProviderMetrics metrics) {
+            super(driver, editTable, query);
+            mMetrics = metrics;
+        }
+
+        void setUriType(String uriType) {
+            mUriType = uriType;
+        }
+
+        /**
+         * Counts the rows, which fills the first window, the first time it is called.
+         */
+        @Override
+        public int getCount() {
+            if (getWindow() != null) {
+                return super.getCount();
+            }
+            long start = System.nanoTime();
+            int count = super.getCount();
+            recordFill(start);
+            return count;
+        }
+
+        /**
+         * Moves to a row, which fills the window again if the row isn't in it.
+         */
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            CursorWindow window = getWindow();
+            if (window != null && newPosition >= window.getStartPosition()
+                    && newPosition < window.getStartPosition() + window.getNumRows()) {
+                return super.onMove(oldPosition, newPosition);
+            }
+            long start = System.nanoTime();
+            boolean moved = super.onMove(oldPosition, newPosition);
+            recordFill(start);
+            return moved;
+        }
+
+        private void recordFill(long start) {
+            CursorWindow window = getWindow();
+            mMetrics.record(FILL, mUriType, start, window != null ? window.getNumRows() : 0);
+        }
+    }
+}
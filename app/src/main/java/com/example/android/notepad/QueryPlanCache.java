@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the SQL of the provider's queries by their shape: the URI pattern, the where clause the
+ * URI adds, the projection, the caller's selection, the sort order and the limit. The values
+ * that change from one query to the next, such as a note ID, a page position or search terms,
+ * are bound as arguments rather than written into the SQL, so that all queries of one shape
+ * share their SQL.
+ *
+ * A query whose SQL is cached skips the SQLiteQueryBuilder altogether. And since its SQL is the
+ * same string every time, SQLite also finds the statement already prepared in the connection's
+ * own statement cache, and only binds the arguments.
+ *
+ * The least recently used SQL is dropped once there are more than {@link #MAX_PLANS} shapes.
+ * Hits and misses are reported in the provider metrics under {@link #METRICS_NAME}.
+ *
+ * The methods can be called on any thread.
+ */
+final class QueryPlanCache {
+
+    /**
+     * The name the cache reports its hits and misses under in the provider metrics
+     */
+    static final String METRICS_NAME = "query_plans";
+
+    /**
+     * The largest number of query shapes whose SQL is kept
+     */
+    static final int MAX_PLANS = 32;
+
+    /**
+     * The shape of a query. Two queries with equal keys have the same SQL.
+     */
+    static final class Key {
+        private final int mMatch;
+        private final String mWhere;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String mOrderBy;
+        private final String mLimit;
+        private final int mHashCode;
+
+        /**
+         * @param match The URI pattern the query matched.
+         * @param where The where clause the URI adds, with its values as arguments.
+         * @param projection The columns the query returns, or null for the default ones.
+         * @param selection The caller's selection, or null.
+         * @param orderBy The sort order.
+         * @param limit The limit, or null for none.
+         */
+        Key(int match, String where, String[] projection, String selection, String orderBy,
+                String limit) {
+            mMatch = match;
+            mWhere = where;
+            // Copied, since the caller's array could change after the key is cached.
+            mProjection = projection != null ? projection.clone() : null;
+            mSelection = selection;
+            mOrderBy = orderBy;
+            mLimit = limit;
+            mHashCode = Arrays.hashCode(new Object[] {
+                    match, where, Arrays.hashCode(mProjection), selection, orderBy, limit });
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mMatch == other.mMatch
+                    && equal(mWhere, other.mWhere)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && equal(mSelection, other.mSelection)
+                    && equal(mOrderBy, other.mOrderBy)
+                    && equal(mLimit, other.mLimit);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final ProviderMetrics mMetrics;
+
+    // The SQL of each query shape, least recently used first. Guarded by this.
+    private final LinkedHashMap<Key, String> mPlans =
+            new LinkedHashMap<Key, String>(MAX_PLANS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                    return size() > MAX_PLANS;
+                }
+            };
+
+    /**
+     * @param metrics Where hits and misses are reported.
+     */
+    QueryPlanCache(ProviderMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Looks up the SQL of a query shape, and reports the lookup as a hit or a miss.
+     *
+     * @return The SQL, or null if it isn't cached.
+     */
+    String get(Key key) {
+        String sql;
+        synchronized (this) {
+            sql = mPlans.get(key);
+        }
+        mMetrics.recordCacheLookup(METRICS_NAME, sql != null);
+        return sql;
+    }
+
+    /**
+     * Caches the SQL of a query shape.
+     */
+    synchronized void put(Key key, String sql) {
+        mPlans.put(key, sql);
+    }
+
+    /**
+     * Returns the SQL of the query shape that was used last, or null if there is none. Only for
+     * tests.
+     */
+    synchronized String getLastUsedSqlForTest() {
+        String sql = null;
+        for (String plan : mPlans.values()) {
+            sql = plan;
+        }
+        return sql;
+    }
+
+    /**
+     * Returns the number of query shapes cached. Only for tests.
+     */
+    synchronized int size() {
+        return mPlans.size();
+    }
+}
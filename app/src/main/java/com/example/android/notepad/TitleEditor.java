@@ -17,23 +17,30 @@
 package com.example.android.notepad;
 
 import android.app.Activity;
+import android.app.LoaderManager;
 import android.content.ContentValues;
+import android.content.CursorLoader;
+import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.view.View;
 import android.widget.EditText;
+import android.widget.Toast;
 
 /**
  * This Activity allows the user to edit a note's title. It displays a floating window
  * containing an EditText.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
+ * The note is queried on a background thread by a {@link CursorLoader}.
+ *
+ * NOTE: Notice that the update operation in this Activity is taking place on the UI thread.
  * This is not a good practice. It is only done here to make the code more readable. A real
  * application should use the {@link android.content.AsyncQueryHandler}
  * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
  */
-public class TitleEditor extends Activity {
+public class TitleEditor extends Activity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     /**
      * This is a special intent action that means "edit the title of a note".
@@ -44,11 +51,18 @@ public class TitleEditor extends Activity {
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_VERSION, // 2
     };
 
     // The position of the title column in a Cursor returned by the provider.
     private static final int COLUMN_INDEX_TITLE = 1;
 
+    // The position of the version column in a Cursor returned by the provider.
+    private static final int COLUMN_INDEX_VERSION = 2;
+
+    // The ID of the loader that queries the note
+    private static final int NOTE_LOADER = 0;
+
     // A Cursor object that will contain the results of querying the provider for a note.
     private Cursor mCursor;
 
@@ -58,6 +72,10 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // The title and version of the note when the title was loaded into the edit box
+    private String mOriginalTitle;
+    private long mVersion;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -73,48 +91,62 @@ public class TitleEditor extends Activity {
         // title we need to edit.
         mUri = getIntent().getData();
 
+        // Gets the View ID for the EditText box
+        mText = (EditText) this.findViewById(R.id.title);
+
         /*
-         * Using the URI passed in with the triggering Intent, gets the note.
-         *
-         * Note: This is being done on the UI thread. It will block the thread until the query
-         * completes. In a sample app, going against a simple provider based on a local database,
-         * the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
+         * Starts loading the note, using the URI passed in with the triggering Intent. The query
+         * runs on a background thread, and the loader keeps its cursor across configuration
+         * changes.
          */
+        getLoaderManager().initLoader(NOTE_LOADER, null, this);
+    }
 
-        mCursor = managedQuery(
+    /**
+     * Called by the LoaderManager to create the loader for the note.
+     */
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(
+            this,
             mUri,        // The URI for the note that is to be retrieved.
             PROJECTION,  // The columns to retrieve
             null,        // No selection criteria are used, so no where columns are needed.
             null,        // No where columns are used, so no where values are needed.
             null         // No sort order is needed.
         );
-
-        // Gets the View ID for the EditText box
-        mText = (EditText) this.findViewById(R.id.title);
     }
 
     /**
-     * This method is called when the Activity is about to come to the foreground. This happens
-     * when the Activity comes to the top of the task stack, OR when it is first starting.
-     *
-     * Displays the current title for the selected note.
+     * Called by the LoaderManager when the note has loaded. Displays the current title for the
+     * selected note the first time it loads; later reloads leave the user's edits alone.
      */
     @Override
-    protected void onResume() {
-        super.onResume();
-
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-        if (mCursor != null) {
-
-            // The Cursor was just retrieved, so its index is set to one record *before* the first
-            // record retrieved. This moves it to the first record.
-            mCursor.moveToFirst();
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+
+        // The Cursor was just retrieved, so its index is set to one record *before* the first
+        // record retrieved. This moves it to the first record. If it is *empty*, the note no
+        // longer exists, and there is no title to edit.
+        if (data == null || !data.moveToFirst()) {
+            mCursor = null;
+            return;
+        }
 
-            // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+        // Displays the current title text in the EditText object.
+        if (mCursor == null) {
+            mOriginalTitle = data.getString(COLUMN_INDEX_TITLE);
+            mVersion = data.getLong(COLUMN_INDEX_VERSION);
+            mText.setText(mOriginalTitle);
         }
+        mCursor = data;
+    }
+
+    /**
+     * Called by the LoaderManager when the note's cursor is about to be closed.
+     */
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
     }
 
     /**
@@ -126,39 +158,77 @@ public class TitleEditor extends Activity {
      * to it to complete their work. The act of going away should save everything and leave the
      * Activity in a state where Android can destroy it if necessary.
      *
-     * Updates the note with the text currently in the text box.
+     * Updates the note with the text currently in the text box, if the user changed it.
      */
     @Override
     protected void onPause() {
         super.onPause();
 
-        // Verifies that the query made in onCreate() actually worked. If it worked, then the
-        // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-
-        if (mCursor != null) {
+        // Verifies that the note has loaded. Until it has, the edit box doesn't hold a title that
+        // could be saved.
+        // An unchanged title isn't written, so that it can't overwrite a change made elsewhere.
+        String title = mText.getText().toString();
+        if (mCursor != null && !title.equals(mOriginalTitle)) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
 
             // In the values map, sets the title to the current contents of the edit box.
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
 
             /*
-             * Updates the provider with the note's new title.
+             * Updates the provider with the note's new title, if the note is still at the version
+             * the title was loaded from.
              *
              * Note: This is being done on the UI thread. It will block the thread until the
              * update completes. In a sample app, going against a simple provider based on a
              * local database, the block will be momentary, but in a real app you should use
              * android.content.AsyncQueryHandler or android.os.AsyncTask.
              */
-            getContentResolver().update(
-                mUri,    // The URI for the note to update.
+            int count = getContentResolver().update(
+                NotePad.Notes.buildExpectedVersionUri(mUri, mVersion), // The URI for the note.
                 values,  // The values map containing the columns to update and the values to use.
                 null,    // No selection criteria is used, so no "where" columns are needed.
                 null     // No "where" columns are used, so no "where" values are needed.
             );
 
+            // The note was changed elsewhere. Only the title is saved here, so the new title
+            // can still be saved without overwriting anything, if the other change left the title
+            // alone; the update is then conditional on the note's latest version.
+            if (count == 0) {
+                count = updateIfTitleUnchanged(values);
+            }
+            if (count > 0) {
+                mOriginalTitle = title;
+                mVersion++;
+            } else {
+                Toast.makeText(this, R.string.title_conflict, Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /**
+     * Updates the note if its title is still the one loaded into the edit box, whatever else
+     * has changed.
+     *
+     * @return The number of notes updated, 0 or 1.
+     */
+    private int updateIfTitleUnchanged(ContentValues values) {
+        Cursor c = getContentResolver().query(mUri, PROJECTION, null, null, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            if (!c.moveToFirst()
+                    || !TextUtils.equals(c.getString(COLUMN_INDEX_TITLE), mOriginalTitle)) {
+                return 0;
+            }
+            mVersion = c.getLong(COLUMN_INDEX_VERSION);
+        } finally {
+            c.close();
         }
+        return getContentResolver().update(
+                NotePad.Notes.buildExpectedVersionUri(mUri, mVersion), values, null, null);
     }
 
     public void onClickOk(View v) {
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Counts the words of the notes that were written before the word count column existed. The
+ * upgrade to the column only adds it, so that opening the database stays fast however many notes
+ * it holds, and marks this backfill as pending. The provider then runs the backfill on a
+ * background thread, one chunk of notes at a time.
+ *
+ * Each chunk runs in its own transaction, so that the provider's own writes get the database
+ * between chunks. A note's word count is null until it is counted, which is what makes the
+ * backfill resumable: if the process dies, the next run picks up the notes that are still null.
+ * A note the provider writes in the meantime gets its word count from the write, and is skipped.
+ *
+ * Notes are read in slices of {@link #SLICE_LENGTH} characters, so that a large note neither has
+ * to fit in a cursor window nor be in memory all at once.
+ */
+final class WordCountBackfill implements Runnable {
+    // Used for debugging and logging
+    private static final String TAG = "WordCountBackfill";
+
+    /**
+     * The name the backfill is marked pending under. See
+     * {@link NotePadMigrations#addPendingBackfill(SQLiteDatabase, String)}.
+     */
+    static final String NAME = NotePad.Notes.COLUMN_NAME_WORD_COUNT;
+
+    /**
+     * The number of notes counted in each transaction
+     */
+    static final int CHUNK_SIZE = 500;
+
+    /**
+     * The number of characters of a note read at a time
+     */
+    static final int SLICE_LENGTH = 64 * 1024;
+
+    // How long the thread waits between chunks, to leave the database to the provider
+    private static final long CHUNK_PAUSE_MILLIS = 50;
+
+    private final SQLiteOpenHelper mHelper;
+
+    // Run after each chunk commits, or null
+    private final Runnable mOnChunkCounted;
+
+    // The ID of the last note counted. Only used by the thread counting the words.
+    private long mLastId = Long.MIN_VALUE;
+
+    // True once the thread has been started. Guarded by this.
+    private boolean mStarted;
+
+    /**
+     * @param helper Opens the database the notes are in.
+     * @param onChunkCounted Run on the backfill thread after each chunk of notes is counted, so
+     * that the new word counts can be shown. May be null.
+     */
+    WordCountBackfill(SQLiteOpenHelper helper, Runnable onChunkCounted) {
+        mHelper = helper;
+        mOnChunkCounted = onChunkCounted;
+    }
+
+    /**
+     * Starts counting on a background thread, unless it has already been started.
+     */
+    synchronized void start() {
+        if (!mStarted) {
+            mStarted = true;
+            new Thread(this, TAG).start();
+        }
+    }
+
+    /**
+     * Counts every note that is left, one chunk at a time. Stops early if the database is
+     * closed; the notes that are left are counted the next time it is opened.
+     */
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long start = SystemClock.elapsedRealtime();
+        try {
+            boolean more = true;
+            while (more) {
+                more = countNextChunk(mHelper.getWritableDatabase());
+                if (mOnChunkCounted != null) {
+                    mOnChunkCounted.run();
+                }
+                if (more) {
+                    SystemClock.sleep(CHUNK_PAUSE_MILLIS);
+                }
+            }
+            Log.i(TAG, "Counted words in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Stopped counting words", e);
+        } catch (IllegalStateException e) {
+            // The database was closed while a chunk was being counted
+            Log.w(TAG, "Stopped counting words", e);
+        }
+    }
+
+    /**
+     * Counts the words of the next {@link #CHUNK_SIZE} notes that haven't been counted, in one
+     * transaction. Once there are no notes left, marks the backfill as done.
+     *
+     * @return True if there may be more notes to count.
+     */
+    boolean countNextChunk(SQLiteDatabase db) {
+        SQLiteStatement slice = db.compileStatement("SELECT substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, " + SLICE_LENGTH + ") FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?");
+        SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                + " SET " + NotePad.Notes.COLUMN_NAME_WORD_COUNT + " = ? WHERE "
+                + NotePad.Notes._ID + " = ?");
+        db.beginTransaction();
+        try {
+            // Walks the notes in _id order from where the last chunk stopped, so that each
+            // chunk doesn't scan past the notes already counted.
+            Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + " FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " > ? AND "
+                    + NotePad.Notes.COLUMN_NAME_WORD_COUNT + " IS NULL ORDER BY "
+                    + NotePad.Notes._ID + " LIMIT " + CHUNK_SIZE,
+                    new String[] { Long.toString(mLastId) });
+            boolean more;
+            try {
+                more = c.getCount() == CHUNK_SIZE;
+                while (c.moveToNext()) {
+                    long noteId = c.getLong(0);
+                    update.bindLong(1, countWords(slice, noteId));
+                    update.bindLong(2, noteId);
+                    update.execute();
+                    mLastId = noteId;
+                }
+            } finally {
+                c.close();
+            }
+
+            if (!more) {
+                NotePadMigrations.removePendingBackfill(db, NAME);
+            }
+            db.setTransactionSuccessful();
+            return more;
+        } finally {
+            db.endTransaction();
+            slice.close();
+            update.close();
+        }
+    }
+
+    /**
+     * Counts the words of a note, reading it a slice at a time.
+     */
+    private static int countWords(SQLiteStatement slice, long noteId) {
+        NoteAnalyzer.WordCounter counter = new NoteAnalyzer.WordCounter();
+        slice.bindLong(2, noteId);
+
+        // SQLite counts characters from 1. A slice shorter than asked for is the last one.
+        for (long offset = 1; ; offset += SLICE_LENGTH) {
+            slice.bindLong(1, offset);
+            String text = slice.simpleQueryForString();
+            counter.add(text);
+            if (text == null || text.length() < SLICE_LENGTH) {
+                return counter.getCount();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs benchmarks in the manner of JMH, and writes their results as JSON. Each benchmark runs a
+ * number of warmup iterations, whose times are thrown away, and then a number of measured
+ * iterations. An iteration runs an operation a fixed number of times, after an untimed
+ * preparation step.
+ *
+ * The JSON document holds one result per benchmark and set of parameters, with the time per
+ * operation in nanoseconds, so that the results of two builds can be compared with a diff or a
+ * script:
+ *
+ * <pre>
+ * { "suite": "...", "results": [
+ *     { "benchmark": "query_page", "params": { "notes": 10000 },
+ *       "iterations": 10, "opsPerIteration": 100,
+ *       "nsPerOp": { "mean": ..., "min": ..., "p50": ..., "p90": ..., "max": ... },
+ *       "opsPerSecond": ... } ] }
+ * </pre>
+ *
+ * A result can also be a quantity other than a time, such as the size of a database, with its
+ * unit: <code>{ "benchmark": "db_size", "params": { ... }, "unit": "bytes", "value": ... }</code>.
+ */
+final class BenchmarkReport {
+
+    /**
+     * The work measured by a benchmark.
+     */
+    abstract static class Operation {
+
+        /**
+         * Prepares an iteration, for example by creating the notes it deletes. Not timed.
+         */
+        void prepare() throws Exception {
+        }
+
+        /**
+         * Runs the operation once.
+         *
+         * @param index The number of times the operation has run in this iteration.
+         */
+        abstract void run(int index) throws Exception;
+    }
+
+    // The number of iterations run before the measured ones, to warm up the JIT and the caches
+    private static final int WARMUP_ITERATIONS = 3;
+
+    // The number of measured iterations
+    private static final int MEASURED_ITERATIONS = 10;
+
+    private final String mSuite;
+    private final List<String> mResults = new ArrayList<String>();
+
+    BenchmarkReport(String suite) {
+        mSuite = suite;
+    }
+
+    /**
+     * Runs a benchmark and adds its result to the report.
+     *
+     * @param name The name of the benchmark.
+     * @param params The parameters the benchmark ran with, such as the number of notes.
+     * @param opsPerIteration The number of times each iteration runs the operation.
+     * @param operation The operation to measure.
+     */
+    void measure(String name, Map<String, Object> params, int opsPerIteration,
+            Operation operation) throws Exception {
+        double[] nsPerOp = new double[MEASURED_ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < MEASURED_ITERATIONS; i++) {
+            operation.prepare();
+            long start = System.nanoTime();
+            for (int j = 0; j < opsPerIteration; j++) {
+                operation.run(j);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                nsPerOp[i] = (double) elapsed / opsPerIteration;
+            }
+        }
+
+        double sum = 0;
+        for (double ns : nsPerOp) {
+            sum += ns;
+        }
+        double mean = sum / nsPerOp.length;
+        Arrays.sort(nsPerOp);
+
+        StringBuilder result = startResult(name, params);
+        result.append(", \"iterations\": ").append(MEASURED_ITERATIONS);
+        result.append(", \"opsPerIteration\": ").append(opsPerIteration);
+        result.append(", \"nsPerOp\": {");
+        result.append("\"mean\": ").append(format(mean));
+        result.append(", \"min\": ").append(format(nsPerOp[0]));
+        result.append(", \"p50\": ").append(format(percentile(nsPerOp, 50)));
+        result.append(", \"p90\": ").append(format(percentile(nsPerOp, 90)));
+        result.append(", \"max\": ").append(format(nsPerOp[nsPerOp.length - 1]));
+        result.append("}");
+        result.append(", \"opsPerSecond\": ").append(format(1e9 / mean));
+        result.append("}");
+        mResults.add(result.toString());
+
+        System.out.println(mSuite + " " + name + " " + params + ": "
+                + format(mean) + " ns/op");
+    }
+
+    /**
+     * Adds a measured quantity that is not a time to the report.
+     *
+     * @param name The name of the benchmark.
+     * @param params The parameters the quantity was measured with.
+     * @param unit The unit of the quantity, such as "bytes".
+     * @param value The quantity.
+     */
+    void record(String name, Map<String, Object> params, String unit, double value) {
+        StringBuilder result = startResult(name, params);
+        result.append(", \"unit\": ").append(quote(unit));
+        result.append(", \"value\": ").append(format(value));
+        result.append("}");
+        mResults.add(result.toString());
+
+        System.out.println(mSuite + " " + name + " " + params + ": " + format(value) + " "
+                + unit);
+    }
+
+    /**
+     * Writes the report to a JSON file named after the suite, in the directory given by the
+     * notepad.benchmark.output system property, or the working directory if it isn't set.
+     *
+     * @return The file written.
+     */
+    File write() throws IOException {
+        File dir = new File(System.getProperty("notepad.benchmark.output", "."));
+        dir.mkdirs();
+        File file = new File(dir, mSuite + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("{\"suite\": " + quote(mSuite) + ", \"results\": [\n");
+            for (int i = 0; i < mResults.size(); i++) {
+                writer.write("  " + mResults.get(i));
+                writer.write(i < mResults.size() - 1 ? ",\n" : "\n");
+            }
+            writer.write("]}\n");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Makes a map of benchmark parameters from name and value pairs.
+     */
+    static Map<String, Object> params(Object... namesAndValues) {
+        Map<String, Object> params = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            params.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return params;
+    }
+
+    /**
+     * Starts the JSON object of a result, with its name and parameters.
+     */
+    private static StringBuilder startResult(String name, Map<String, Object> params) {
+        StringBuilder result = new StringBuilder();
+        result.append("{\"benchmark\": ").append(quote(name));
+        result.append(", \"params\": {");
+        String separator = "";
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            result.append(separator).append(quote(param.getKey())).append(": ");
+            Object value = param.getValue();
+            result.append(value instanceof Number ? value.toString() : quote(value.toString()));
+            separator = ", ";
+        }
+        result.append("}");
+        return result;
+    }
+
+    private static double percentile(double[] sorted, int percentile) {
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.1f", value);
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
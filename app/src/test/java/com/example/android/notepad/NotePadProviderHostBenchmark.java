@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.SQLiteMode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the provider's hot paths on the host JVM, so that they can be compared between
+ * builds without a device. The provider runs on Robolectric with the native SQLite library, so
+ * the SQL is the same as on a device, but the times are only comparable with other host runs.
+ *
+ * The benchmarks only run when asked for:
+ *
+ * <pre>
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark [-PbenchmarkMaxNotes=10000]
+ * </pre>
+ *
+ * Each test writes its results as JSON to app/build/benchmarks, one file per test. See
+ * {@link BenchmarkReport} for the format.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 23)
+@SQLiteMode(SQLiteMode.Mode.NATIVE)
+public class NotePadProviderHostBenchmark {
+
+    // The numbers of notes in the databases the provider operations are measured on
+    private static final int[] NOTE_COUNTS = { 100, 10000, 100000, 1000000 };
+
+    // The size of each note in those databases, in bytes
+    private static final int SMALL_NOTE_BYTES = 100;
+
+    // The sizes of the single notes the streaming, editing and title benchmarks use, in bytes
+    private static final int[] NOTE_BYTES = { 100, 10 * 1024, 1024 * 1024, 5 * 1024 * 1024 };
+
+    // The sizes of the notes the compression benchmark uses, in bytes. The smallest is just over
+    // the size from which notes are compressed.
+    private static final int[] COMPRESSED_NOTE_BYTES = { 32 * 1024, 512 * 1024 };
+
+    // The codecs the compression benchmark compares: none, and deflate at its fastest, default
+    // and smallest levels
+    private static final NoteCodec[] CODECS = {
+        NoteCodec.NONE,
+        new NoteCodec(NoteCodec.CODEC_DEFLATE, 1, NoteCodec.DEFAULT_THRESHOLD),
+        new NoteCodec(NoteCodec.CODEC_DEFLATE, 6, NoteCodec.DEFAULT_THRESHOLD),
+        new NoteCodec(NoteCodec.CODEC_DEFLATE, 9, NoteCodec.DEFAULT_THRESHOLD)
+    };
+
+    // The levels, tags and messages of the log lines the compression benchmark's notes are made of
+    private static final String[] LOG_LEVELS = { "D", "I", "W", "E" };
+    private static final String[] LOG_TAGS = { "ActivityManager", "SyncManager", "NotePad",
+        "ConnectivityService", "PackageManager" };
+    private static final String[] LOG_MESSAGES = { "Start proc for activity", "Sync finished",
+        "Saved note", "Network state changed to CONNECTED", "Package updated", "Timeout waiting" };
+
+    // The numbers of notes in the databases the archive benchmark exports and imports
+    private static final int[] ARCHIVE_NOTE_COUNTS = { 1000, 10000, 100000 };
+
+    // The number of notes each bulkInsert() adds while a database is filled
+    private static final int FILL_CHUNK = 10000;
+
+    // The columns the editor reads from a note
+    private static final String[] NOTE_PROJECTION = new String[] {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_NOTE,
+        NotePad.Notes.COLUMN_NAME_REVISION
+    };
+
+    // The size of a page of the notes list
+    private static final int PAGE_SIZE = 50;
+
+    // The most times an iteration runs an operation
+    private static final int MAX_OPS_PER_ITERATION = 1000;
+
+    // The largest database to measure, from the notepad.benchmark.maxNotes system property
+    private static final int MAX_NOTES =
+            Integer.getInteger("notepad.benchmark.maxNotes", 1000000);
+
+    private NotePadProvider mProvider;
+
+    // The source of the note text, seeded so that every run uses the same notes
+    private final Random mRandom = new Random(42);
+
+    // The IDs of the notes in the database
+    private final List<Long> mNoteIds = new ArrayList<Long>();
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    /*
+     * Measures queries, inserts, updates and deletes on databases of increasing size. The
+     * database grows from one size to the next, rather than being rebuilt.
+     */
+    @Test
+    public void benchmarkProviderOperations() throws Exception {
+        BenchmarkReport report = new BenchmarkReport("provider_operations");
+
+        for (final int count : NOTE_COUNTS) {
+            if (count > MAX_NOTES) {
+                break;
+            }
+            fill(count);
+
+            // The first page of the notes list, as the list activity queries it
+            report.measure("query_page", BenchmarkReport.params("notes", count), 100,
+                    new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) {
+                            Uri uri = NotePad.Notes.CONTENT_URI.buildUpon()
+                                    .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER,
+                                            String.valueOf(PAGE_SIZE))
+                                    .build();
+                            readAll(mProvider.query(uri, null, null, null, null));
+                        }
+                    });
+
+            // A single note with its body, as the editor queries it
+            report.measure("query_note", BenchmarkReport.params("notes", count),
+                    MAX_OPS_PER_ITERATION, new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) {
+                            readAll(mProvider.query(noteUri(randomNoteId()), NOTE_PROJECTION,
+                                    null, null, null));
+                        }
+                    });
+
+            // A new note, as the editor inserts it
+            report.measure("insert", BenchmarkReport.params("notes", count), 100,
+                    new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) {
+                            Uri uri = mProvider.insert(NotePad.Notes.CONTENT_URI,
+                                    new ContentValues());
+                            mNoteIds.add(ContentUris.parseId(uri));
+                        }
+                    });
+
+            // A changed note, as the editor saves it
+            report.measure("update", BenchmarkReport.params("notes", count), 100,
+                    new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) {
+                            ContentValues values = new ContentValues();
+                            values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                                    randomText(SMALL_NOTE_BYTES));
+                            assertEquals(1, mProvider.update(noteUri(randomNoteId()), values,
+                                    null, null));
+                        }
+                    });
+
+            // A deleted note. The notes are inserted before the iteration, so that the size
+            // of the database doesn't change.
+            report.measure("delete", BenchmarkReport.params("notes", count), 100,
+                    new BenchmarkReport.Operation() {
+                        private final long[] mDeleted = new long[100];
+
+                        @Override
+                        void prepare() {
+                            for (int i = 0; i < mDeleted.length; i++) {
+                                mDeleted[i] = ContentUris.parseId(mProvider.insert(
+                                        NotePad.Notes.CONTENT_URI, noteValues(SMALL_NOTE_BYTES)));
+                            }
+                        }
+
+                        @Override
+                        void run(int index) {
+                            assertEquals(1, mProvider.delete(noteUri(mDeleted[index]), null,
+                                    null));
+                        }
+                    });
+        }
+
+        report.write();
+    }
+
+    /*
+     * Measures the operations whose cost depends on the size of a note: streaming it, saving a
+     * change to it, and deriving a title from it.
+     */
+    @Test
+    public void benchmarkNoteSizes() throws Exception {
+        BenchmarkReport report = new BenchmarkReport("note_sizes");
+
+        for (final int size : NOTE_BYTES) {
+            final String text = randomText(size);
+            final Uri uri = mProvider.insert(NotePad.Notes.CONTENT_URI, noteValues(text));
+            int ops = Math.max(1, Math.min(MAX_OPS_PER_ITERATION, 1024 * 1024 / size));
+
+            // The note as a text stream, as it is pasted or shared
+            report.measure("stream", BenchmarkReport.params("bytes", size), ops,
+                    new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) throws Exception {
+                            readStream(uri);
+                        }
+                    });
+
+            // A small edit to the note, which is saved with a revision of the change
+            report.measure("update_edit", BenchmarkReport.params("bytes", size), ops,
+                    new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) {
+                            ContentValues values = new ContentValues();
+                            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text + index);
+                            assertEquals(1, mProvider.update(uri, values, null, null));
+                        }
+                    });
+
+            // The title of a new note, as the provider derives it
+            report.measure("title", BenchmarkReport.params("bytes", size),
+                    MAX_OPS_PER_ITERATION, new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) {
+                            assertTrue(NoteAnalyzer.makeTitle(text).length() <= 30);
+                        }
+                    });
+        }
+
+        report.write();
+    }
+
+    /*
+     * Measures each codec and level on notes of log text, which is what users paste into large
+     * notes: the database space each note takes, and the time to insert a note, to read it back
+     * and to stream it. Reads go past the note cache, so that they measure decompression.
+     */
+    @Test
+    public void benchmarkCompression() throws Exception {
+        BenchmarkReport report = new BenchmarkReport("compression");
+
+        for (final int size : COMPRESSED_NOTE_BYTES) {
+            final String text = logText(size);
+            int ops = Math.max(1, Math.min(100, 4 * 1024 * 1024 / size));
+
+            for (NoteCodec codec : CODECS) {
+                mProvider.setCodecForTest(codec);
+                Map<String, Object> params = BenchmarkReport.params(
+                        "codec", codec.getCodec() == NoteCodec.CODEC_NONE ? "none" : "deflate",
+                        "level", codec.getLevel(), "bytes", size);
+
+                // A new note, as the editor inserts it
+                final List<Uri> uris = new ArrayList<Uri>();
+                long pagesBefore = getUsedPages();
+                report.measure("insert", params, ops, new BenchmarkReport.Operation() {
+                    @Override
+                    void run(int index) {
+                        uris.add(mProvider.insert(NotePad.Notes.CONTENT_URI, noteValues(text)));
+                    }
+                });
+
+                // The space the notes take, with their search index and everything else
+                long pageSize = mProvider.call(NotePad.Storage.METHOD_GET_STORAGE_STATS, null,
+                        null).getLong(NotePad.Storage.KEY_PAGE_SIZE);
+                report.record("db_bytes_per_note", params, "bytes",
+                        (double) (getUsedPages() - pagesBefore) * pageSize / uris.size());
+
+                // The note with its body, as the editor queries it
+                report.measure("read", params, ops, new BenchmarkReport.Operation() {
+                    @Override
+                    void run(int index) {
+                        mProvider.getNoteCacheForTest().invalidateAll();
+                        readAll(mProvider.query(uris.get(index), NOTE_PROJECTION, null, null,
+                                null));
+                    }
+                });
+
+                // The note as a text stream, as it is pasted or shared
+                report.measure("stream", params, ops, new BenchmarkReport.Operation() {
+                    @Override
+                    void run(int index) throws Exception {
+                        mProvider.getNoteCacheForTest().invalidateAll();
+                        readStream(uris.get(index));
+                    }
+                });
+
+                // Starts each codec from a database without the notes of the last one.
+                deleteAllNotes();
+            }
+        }
+        mProvider.setCodecForTest(NoteCodec.DEFAULT);
+
+        report.write();
+    }
+
+    /*
+     * Measures exporting all the notes as an archive, with and without compression, and
+     * importing that archive into an empty database, on databases of increasing size. Each
+     * operation handles every note, so its throughput in notes per second is the number of notes
+     * divided by its time. The size of each archive per note is recorded too.
+     */
+    @Test
+    public void benchmarkArchive() throws Exception {
+        BenchmarkReport report = new BenchmarkReport("archive");
+
+        for (final int count : ARCHIVE_NOTE_COUNTS) {
+            if (count > MAX_NOTES) {
+                break;
+            }
+            fill(count);
+
+            for (boolean compress : new boolean[] { false, true }) {
+                Map<String, Object> params = BenchmarkReport.params(
+                        "codec", compress ? "deflate" : "none", "notes", count);
+                final Uri uri = NotePad.Archive.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(NotePad.Archive.COMPRESS_PARAMETER,
+                                String.valueOf(compress))
+                        .build();
+                final File archive = File.createTempFile("notes", ".archive");
+                try {
+                    // All the notes, written to a file as a backup would be
+                    report.measure("export", params, 1, new BenchmarkReport.Operation() {
+                        @Override
+                        void run(int index) throws Exception {
+                            exportNotes(uri, archive);
+                        }
+                    });
+                    report.record("archive_bytes_per_note", params, "bytes",
+                            (double) archive.length() / count);
+
+                    // The file, restored into an empty database
+                    report.measure("import", params, 1, new BenchmarkReport.Operation() {
+                        @Override
+                        void prepare() {
+                            deleteAllNotes();
+                        }
+
+                        @Override
+                        void run(int index) throws Exception {
+                            assertEquals(count, importNotes(archive));
+                        }
+                    });
+                } finally {
+                    archive.delete();
+                }
+            }
+        }
+
+        report.write();
+    }
+
+    /**
+     * Copies the archive of all the notes into a file.
+     */
+    private void exportNotes(Uri uri, File file) throws Exception {
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                mProvider.openFile(uri, "r"));
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Imports the archive in a file, and returns the number of notes imported.
+     */
+    private int importNotes(File file) throws Exception {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Archive.KEY_ARCHIVE,
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY));
+        return mProvider.call(NotePad.Archive.METHOD_IMPORT_NOTES, null, extras)
+                .getInt(NotePad.Archive.KEY_COUNT);
+    }
+
+    /**
+     * Deletes all the notes, and purges them, so that the database is as it was before they were
+     * added.
+     */
+    private void deleteAllNotes() {
+        mProvider.delete(NotePad.Notes.CONTENT_URI, null, null);
+        NotePadProvider.DatabaseHelper helper = mProvider.getOpenHelperForTest();
+        helper.getPurger().purge(helper.getWritableDatabase());
+    }
+
+    /**
+     * Returns the number of database pages in use, which grows by the space new notes take.
+     */
+    private long getUsedPages() {
+        Bundle stats = mProvider.call(NotePad.Storage.METHOD_GET_STORAGE_STATS, null, null);
+        return stats.getLong(NotePad.Storage.KEY_PAGE_COUNT)
+                - stats.getLong(NotePad.Storage.KEY_FREELIST_COUNT);
+    }
+
+    /**
+     * Reads a note as a text stream, and checks that the whole stream was read.
+     */
+    private void readStream(Uri uri) throws Exception {
+        AssetFileDescriptor afd = mProvider.openTypedAssetFile(uri, "text/plain", null);
+        InputStream in = afd.createInputStream();
+        byte[] buffer = new byte[8192];
+        long read = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(afd.getLength(), read);
+    }
+
+    /**
+     * Adds notes to the database until it holds the given number, and then reads their IDs.
+     */
+    private void fill(int count) {
+        int size = mNoteIds.size();
+        while (size < count) {
+            int chunk = Math.min(FILL_CHUNK, count - size);
+            ContentValues[] values = new ContentValues[chunk];
+            for (int i = 0; i < chunk; i++) {
+                values[i] = noteValues(SMALL_NOTE_BYTES);
+            }
+            assertEquals(chunk, mProvider.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+            size += chunk;
+        }
+
+        mNoteIds.clear();
+        Cursor c = mProvider.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                mNoteIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private ContentValues noteValues(int bytes) {
+        return noteValues(randomText(bytes));
+    }
+
+    private static ContentValues noteValues(String text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, NoteAnalyzer.makeTitle(text));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        return values;
+    }
+
+    /**
+     * Makes text of lowercase words, spaces and newlines, the given number of bytes long.
+     */
+    private String randomText(int bytes) {
+        StringBuilder text = new StringBuilder(bytes);
+        while (text.length() < bytes) {
+            int wordLength = 1 + mRandom.nextInt(10);
+            for (int i = 0; i < wordLength; i++) {
+                text.append((char) ('a' + mRandom.nextInt(26)));
+            }
+            text.append(mRandom.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        text.setLength(bytes);
+        return text.toString();
+    }
+
+    /**
+     * Makes text of log lines, the given number of bytes long. Like a real log, the lines repeat
+     * the same few tags and messages with different times and numbers.
+     */
+    private String logText(int bytes) {
+        StringBuilder text = new StringBuilder(bytes);
+        long millis = 0;
+        while (text.length() < bytes) {
+            millis += mRandom.nextInt(500);
+            text.append(String.format(Locale.US, "10-18 %02d:%02d:%02d.%03d %5d %s %s: %s %d\n",
+                    millis / 3600000 % 24, millis / 60000 % 60, millis / 1000 % 60,
+                    millis % 1000, 1000 + mRandom.nextInt(50),
+                    LOG_LEVELS[mRandom.nextInt(LOG_LEVELS.length)],
+                    LOG_TAGS[mRandom.nextInt(LOG_TAGS.length)],
+                    LOG_MESSAGES[mRandom.nextInt(LOG_MESSAGES.length)],
+                    mRandom.nextInt(10000)));
+        }
+        text.setLength(bytes);
+        return text.toString();
+    }
+
+    private long randomNoteId() {
+        return mNoteIds.get(mRandom.nextInt(mNoteIds.size()));
+    }
+
+    private static Uri noteUri(long noteId) {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+    }
+
+    /**
+     * Reads every row and column of a cursor, and closes it.
+     */
+    private static void readAll(Cursor c) {
+        try {
+            int columns = c.getColumnCount();
+            while (c.moveToNext()) {
+                for (int i = 0; i < columns; i++) {
+                    c.getString(i);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+}